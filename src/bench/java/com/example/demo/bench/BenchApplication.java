@@ -0,0 +1,61 @@
+package com.example.demo.bench;
+
+import com.example.demo.DemoApplication;
+import com.example.demo.model.User;
+import com.example.demo.repository.UserRepository;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+// Boots the real application against a private in-memory H2 database for benchmarks.
+public final class BenchApplication {
+
+    private BenchApplication() {
+    }
+
+    public static ConfigurableApplicationContext start(String... properties) {
+        // Passed as command line arguments so they win over application-bench.properties
+        List<String> args = new ArrayList<>();
+        for (String property : properties) {
+            args.add("--" + property);
+        }
+        args.add("--spring.datasource.url=jdbc:h2:mem:bench-" + UUID.randomUUID()
+                + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        return new SpringApplicationBuilder(DemoApplication.class)
+                .profiles("bench")
+                .initializers(context -> context.getBeanFactory().registerSingleton(
+                        "jdbcStatementCounter", new JdbcStatementCounter()))
+                .logStartupInfo(false)
+                .run(args.toArray(new String[0]));
+    }
+
+    public static List<User> createUsers(ConfigurableApplicationContext context, int count) {
+        return createUsers(context, "bench", count);
+    }
+
+    // Usernames are prefix0..prefixN-1; use a new prefix for every call on the same context
+    public static List<User> createUsers(ConfigurableApplicationContext context, String prefix, int count) {
+        UserRepository userRepository = context.getBean(UserRepository.class);
+        List<User> users = new ArrayList<>(count);
+        List<User> chunk = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            chunk.add(new User(prefix + i, prefix + i + "@example.com", "password"));
+            if (chunk.size() == 1_000 || i == count - 1) {
+                users.addAll(userRepository.saveAll(chunk));
+                chunk.clear();
+            }
+        }
+        return users;
+    }
+
+    public static double percentile(long[] sortedNanos, double percentile) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1_000_000.0;
+    }
+}
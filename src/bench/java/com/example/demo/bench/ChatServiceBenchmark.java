@@ -0,0 +1,116 @@
+package com.example.demo.bench;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.dto.MessageHistoryResponse;
+import com.example.demo.model.Message;
+import com.example.demo.model.User;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.service.ChatService;
+import com.example.demo.service.RecentMessageCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.test.util.AopTestUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// ChatService against the real Spring context and an embedded H2 database: message
+// persistence, DTO conversion and the history reads. Absolute numbers are H2 numbers;
+// compare runs with each other, not with production PostgreSQL.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatServiceBenchmark {
+
+    private static final int SEEDED_MESSAGES = 2_000;
+
+    private ConfigurableApplicationContext context;
+    private ChatService chatService;
+    private MethodHandle convertToDTO;
+    private Long userId1;
+    private Long userId2;
+    private Message storedMessage;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = BenchApplication.start();
+        List<User> users = BenchApplication.createUsers(context, 2);
+        userId1 = users.get(0).getId();
+        userId2 = users.get(1).getId();
+        chatService = context.getBean(ChatService.class);
+
+        List<ChatMessage> seed = new ArrayList<>();
+        for (int i = 0; i < SEEDED_MESSAGES; i++) {
+            seed.add(message(i % 2 == 0 ? userId1 : userId2, i % 2 == 0 ? userId2 : userId1, i));
+            if (seed.size() == 500) {
+                chatService.saveMessages(seed);
+                seed.clear();
+            }
+        }
+        storedMessage = context.getBean(MessageRepository.class).findAll().get(0);
+
+        // convertToDTO is private; call it on the unproxied service the way ChatService does
+        ChatService target = AopTestUtils.getUltimateTargetObject(chatService);
+        convertToDTO = MethodHandles.privateLookupIn(ChatService.class, MethodHandles.lookup())
+                .findVirtual(ChatService.class, "convertToDTO", MethodType.methodType(ChatMessage.class, Message.class))
+                .bindTo(target);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public ChatMessage saveMessage() {
+        long n = sent++;
+        return chatService.saveMessage(message(n % 2 == 0 ? userId1 : userId2, n % 2 == 0 ? userId2 : userId1, n));
+    }
+
+    @Benchmark
+    public ChatMessage convertToDTO() throws Throwable {
+        return (ChatMessage) convertToDTO.invokeExact(storedMessage);
+    }
+
+    @Benchmark
+    public List<ChatMessage> messagesPage() {
+        return chatService.getMessagesBetweenUsers(userId1, userId2, 0, 50);
+    }
+
+    @Benchmark
+    public MessageHistoryResponse historyNewestPageFromDatabase() {
+        return chatService.getMessageHistory(userId1, userId2, null, null, null, 50);
+    }
+
+    @Benchmark
+    public RecentMessageCache.CachedPage historyNewestPageFromCache() {
+        return chatService.getNewestPageFromCache(userId1, userId2, 50);
+    }
+
+    private static ChatMessage message(Long senderId, Long receiverId, long i) {
+        ChatMessage message = new ChatMessage();
+        message.setSenderId(senderId);
+        message.setReceiverId(receiverId);
+        message.setContent("benchmark message " + i);
+        return message;
+    }
+}
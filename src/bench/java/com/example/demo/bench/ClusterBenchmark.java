@@ -0,0 +1,287 @@
+package com.example.demo.bench;
+
+import com.example.demo.service.ClusterBus;
+import com.example.demo.service.ClusterMessage;
+import com.example.demo.service.TcpClusterBus;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+// Cross-node delivery on TcpClusterBus with every node in its own JVM on localhost. For each
+// cluster size the driver starts the nodes, waits until each is connected to all the others, and
+// releases them together. Every node then sends DELIVER messages round robin to the other nodes,
+// as StompFanout forwards a chat message, and records on arrival the time since the message's
+// intended send time (System.nanoTime is CLOCK_MONOTONIC, shared by processes on one host).
+// Only messages sent during the measured window count.
+//
+// Two runs per size: at a fixed rate per node for latency, then unthrottled for the rate a node
+// can receive. Unthrottled senders back off while a peer's queue is full, so "dropped" there
+// counts full-queue refusals rather than lost traffic.
+//
+// Usage: ./mvnw -Pbench test-compile exec:java -Dexec.mainClass=com.example.demo.bench.ClusterBenchmark
+//   -Dbench.nodes=2,4,8          cluster sizes, run one after another
+//   -Dbench.rate=2000            messages per second each node sends in the latency run
+//   -Dbench.payloadBytes=300     DELIVER payload, about one JSON chat message
+//   -Dbench.warmupSeconds=10     unmeasured sending before each run
+//   -Dbench.seconds=20           measured duration of each run
+//   -Dbench.queueCapacity=10000  app.cluster.queue-capacity of every node
+//   -Dbench.nodeHeap=256m        heap of each node JVM
+//
+// All nodes share the machine, so with more nodes than cores the per-node figures fall with the
+// cluster size because the nodes take turns on the CPU, not because of the bus.
+public class ClusterBenchmark {
+
+    private static final String READY = "READY";
+    private static final String RESULT = "RESULT ";
+    private static final String DESTINATION = "/queue/messages";
+    private static final long MAX_LATENCY = TimeUnit.SECONDS.toNanos(60);
+
+    // The measured window of a node, in nanoTime; messages sent outside it are not counted
+    private static volatile long windowStart = Long.MAX_VALUE;
+    private static volatile long windowEnd = Long.MAX_VALUE;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("node")) {
+            runNode(args);
+            return;
+        }
+        int[] sizes = Arrays.stream(System.getProperty("bench.nodes", "2,4,8").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        int rate = Integer.getInteger("bench.rate", 2000);
+        int payloadBytes = Integer.getInteger("bench.payloadBytes", 300);
+        int warmupSeconds = Integer.getInteger("bench.warmupSeconds", 10);
+        int seconds = Integer.getInteger("bench.seconds", 20);
+        int queueCapacity = Integer.getInteger("bench.queueCapacity", 10000);
+        String nodeHeap = System.getProperty("bench.nodeHeap", "256m");
+
+        System.out.printf("%5s %10s %10s %10s %9s %9s %9s %9s %12s %12s%n", "nodes", "rate/node",
+                "sent/s", "recv/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms", "recv/s min", "dropped");
+        for (int size : sizes) {
+            for (int run : new int[]{rate, 0}) {
+                runCluster(size, run, payloadBytes, warmupSeconds, seconds, queueCapacity, nodeHeap);
+            }
+        }
+    }
+
+    private static void runCluster(int size, int rate, int payloadBytes, int warmupSeconds, int seconds,
+                                   int queueCapacity, String nodeHeap) throws Exception {
+        String peers = freePorts(size).stream().map(port -> "127.0.0.1:" + port).collect(Collectors.joining(","));
+        List<Process> nodes = new ArrayList<>();
+        try {
+            for (int i = 0; i < size; i++) {
+                nodes.add(new ProcessBuilder(javaExecutable(), "-Xmx" + nodeHeap, "-XX:+UseSerialGC",
+                        "-cp", classPath(), ClusterBenchmark.class.getName(), "node", String.valueOf(i), peers,
+                        String.valueOf(rate), String.valueOf(payloadBytes), String.valueOf(warmupSeconds),
+                        String.valueOf(seconds), String.valueOf(queueCapacity))
+                        .redirectError(ProcessBuilder.Redirect.INHERIT)
+                        .start());
+            }
+            List<BufferedReader> outputs = new ArrayList<>();
+            for (Process node : nodes) {
+                BufferedReader output = new BufferedReader(
+                        new InputStreamReader(node.getInputStream(), StandardCharsets.UTF_8));
+                expect(output, READY);
+                outputs.add(output);
+            }
+            // The start of the run, in the nanoTime every node reads
+            long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+            for (Process node : nodes) {
+                PrintStream input = new PrintStream(node.getOutputStream(), true, StandardCharsets.UTF_8);
+                input.println(start);
+            }
+
+            Histogram latency = new Histogram(MAX_LATENCY, 3);
+            long sent = 0;
+            long received = 0;
+            long minReceived = Long.MAX_VALUE;
+            long dropped = 0;
+            for (BufferedReader output : outputs) {
+                String[] fields = expect(output, RESULT).substring(RESULT.length()).split(" ");
+                sent += Long.parseLong(fields[0]);
+                received += Long.parseLong(fields[1]);
+                minReceived = Math.min(minReceived, Long.parseLong(fields[1]));
+                dropped += Long.parseLong(fields[2]);
+                latency.add(Histogram.decodeFromCompressedByteBuffer(
+                        ByteBuffer.wrap(Base64.getDecoder().decode(fields[3])), 0));
+            }
+            System.out.printf("%5d %10s %10.0f %10.0f %9.2f %9.2f %9.2f %9.2f %12.0f %12d%n", size,
+                    rate > 0 ? String.valueOf(rate) : "max",
+                    sent / (double) size / seconds, received / (double) size / seconds,
+                    millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+                    millis(latency.getValueAtPercentile(99.9)), millis(latency.getMaxValue()),
+                    minReceived / (double) seconds, dropped);
+        } finally {
+            for (Process node : nodes) {
+                node.destroy();
+            }
+            for (Process node : nodes) {
+                node.waitFor(10, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private static String expect(BufferedReader output, String prefix) throws IOException {
+        String line;
+        while ((line = output.readLine()) != null) {
+            if (line.startsWith(prefix)) {
+                return line;
+            }
+        }
+        throw new IllegalStateException("Node exited before printing " + prefix.trim());
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    private static List<Integer> freePorts(int count) throws IOException {
+        List<ServerSocket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets.add(new ServerSocket(0));
+            }
+            return sockets.stream().map(ServerSocket::getLocalPort).toList();
+        } finally {
+            for (ServerSocket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private static String javaExecutable() {
+        return System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+    }
+
+    // exec:java loads the project on its own class loader; java.class.path is Maven's launcher
+    private static String classPath() {
+        ClassLoader loader = ClusterBenchmark.class.getClassLoader();
+        if (loader instanceof URLClassLoader urlLoader) {
+            return Arrays.stream(urlLoader.getURLs()).map(ClusterBenchmark::toPath)
+                    .collect(Collectors.joining(File.pathSeparator));
+        }
+        return System.getProperty("java.class.path");
+    }
+
+    private static String toPath(URL url) {
+        try {
+            return new File(url.toURI()).getPath();
+        } catch (Exception e) {
+            return url.getPath();
+        }
+    }
+
+    // node <index> <peers> <rate, 0 = unthrottled> <payloadBytes> <warmupSeconds> <seconds> <queueCapacity>
+    private static void runNode(String[] args) throws Exception {
+        int index = Integer.parseInt(args[1]);
+        String peers = args[2];
+        int rate = Integer.parseInt(args[3]);
+        int payloadBytes = Math.max(Long.BYTES, Integer.parseInt(args[4]));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[5]));
+        long measureNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(args[6]));
+        int queueCapacity = Integer.parseInt(args[7]);
+        String[] addresses = peers.split(",");
+        int port = Integer.parseInt(addresses[index].substring(addresses[index].lastIndexOf(':') + 1));
+
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        TcpClusterBus bus = new TcpClusterBus(meterRegistry, "node" + index, "127.0.0.1", port, peers, queueCapacity,
+                "bench", 1000, 5000);
+        Histogram latency = new ConcurrentHistogram(MAX_LATENCY, 3);
+        LongAdder received = new LongAdder();
+        CountDownLatch connected = new CountDownLatch(addresses.length - 1);
+        bus.addListener(new ClusterBus.Listener() {
+            @Override
+            public void onMessage(String fromNode, ClusterMessage message) {
+                long now = System.nanoTime();
+                long sentAt = ByteBuffer.wrap(message.payload()).getLong();
+                if (sentAt >= windowStart && sentAt < windowEnd) {
+                    latency.recordValue(Math.min(MAX_LATENCY, Math.max(0, now - sentAt)));
+                    received.increment();
+                }
+            }
+
+            @Override
+            public void onPeerConnected(String nodeId) {
+                connected.countDown();
+            }
+        });
+        bus.start();
+        if (!connected.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("node" + index + " did not connect to all peers");
+        }
+        System.out.println(READY);
+        BufferedReader input = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        long start = Long.parseLong(input.readLine().trim());
+        windowEnd = start + warmupNanos + measureNanos;
+        windowStart = start + warmupNanos;
+        LockSupport.parkNanos(start - System.nanoTime());
+
+        List<String> targets = new ArrayList<>();
+        for (int i = 0; i < addresses.length; i++) {
+            if (i != index) {
+                targets.add("node" + i);
+            }
+        }
+        String user = "user" + index;
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+        long sent = 0;
+        long intended = start;
+        int next = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                if (intended > now) {
+                    LockSupport.parkNanos(intended - now);
+                }
+            } else {
+                intended = now;
+            }
+            if (intended >= windowEnd) {
+                break;
+            }
+            byte[] payload = new byte[payloadBytes];
+            ByteBuffer.wrap(payload).putLong(intended);
+            boolean queued = bus.send(targets.get(next), ClusterMessage.deliver(user, DESTINATION, payload, null));
+            if (queued) {
+                next = (next + 1) % targets.size();
+                if (intended >= windowStart) {
+                    sent++;
+                }
+            } else if (rate == 0) {
+                // Queue full: let the writer catch up instead of spinning on drops
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+            intended += interval;
+        }
+        // Let the last messages arrive
+        TimeUnit.SECONDS.sleep(2);
+
+        ByteBuffer encoded = ByteBuffer.allocate(latency.getNeededByteBufferCapacity());
+        int length = latency.encodeIntoCompressedByteBuffer(encoded);
+        long dropped = (long) meterRegistry.get("chat.cluster.dropped").counter().count();
+        System.out.println(RESULT + sent + " " + received.sum() + " " + dropped + " "
+                + Base64.getEncoder().encodeToString(Arrays.copyOf(encoded.array(), length)));
+        bus.stop();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.demo.bench;
+
+import com.example.demo.util.EncryptionUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Throughput and allocation of EncryptionUtil against the previous per-call implementation.
+// Usage: ./mvnw -Pbench test-compile exec:exec -Dexec.executable=java \
+//   -Dexec.args="-cp %classpath org.openjdk.jmh.Main EncryptionBenchmark -prof gc"
+// gc.alloc.rate.norm in the output is bytes allocated per operation.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncryptionBenchmark {
+
+    private static final String KEY = "benchSecretKey123";
+
+    @Param({"64", "1024", "16384"})
+    private int payloadSize;
+
+    private EncryptionUtil encryptionUtil;
+    private String plainText;
+    private String encryptedText;
+    private byte[] plainBytes;
+    private byte[] encryptedBytes;
+    private ByteBuffer plainBuffer;
+    private ByteBuffer encryptedBuffer;
+    private ByteBuffer outputBuffer;
+
+    @Setup
+    public void setUp() {
+        encryptionUtil = new EncryptionUtil(KEY);
+        StringBuilder text = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        plainText = text.toString();
+        encryptedText = encryptionUtil.encrypt(plainText);
+        plainBytes = plainText.getBytes(StandardCharsets.UTF_8);
+        encryptedBytes = encryptionUtil.encrypt(plainBytes);
+        plainBuffer = ByteBuffer.allocateDirect(plainBytes.length).put(plainBytes).flip();
+        encryptedBuffer = ByteBuffer.allocateDirect(encryptedBytes.length).put(encryptedBytes).flip();
+        outputBuffer = ByteBuffer.allocateDirect(EncryptionUtil.encryptedLength(plainBytes.length));
+    }
+
+    @Benchmark
+    public String encryptString() {
+        return encryptionUtil.encrypt(plainText);
+    }
+
+    @Benchmark
+    public String decryptString() {
+        return encryptionUtil.decrypt(encryptedText);
+    }
+
+    @Benchmark
+    public byte[] encryptBytes() {
+        return encryptionUtil.encrypt(plainBytes);
+    }
+
+    @Benchmark
+    public byte[] decryptBytes() {
+        return encryptionUtil.decrypt(encryptedBytes);
+    }
+
+    @Benchmark
+    public int encryptBuffer() {
+        plainBuffer.rewind();
+        outputBuffer.clear();
+        return encryptionUtil.encrypt(plainBuffer, outputBuffer);
+    }
+
+    @Benchmark
+    public int decryptBuffer() {
+        encryptedBuffer.rewind();
+        outputBuffer.clear();
+        return encryptionUtil.decrypt(encryptedBuffer, outputBuffer);
+    }
+
+    @Benchmark
+    public String legacyEncryptString() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.ENCRYPT_MODE, legacyKey());
+        return Base64.getEncoder().encodeToString(cipher.doFinal(plainText.getBytes()));
+    }
+
+    @Benchmark
+    public String legacyDecryptString() throws Exception {
+        Cipher cipher = Cipher.getInstance("AES");
+        cipher.init(Cipher.DECRYPT_MODE, legacyKey());
+        return new String(cipher.doFinal(Base64.getDecoder().decode(encryptedText)));
+    }
+
+    // What EncryptionUtil did on every call before the key was cached
+    private static SecretKeySpec legacyKey() {
+        byte[] key = KEY.getBytes();
+        byte[] keyBytes = new byte[16];
+        System.arraycopy(key, 0, keyBytes, 0, Math.min(key.length, keyBytes.length));
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+}
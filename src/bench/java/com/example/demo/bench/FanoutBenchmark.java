@@ -0,0 +1,104 @@
+package com.example.demo.bench;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.service.ClusterBus;
+import com.example.demo.service.ClusterRoutes;
+import com.example.demo.service.InMemoryClusterBus;
+import com.example.demo.service.StompFanout;
+import com.example.demo.service.StompSessionFormats;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.converter.ByteArrayMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.StringMessageConverter;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.web.socket.messaging.DefaultSimpUserRegistry;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Cost per delivered /queue/messages frame of the instant fan-out to sender and receiver: the
+// previous convertAndSendToUser per recipient against StompFanout's encode-once send. The broker
+// channel is a sink, so only conversion and message building are measured. Run with
+// -Djmh.args="-prof gc" for bytes allocated per delivered message (gc.alloc.rate.norm).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanoutBenchmark {
+
+    private SimpMessagingTemplate messagingTemplate;
+    private StompFanout stompFanout;
+    private ChatMessage chatMessage;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ObjectMapper objectMapper = bootObjectMapperBuilder().build();
+        MessageChannel sink = (message, timeout) -> {
+            blackhole.consume(message);
+            return true;
+        };
+        // Same converters as the broker messaging template Spring configures for STOMP
+        MappingJackson2MessageConverter jackson = new MappingJackson2MessageConverter();
+        jackson.setObjectMapper(objectMapper);
+        messagingTemplate = new SimpMessagingTemplate(sink);
+        messagingTemplate.setMessageConverter(new CompositeMessageConverter(
+                List.of(new StringMessageConverter(), new ByteArrayMessageConverter(), jackson)));
+        stompFanout = singleNodeFanout(messagingTemplate, objectMapper);
+
+        chatMessage = new ChatMessage();
+        chatMessage.setContent("Hey, are we still on for tomorrow? Let me know when you are free.");
+        chatMessage.setSenderId(1L);
+        chatMessage.setSenderUsername("alice");
+        chatMessage.setReceiverId(2L);
+        chatMessage.setReceiverUsername("bob");
+        chatMessage.setMessageType("TEXT");
+        chatMessage.setTimestamp(LocalDateTime.now());
+        chatMessage.setClientMessageId("6f1c2a9e-1f4b-4d43-9f0e-2b7d8c1a5e33");
+    }
+
+    // Boot's JacksonAutoConfiguration writes dates as ISO-8601 strings
+    // A cluster of one, as the application runs by default
+    static StompFanout singleNodeFanout(SimpMessagingTemplate messagingTemplate, ObjectMapper objectMapper) {
+        ClusterBus clusterBus = new InMemoryClusterBus("local");
+        return new StompFanout(messagingTemplate, objectMapper, bootObjectMapperBuilder(), new StompSessionFormats(),
+                new DefaultSimpUserRegistry(), clusterBus, new ClusterRoutes(clusterBus, new SimpleMeterRegistry()));
+    }
+
+    static Jackson2ObjectMapperBuilder bootObjectMapperBuilder() {
+        return Jackson2ObjectMapperBuilder.json().featuresToDisable(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void convertPerRecipient() {
+        messagingTemplate.convertAndSendToUser(chatMessage.getReceiverUsername(), "/queue/messages", chatMessage);
+        messagingTemplate.convertAndSendToUser(chatMessage.getSenderUsername(), "/queue/messages", chatMessage);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2)
+    public void encodeOnce() {
+        stompFanout.sendToUsers("/queue/messages", chatMessage,
+                chatMessage.getReceiverUsername(), chatMessage.getSenderUsername());
+    }
+}
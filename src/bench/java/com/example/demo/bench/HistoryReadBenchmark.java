@@ -0,0 +1,85 @@
+package com.example.demo.bench;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.model.User;
+import com.example.demo.service.ChatService;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Latency and JDBC statements per call of ChatService.getMessagesBetweenUsers for several page sizes.
+// Usage: ./mvnw -Pbench test-compile exec:java -Dexec.mainClass=com.example.demo.bench.HistoryReadBenchmark
+// -Dbench.parallelThreshold=N sets app.chat.history.parallel-decrypt-threshold.
+public class HistoryReadBenchmark {
+
+    private static final int[] PAGE_SIZES = {50, 500, 5_000};
+
+    public static void main(String[] args) {
+        int iterations = Integer.getInteger("bench.iterations", 200);
+        int contentLength = Integer.getInteger("bench.contentLength", 200);
+        String threshold = System.getProperty("bench.parallelThreshold");
+
+        List<String> properties = new ArrayList<>();
+        if (threshold != null) {
+            properties.add("app.chat.history.parallel-decrypt-threshold=" + threshold);
+        }
+        try (ConfigurableApplicationContext context = BenchApplication.start(properties.toArray(new String[0]))) {
+            List<User> users = BenchApplication.createUsers(context, 2);
+            ChatService chatService = context.getBean(ChatService.class);
+            JdbcStatementCounter counter = context.getBean(JdbcStatementCounter.class);
+            seed(chatService, users, PAGE_SIZES[PAGE_SIZES.length - 1], contentLength);
+
+            Long userId1 = users.get(0).getId();
+            Long userId2 = users.get(1).getId();
+            List<String> rows = new ArrayList<>();
+            for (int size : PAGE_SIZES) {
+                int runs = Math.max(20, iterations * PAGE_SIZES[0] / size);
+                for (int i = 0; i < runs; i++) {
+                    chatService.getMessagesBetweenUsers(userId1, userId2, 0, size);
+                }
+
+                long[] latencies = new long[runs];
+                counter.reset();
+                for (int i = 0; i < runs; i++) {
+                    long start = System.nanoTime();
+                    List<ChatMessage> page = chatService.getMessagesBetweenUsers(userId1, userId2, 0, size);
+                    latencies[i] = System.nanoTime() - start;
+                    if (page.size() != size) {
+                        throw new IllegalStateException("Expected " + size + " messages, got " + page.size());
+                    }
+                }
+                Arrays.sort(latencies);
+                rows.add(String.format("%-10d %14.1f %12.2f %12.2f", size,
+                        (double) counter.executions() / runs,
+                        BenchApplication.percentile(latencies, 0.5),
+                        BenchApplication.percentile(latencies, 0.99)));
+            }
+
+            System.out.println();
+            System.out.printf("%-10s %14s %12s %12s%n", "page", "stmts/call", "p50 ms", "p99 ms");
+            rows.forEach(System.out::println);
+        }
+        System.exit(0);
+    }
+
+    private static void seed(ChatService chatService, List<User> users, int messages, int contentLength) {
+        String padding = "x".repeat(contentLength);
+        List<ChatMessage> batch = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            ChatMessage message = new ChatMessage();
+            message.setSenderId(users.get(i % 2).getId());
+            message.setReceiverId(users.get((i + 1) % 2).getId());
+            message.setContent(i + " " + padding);
+            batch.add(message);
+            if (batch.size() == 500) {
+                chatService.saveMessages(batch);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            chatService.saveMessages(batch);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.example.demo.bench;
+
+import com.example.demo.model.Message;
+import com.example.demo.model.User;
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// The messages table as it was mapped before pooled sequences: same columns and constraint, with
+// an IDENTITY id, which makes Hibernate execute every insert on its own. Lives on its own table
+// in the bench profile only, so MessageInsertBenchmark can compare both id strategies.
+@Entity
+@Table(name = "identity_messages", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_identity_messages_sender_client_message_id",
+                columnNames = {"sender_id", "client_message_id"})
+})
+@Data
+@NoArgsConstructor
+public class IdentityMessage {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "conversation_id")
+    private Long conversationId;
+
+    @Column(name = "room_seq")
+    private Long roomSeq;
+
+    @Column(name = "client_message_id", length = 64)
+    private String clientMessageId;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "sender_id", nullable = false)
+    private User sender;
+
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "receiver_id", nullable = false)
+    private User receiver;
+
+    @Column(name = "encrypted_content", columnDefinition = "TEXT", nullable = false)
+    private String encryptedContent;
+
+    @Column(name = "message_type", nullable = false)
+    @Enumerated(EnumType.STRING)
+    private Message.MessageType messageType = Message.MessageType.TEXT;
+
+    @Column(name = "created_at", nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(name = "is_read", nullable = false)
+    private Boolean isRead = false;
+}
@@ -0,0 +1,6 @@
+package com.example.demo.bench;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface IdentityMessageRepository extends JpaRepository<IdentityMessage, Long> {
+}
@@ -0,0 +1,82 @@
+package com.example.demo.bench;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.concurrent.atomic.LongAdder;
+
+// Wraps the application DataSource and counts JDBC round trips (execute* and executeBatch calls).
+public class JdbcStatementCounter implements BeanPostProcessor {
+
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder batchedStatements = new LongAdder();
+
+    public long executions() {
+        return executions.sum();
+    }
+
+    public long batchedStatements() {
+        return batchedStatements.sum();
+    }
+
+    public void reset() {
+        executions.reset();
+        batchedStatements.reset();
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) {
+        if (bean instanceof DataSource dataSource) {
+            return proxy(DataSource.class, dataSource, (target, method, args) -> {
+                Object result = method.invoke(target, args);
+                return result instanceof Connection connection ? wrapConnection(connection) : result;
+            });
+        }
+        return bean;
+    }
+
+    private Connection wrapConnection(Connection connection) {
+        return proxy(Connection.class, connection, (target, method, args) -> {
+            Object result = method.invoke(target, args);
+            if (result instanceof Statement statement) {
+                return wrapStatement(statement, method.getReturnType());
+            }
+            return result;
+        });
+    }
+
+    private Statement wrapStatement(Statement statement, Class<?> type) {
+        @SuppressWarnings("unchecked")
+        Class<Statement> statementType = (Class<Statement>) type;
+        return proxy(statementType, statement, (target, method, args) -> {
+            String name = method.getName();
+            if (name.equals("addBatch")) {
+                batchedStatements.increment();
+            } else if (name.startsWith("execute")) {
+                executions.increment();
+            }
+            return method.invoke(target, args);
+        });
+    }
+
+    private static <T> T proxy(Class<T> type, T target, Handler<T> handler) {
+        InvocationHandler invocationHandler = (proxy, method, args) -> {
+            try {
+                return handler.invoke(target, method, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(JdbcStatementCounter.class.getClassLoader(),
+                new Class<?>[]{type}, invocationHandler));
+    }
+
+    private interface Handler<T> {
+        Object invoke(T target, java.lang.reflect.Method method, Object[] args) throws Throwable;
+    }
+}
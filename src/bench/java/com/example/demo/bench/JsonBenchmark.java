@@ -0,0 +1,78 @@
+package com.example.demo.bench;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.dto.FriendRequestResponse;
+import com.example.demo.model.FriendRequest;
+import com.example.demo.model.User;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.time.LocalDateTime;
+
+// Jackson cost of the payloads sent over STOMP and returned by the REST API, using the
+// same ObjectMapper defaults Spring Boot builds.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+
+    private ObjectMapper objectMapper;
+    private ChatMessage chatMessage;
+    private byte[] chatMessageJson;
+    private FriendRequestResponse friendRequestResponse;
+
+    @Setup
+    public void setUp() throws Exception {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+
+        chatMessage = new ChatMessage();
+        chatMessage.setId(123_456L);
+        chatMessage.setContent("Hey, are we still on for tomorrow? Let me know when you are free.");
+        chatMessage.setSenderId(1L);
+        chatMessage.setSenderUsername("alice");
+        chatMessage.setSenderProfileImageUrl("https://res.cloudinary.com/demo/image/upload/v1/profile/alice.jpg");
+        chatMessage.setReceiverId(2L);
+        chatMessage.setReceiverUsername("bob");
+        chatMessage.setReceiverProfileImageUrl("https://res.cloudinary.com/demo/image/upload/v1/profile/bob.jpg");
+        chatMessage.setMessageType("TEXT");
+        chatMessage.setTimestamp(LocalDateTime.now());
+        chatMessage.setIsRead(false);
+        chatMessage.setRoomId("1_2");
+        chatMessageJson = objectMapper.writeValueAsBytes(chatMessage);
+
+        User sender = new User("alice", "alice@example.com", "password");
+        sender.setId(1L);
+        User receiver = new User("bob", "bob@example.com", "password");
+        receiver.setId(2L);
+        FriendRequest friendRequest = new FriendRequest(sender, receiver);
+        friendRequest.setId(42L);
+        friendRequest.setUpdatedAt(LocalDateTime.now());
+        friendRequestResponse = new FriendRequestResponse(friendRequest);
+    }
+
+    @Benchmark
+    public byte[] serializeChatMessage() throws Exception {
+        return objectMapper.writeValueAsBytes(chatMessage);
+    }
+
+    @Benchmark
+    public ChatMessage deserializeChatMessage() throws Exception {
+        return objectMapper.readValue(chatMessageJson, ChatMessage.class);
+    }
+
+    @Benchmark
+    public byte[] serializeFriendRequestResponse() throws Exception {
+        return objectMapper.writeValueAsBytes(friendRequestResponse);
+    }
+}
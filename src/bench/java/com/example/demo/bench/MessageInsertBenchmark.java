@@ -0,0 +1,99 @@
+package com.example.demo.bench;
+
+import com.example.demo.model.Message;
+import com.example.demo.model.User;
+import com.example.demo.repository.MessageRepository;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Inserts messages through saveAll and reports JDBC round trips per row, once per id strategy:
+//   pooled    Message on the messages table, @PooledSequence ids (batched inserts)
+//   identity  IdentityMessage, the same columns on identity_messages with IDENTITY ids, as before
+// Usage: ./mvnw -Pbench test-compile exec:java -Dexec.mainClass=com.example.demo.bench.MessageInsertBenchmark
+//   -Dbench.ids=pooled,identity   strategies to run, one after another
+//   -Dbench.rows=100000           rows per measured run
+//   -Dbench.chunk=1000            rows per saveAll call
+public class MessageInsertBenchmark {
+
+    public static void main(String[] args) {
+        List<String> strategies = Arrays.stream(System.getProperty("bench.ids", "pooled,identity").split(","))
+                .map(String::trim).toList();
+        int rows = Integer.getInteger("bench.rows", 100_000);
+        int chunk = Integer.getInteger("bench.chunk", 1_000);
+
+        try (ConfigurableApplicationContext context = BenchApplication.start()) {
+            List<User> users = BenchApplication.createUsers(context, 2);
+            MessageRepository messageRepository = context.getBean(MessageRepository.class);
+            IdentityMessageRepository identityMessageRepository = context.getBean(IdentityMessageRepository.class);
+            JdbcStatementCounter counter = context.getBean(JdbcStatementCounter.class);
+
+            System.out.println();
+            for (String strategy : strategies) {
+                Inserter inserter = switch (strategy) {
+                    case "pooled" -> size -> messageRepository.saveAll(messages(size, users, MessageInsertBenchmark::message));
+                    case "identity" -> size -> identityMessageRepository.saveAll(
+                            messages(size, users, MessageInsertBenchmark::identityMessage));
+                    default -> throw new IllegalArgumentException("Unknown id strategy " + strategy);
+                };
+
+                // Warm up JIT and connection pool
+                insert(inserter, Math.min(rows, 10_000), chunk);
+
+                counter.reset();
+                long start = System.nanoTime();
+                insert(inserter, rows, chunk);
+                long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+
+                System.out.printf("%-8s rows=%d chunk=%d wall=%d ms rows/sec=%.0f jdbc round trips=%d (%.3f per row)"
+                                + " batched statements=%d%n",
+                        strategy, rows, chunk, elapsedMs, rows * 1000.0 / Math.max(1, elapsedMs),
+                        counter.executions(), counter.executions() / (double) rows, counter.batchedStatements());
+            }
+        }
+        System.exit(0);
+    }
+
+    private interface Inserter {
+        void insert(int size);
+    }
+
+    private static void insert(Inserter inserter, int rows, int chunk) {
+        for (int offset = 0; offset < rows; offset += chunk) {
+            inserter.insert(Math.min(chunk, rows - offset));
+        }
+    }
+
+    private static <T> List<T> messages(int size, List<User> users, MessageFactory<T> factory) {
+        List<T> messages = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            messages.add(factory.create(users.get(i % 2), users.get((i + 1) % 2), "ciphertext-" + i));
+        }
+        return messages;
+    }
+
+    private interface MessageFactory<T> {
+        T create(User sender, User receiver, String content);
+    }
+
+    private static Message message(User sender, User receiver, String content) {
+        Message message = new Message();
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setEncryptedContent(content);
+        message.setCreatedAt(LocalDateTime.now());
+        return message;
+    }
+
+    private static IdentityMessage identityMessage(User sender, User receiver, String content) {
+        IdentityMessage message = new IdentityMessage();
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setEncryptedContent(content);
+        message.setCreatedAt(LocalDateTime.now());
+        return message;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.demo.bench;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.model.User;
+import com.example.demo.service.MessageBatchWriter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Throughput and commit latency of the group-commit writer for several batch sizes.
+// Usage: ./mvnw -Pbench test-compile exec:java -Dexec.mainClass=com.example.demo.bench.MessageWriterBenchmark
+public class MessageWriterBenchmark {
+
+    private static final int[] BATCH_SIZES = {1, 16, 64, 256};
+
+    public static void main(String[] args) throws Exception {
+        int messages = Integer.getInteger("bench.messages", 20_000);
+        int producers = Integer.getInteger("bench.producers", 8);
+
+        List<String> rows = new ArrayList<>();
+        for (int batchSize : BATCH_SIZES) {
+            rows.add(run(batchSize, messages, producers));
+        }
+
+        System.out.println();
+        System.out.printf("%-10s %12s %16s %16s %16s%n",
+                "batch", "msgs/sec", "commit p50 ms", "commit p99 ms", "ack p99 ms");
+        rows.forEach(System.out::println);
+        System.exit(0);
+    }
+
+    private static String run(int batchSize, int messages, int producers) throws Exception {
+        try (ConfigurableApplicationContext context = BenchApplication.start(
+                "app.chat.writer.batch-size=" + batchSize,
+                "app.chat.writer.queue-capacity=" + messages,
+                // Producers submit everything at once; measure the writer, not the admission limit
+                "app.chat.writer.limit.enabled=false")) {
+            List<User> users = BenchApplication.createUsers(context, 2);
+            MessageBatchWriter writer = context.getBean(MessageBatchWriter.class);
+
+            // Warm up the persistence path before measuring
+            submitAll(writer, users, Math.min(2_000, messages), producers, null);
+
+            AtomicLongArray latencies = new AtomicLongArray(messages);
+            long start = System.nanoTime();
+            submitAll(writer, users, messages, producers, latencies);
+            long elapsed = System.nanoTime() - start;
+
+            long[] sorted = new long[messages];
+            for (int i = 0; i < messages; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            double throughput = messages / (elapsed / 1_000_000_000.0);
+
+            ValueAtPercentile[] commit = context.getBean(MeterRegistry.class)
+                    .get("chat.writer.commit").timer().takeSnapshot().percentileValues();
+            return String.format("%-10d %12.0f %16.2f %16.2f %16.2f", batchSize, throughput,
+                    commit[0].value(TimeUnit.MILLISECONDS), commit[1].value(TimeUnit.MILLISECONDS),
+                    BenchApplication.percentile(sorted, 0.99));
+        }
+    }
+
+    private static void submitAll(MessageBatchWriter writer, List<User> users, int messages, int producers,
+                                  AtomicLongArray latencies) throws InterruptedException, ExecutionException {
+        CountDownLatch done = new CountDownLatch(messages);
+        List<CompletableFuture<?>> failures = new ArrayList<>();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = producer; i < messages; i += producers) {
+                    int index = i;
+                    User sender = users.get(i % 2);
+                    User receiver = users.get((i + 1) % 2);
+                    long submittedAt = System.nanoTime();
+                    writer.submit(message(sender, receiver, i)).whenComplete((saved, error) -> {
+                        if (latencies != null) {
+                            latencies.set(index, System.nanoTime() - submittedAt);
+                        }
+                        if (error != null) {
+                            synchronized (failures) {
+                                failures.add(CompletableFuture.failedFuture(error));
+                            }
+                        }
+                        done.countDown();
+                    });
+                }
+            });
+            threads[p].start();
+        }
+        done.await();
+        if (!failures.isEmpty()) {
+            failures.get(0).get();
+        }
+    }
+
+    private static ChatMessage message(User sender, User receiver, int i) {
+        ChatMessage message = new ChatMessage();
+        message.setSenderId(sender.getId());
+        message.setSenderUsername(sender.getUsername());
+        message.setReceiverId(receiver.getId());
+        message.setReceiverUsername(receiver.getUsername());
+        message.setContent("benchmark message " + i);
+        return message;
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.demo.bench;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.dto.MessageAck;
+import com.example.demo.service.StompFanout;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+// JSON against CBOR for the STOMP payloads of one chat message with the load generator's default
+// mix: the instant copy and the persisted update, each delivered to sender and receiver, plus two
+// typing frames. encodeMix is the serialization CPU per chat message (each payload is encoded
+// once per format, as StompFanout does); the wire bytes of the mix are printed at setup.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PayloadEncodingBenchmark {
+
+    @Param({"json", "cbor"})
+    public String format;
+
+    @Param({"false", "true"})
+    public boolean compactAcks;
+
+    private StompFanout stompFanout;
+    private boolean binary;
+    private ChatMessage instant;
+    private Object update;
+    private ChatMessage typing;
+
+    @Setup
+    public void setUp() {
+        stompFanout = FanoutBenchmark.singleNodeFanout(new SimpMessagingTemplate((message, timeout) -> true),
+                FanoutBenchmark.bootObjectMapperBuilder().build());
+        binary = "cbor".equals(format);
+
+        // As sent by the browser client, after the server's defaults
+        instant = new ChatMessage();
+        instant.setContent("Hey, are we still on for tomorrow? Let me know when you are free.");
+        instant.setSenderId(1_024L);
+        instant.setSenderUsername("alice.smith");
+        instant.setReceiverId(2_048L);
+        instant.setReceiverUsername("bob.jones");
+        instant.setMessageType("TEXT");
+        instant.setTimestamp(LocalDateTime.now());
+        instant.setClientMessageId("6f1c2a9e-1f4b-4d43-9f0e-2b7d8c1a5e33");
+
+        ChatMessage saved = new ChatMessage(123_456L, instant.getContent(), "alice.smith", "bob.jones", 1_024L,
+                2_048L, "https://res.cloudinary.com/demo/image/upload/v1/profile/alice.jpg",
+                "https://res.cloudinary.com/demo/image/upload/v1/profile/bob.jpg", "TEXT", instant.getTimestamp(),
+                false, "1024_2048", 42L, instant.getClientMessageId(), ChatMessage.Type.CHAT);
+        update = compactAcks ? MessageAck.of(saved) : saved;
+
+        typing = new ChatMessage();
+        typing.setSenderId(1_024L);
+        typing.setSenderUsername("alice.smith");
+        typing.setReceiverId(2_048L);
+        typing.setReceiverUsername("bob.jones");
+        typing.setType(ChatMessage.Type.TYPING);
+
+        int instantBytes = stompFanout.encode(instant, binary).length;
+        int updateBytes = stompFanout.encode(update, binary).length;
+        int typingBytes = stompFanout.encode(typing, binary).length;
+        System.out.printf("%n%s%s wire bytes: message %d, update %d, typing %d; per chat message %d%n",
+                format, compactAcks ? " (compact acks)" : "", instantBytes, updateBytes, typingBytes,
+                2 * instantBytes + 2 * updateBytes + 2 * typingBytes);
+    }
+
+    @Benchmark
+    public void encodeMix(Blackhole blackhole) {
+        blackhole.consume(stompFanout.encode(instant, binary));
+        blackhole.consume(stompFanout.encode(update, binary));
+        blackhole.consume(stompFanout.encode(typing, binary));
+        blackhole.consume(stompFanout.encode(typing, binary));
+    }
+}
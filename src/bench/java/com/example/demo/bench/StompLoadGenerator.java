@@ -0,0 +1,490 @@
+package com.example.demo.bench;
+
+import com.example.demo.model.User;
+import com.example.demo.util.JwtUtil;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.messaging.converter.SimpleMessageConverter;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompFrameHandler;
+import org.springframework.messaging.simp.stomp.StompHeaders;
+import org.springframework.messaging.simp.stomp.StompSession;
+import org.springframework.messaging.simp.stomp.StompSessionHandlerAdapter;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.messaging.WebSocketStompClient;
+
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// End-to-end load on the /ws STOMP endpoint: boots the application on an embedded H2 database,
+// connects N authenticated STOMP sessions and has them send /app/chat.sendMessage and
+// /app/chat.typing at a stepped offered rate. Latencies are measured from the intended send
+// time (no coordinated omission) to the peer's /user/queue/messages copy (delivery), to the
+// sender's /user/queue/message-update (persisted) and to the peer's /user/queue/typing.
+// The rate is raised until p99 misses the SLO or frames go missing; the last passing step is
+// reported as the maximum sustainable throughput for that session count.
+//
+// Usage: ./mvnw -Pbench test-compile exec:java -Dexec.mainClass=com.example.demo.bench.StompLoadGenerator
+//   -Dbench.sessions=1000,10000,50000  session counts, run one after another (default)
+//   -Dbench.startRate=100              messages per second in the first step, across all sessions
+//   -Dbench.rateFactor=2               rate multiplier between steps
+//   -Dbench.maxRate=100000             stop ramping here
+//   -Dbench.typingRatio=2              typing frames per chat message; the server forwards at most
+//                                      one per pair per app.chat.typing.window-ms
+//   -Dbench.stepSeconds=10             measured duration of each step
+//   -Dbench.warmupSeconds=15           unmeasured step at the start rate after connecting
+//   -Dbench.sloMillis=250              p99 bound for delivery and persistence acknowledgement
+//   -Dbench.hosts=127.0.0.1            loopback addresses to spread connections over
+//   -Dbench.senderThreads=4            client threads sending frames
+//   -Dbench.appProperties=a=b;c=d      extra application properties, e.g. to compare
+//                                      spring.threads.virtual.enabled=true against the default
+//   -Dbench.ackFormat=full             "compact" asks for MessageAck frames on /queue/message-update
+//   -Dbench.deflate=false              offer permessage-deflate; the server only accepts it with
+//                                      app.ws.deflate.enabled=true (see bench.appProperties)
+//
+// "B/msg" is the payload bytes of /queue/messages and /queue/message-update frames received per
+// message sent (two copies plus two updates), "upd B" the mean payload of one update frame.
+// Both are measured before compression; with deflate the server's ratio and cost are printed at the end.
+//
+// Every session costs a socket on both ends of the loopback connection, so 10k sessions need
+// `ulimit -n` above 20k and 50k sessions above 100k. One client address only has ~28k ephemeral
+// ports, so for 50k list several addresses, e.g. -Dbench.hosts=127.0.0.1,127.0.0.2,127.0.0.3.
+// Generator and server share the machine; for a production-like figure run it on a host with
+// more cores than the server under test would get.
+public class StompLoadGenerator {
+
+    // Opens the content and, in compact acks, the clientMessageId, which carries the same value
+    private static final String CONTENT_MARKER = "\":\"lt:";
+
+    private final int sessions;
+    private final List<User> users;
+    private final JwtUtil jwtUtil;
+    private final List<String> urls;
+    private final ExecutorService[] senders;
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor();
+    private final WebSocketStompClient stompClient;
+
+    private final Recorder delivery = new Recorder(3);
+    private final Recorder persisted = new Recorder(3);
+    private final Recorder typing = new Recorder(3);
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder acknowledged = new LongAdder();
+    private final LongAdder typingDelivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder messageBytes = new LongAdder();
+    private final LongAdder updateBytes = new LongAdder();
+    private final LongAdder updateFrames = new LongAdder();
+
+    private Client[] clients;
+    // Frames sent before this belong to an earlier step and are not counted
+    private volatile long stepStart;
+
+    StompLoadGenerator(int sessions, List<User> users, JwtUtil jwtUtil, List<String> urls, int senderThreads) {
+        this.sessions = sessions;
+        this.users = users;
+        this.jwtUtil = jwtUtil;
+        this.urls = urls;
+        this.senders = new ExecutorService[senderThreads];
+        for (int i = 0; i < senderThreads; i++) {
+            senders[i] = Executors.newSingleThreadExecutor();
+        }
+        StandardWebSocketClient webSocketClient = new StandardWebSocketClient();
+        this.stompClient = new WebSocketStompClient(webSocketClient);
+        // Frames are handled as raw JSON bytes; the generator only needs the content marker
+        stompClient.setMessageConverter(new SimpleMessageConverter());
+        stompClient.setDefaultHeartbeat(new long[]{0, 0});
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] sessionCounts = Arrays.stream(System.getProperty("bench.sessions", "1000,10000,50000").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+        double startRate = Double.parseDouble(System.getProperty("bench.startRate", "100"));
+        double rateFactor = Double.parseDouble(System.getProperty("bench.rateFactor", "2"));
+        double maxRate = Double.parseDouble(System.getProperty("bench.maxRate", "100000"));
+        double typingRatio = Double.parseDouble(System.getProperty("bench.typingRatio", "2"));
+        int stepSeconds = Integer.getInteger("bench.stepSeconds", 10);
+        int warmupSeconds = Integer.getInteger("bench.warmupSeconds", 15);
+        long sloMillis = Long.getLong("bench.sloMillis", 250);
+        int senderThreads = Integer.getInteger("bench.senderThreads", 4);
+        List<String> hosts = Arrays.stream(System.getProperty("bench.hosts", "127.0.0.1").split(","))
+                .map(String::trim).toList();
+        int maxSessions = Arrays.stream(sessionCounts).max().orElse(0);
+
+        List<String> appProperties = new ArrayList<>(List.of(
+                "server.tomcat.max-connections=" + (maxSessions + 1_000),
+                "server.tomcat.accept-count=1000"));
+        for (String property : System.getProperty("bench.appProperties", "").split(";")) {
+            if (!property.isBlank()) {
+                appProperties.add(property.trim());
+            }
+        }
+
+        try (ConfigurableApplicationContext context = BenchApplication.start(appProperties.toArray(new String[0]))) {
+            int port = context.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+            List<String> urls = hosts.stream().map(host -> "ws://" + host + ":" + port + "/ws/websocket").toList();
+            // Sessions are paired 2i <-> 2i+1, so an even number of users
+            List<User> users = BenchApplication.createUsers(context, "load", maxSessions + maxSessions % 2);
+            JwtUtil jwtUtil = context.getBean(JwtUtil.class);
+
+            List<String> summary = new ArrayList<>();
+            for (int count : sessionCounts) {
+                StompLoadGenerator generator = new StompLoadGenerator(count - count % 2, users, jwtUtil, urls,
+                        senderThreads);
+                try {
+                    generator.connect();
+                    if (warmupSeconds > 0) {
+                        generator.runStep(startRate, startRate * typingRatio, warmupSeconds);
+                    }
+                    summary.add(generator.ramp(startRate, rateFactor, maxRate, typingRatio, stepSeconds, sloMillis));
+                } finally {
+                    generator.close();
+                }
+            }
+
+            System.out.println();
+            System.out.printf("Maximum sustainable throughput (p99 <= %d ms, >= 99%% delivered)%n", sloMillis);
+            System.out.printf("%-10s %10s %30s %30s%n", "sessions", "msg/s",
+                    "delivery p50/p99/p99.9 ms", "persisted p50/p99/p99.9 ms");
+            summary.forEach(System.out::println);
+            printDeflate(context.getBean(MeterRegistry.class));
+        }
+    }
+
+    private static void printDeflate(MeterRegistry meterRegistry) {
+        double raw = meterRegistry.get("chat.ws.deflate.bytes").tag("form", "raw").counter().count();
+        if (raw == 0) {
+            return;
+        }
+        double compressed = meterRegistry.get("chat.ws.deflate.bytes").tag("form", "compressed").counter().count();
+        double skipped = meterRegistry.get("chat.ws.deflate.messages").tag("outcome", "below-threshold")
+                .counter().count();
+        Timer time = meterRegistry.get("chat.ws.deflate.time").timer();
+        System.out.printf("%npermessage-deflate: ratio %.3f (%.0f MB -> %.0f MB), %.1f us per compressed message, "
+                        + "%.0f s CPU in total, %.0f messages under the threshold%n",
+                compressed / raw, raw / 1e6, compressed / 1e6, time.mean(TimeUnit.MICROSECONDS),
+                time.totalTime(TimeUnit.SECONDS), skipped);
+    }
+
+    void connect() throws InterruptedException {
+        clients = new Client[sessions];
+        Semaphore inFlight = new Semaphore(Integer.getInteger("bench.connectConcurrency", 200));
+        List<CompletableFuture<StompSession>> futures = new ArrayList<>(sessions);
+        long start = System.nanoTime();
+        for (int i = 0; i < sessions; i++) {
+            User user = users.get(i);
+            User peer = users.get(i ^ 1);
+            Client client = new Client(i, user, peer);
+            clients[i] = client;
+
+            StompHeaders connectHeaders = new StompHeaders();
+            connectHeaders.add("Authorization", "Bearer " + jwtUtil.generateToken(user.getEmail()));
+            connectHeaders.add("ack-format", System.getProperty("bench.ackFormat", "full"));
+            WebSocketHttpHeaders handshakeHeaders = new WebSocketHttpHeaders();
+            if (Boolean.getBoolean("bench.deflate")) {
+                handshakeHeaders.setSecWebSocketExtensions(List.of(new WebSocketExtension("permessage-deflate")));
+            }
+            inFlight.acquire();
+            CompletableFuture<StompSession> future = stompClient.connectAsync(urls.get(i % urls.size()),
+                    handshakeHeaders, connectHeaders, client);
+            future.whenComplete((session, error) -> inFlight.release());
+            futures.add(future);
+        }
+        int failed = 0;
+        for (int i = 0; i < sessions; i++) {
+            try {
+                clients[i].session = futures.get(i).get(30, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                failed++;
+            }
+        }
+        if (failed > 0) {
+            throw new IllegalStateException(failed + " of " + sessions + " sessions failed to connect");
+        }
+        // SUBSCRIBE frames are asynchronous; give the broker a moment to register them
+        Thread.sleep(1_000);
+        System.out.printf("%n%d sessions connected in %.1f s%n", sessions, (System.nanoTime() - start) / 1e9);
+    }
+
+    String ramp(double startRate, double rateFactor, double maxRate, double typingRatio, int stepSeconds,
+                long sloMillis) throws InterruptedException {
+        System.out.printf("%-10s %10s %8s %8s %27s %27s %10s %7s %6s %6s %s%n", "offered/s", "sent", "deliv%",
+                "acked%", "delivery p50/p99/p99.9/max", "persisted p50/p99/p99.9/max", "typing p99", "errors",
+                "B/msg", "upd B", "");
+        Step best = null;
+        for (double rate = startRate; rate <= maxRate; rate *= rateFactor) {
+            Step step = runStep(rate, rate * typingRatio, stepSeconds);
+            boolean pass = step.passes(sloMillis);
+            System.out.println(step.format() + (pass ? "  ok" : "  FAIL"));
+            if (!pass) {
+                break;
+            }
+            best = step;
+        }
+        if (best == null) {
+            return String.format("%-10d %10s", sessions, "none");
+        }
+        return String.format("%-10d %10.0f %30s %30s", sessions, best.rate,
+                String.format("%.1f/%.1f/%.1f", millis(best.delivery, 50), millis(best.delivery, 99),
+                        millis(best.delivery, 99.9)),
+                String.format("%.1f/%.1f/%.1f", millis(best.persisted, 50), millis(best.persisted, 99),
+                        millis(best.persisted, 99.9)));
+    }
+
+    private Step runStep(double rate, double typingRate, int stepSeconds) throws InterruptedException {
+        sent.reset();
+        delivered.reset();
+        acknowledged.reset();
+        typingDelivered.reset();
+        errors.reset();
+        messageBytes.reset();
+        updateBytes.reset();
+        updateFrames.reset();
+        delivery.getIntervalHistogram();
+        persisted.getIntervalHistogram();
+        typing.getIntervalHistogram();
+
+        long start = System.nanoTime();
+        stepStart = start;
+        AtomicLong scheduledMessages = new AtomicLong();
+        AtomicLong scheduledTyping = new AtomicLong();
+        ScheduledFuture<?> tick = ticker.scheduleAtFixedRate(() -> {
+            long elapsed = System.nanoTime() - start;
+            schedule(rate, elapsed, start, scheduledMessages, true);
+            schedule(typingRate, elapsed, start, scheduledTyping, false);
+        }, 0, 10, TimeUnit.MILLISECONDS);
+        Thread.sleep(stepSeconds * 1_000L);
+        tick.cancel(false);
+
+        // Let in-flight frames and persistence batches land before reading the counters
+        long expected = scheduledMessages.get();
+        long drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((delivered.sum() < expected || acknowledged.sum() < expected) && System.nanoTime() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        long sentMessages = sent.sum();
+        return new Step(rate, expected, sentMessages, delivered.sum(), acknowledged.sum(), errors.sum(),
+                delivery.getIntervalHistogram(), persisted.getIntervalHistogram(), typing.getIntervalHistogram(),
+                sentMessages == 0 ? 0 : (messageBytes.sum() + updateBytes.sum()) / (double) sentMessages,
+                updateFrames.sum() == 0 ? 0 : updateBytes.sum() / (double) updateFrames.sum());
+    }
+
+    // Hands out the sends owed since the step started, each stamped with its intended send time
+    private void schedule(double rate, long elapsedNanos, long start, AtomicLong scheduled, boolean chat) {
+        long owed = (long) (rate * elapsedNanos / 1e9);
+        for (long n = scheduled.get(); n < owed; n++) {
+            long intended = start + (long) (n * 1e9 / rate);
+            Client client = clients[(int) (n % sessions)];
+            senders[client.index % senders.length].execute(() -> {
+                if (chat) {
+                    client.sendMessage(intended);
+                } else {
+                    client.sendTyping(intended);
+                }
+            });
+        }
+        scheduled.set(owed);
+    }
+
+    void close() throws InterruptedException {
+        for (Client client : clients) {
+            if (client != null && client.session != null && client.session.isConnected()) {
+                try {
+                    client.session.disconnect();
+                } catch (Exception e) {
+                    // Already gone
+                }
+            }
+        }
+        ticker.shutdownNow();
+        for (ExecutorService sender : senders) {
+            sender.shutdownNow();
+        }
+        stompClient.stop();
+        // Let the server process the closes before the next session count connects
+        Thread.sleep(2_000);
+        if (disconnects.sum() > 0) {
+            System.out.println(disconnects.sum() + " sessions dropped by transport errors");
+        }
+    }
+
+    private static double millis(Histogram histogram, double percentile) {
+        return histogram.getValueAtPercentile(percentile) / 1_000.0;
+    }
+
+    // Payload content is "lt:<sender session>:<intended send nanoTime>"; null when absent
+    private static long[] parseContent(byte[] payload) {
+        String json = new String(payload, StandardCharsets.UTF_8);
+        int start = json.indexOf(CONTENT_MARKER);
+        if (start < 0) {
+            return null;
+        }
+        start += CONTENT_MARKER.length();
+        int separator = json.indexOf(':', start);
+        int end = json.indexOf('"', separator);
+        return new long[]{Long.parseLong(json, start, separator, 10), Long.parseLong(json, separator + 1, end, 10)};
+    }
+
+    private record Step(double rate, long scheduled, long sent, long delivered, long acknowledged, long errors,
+                        Histogram delivery, Histogram persisted, Histogram typing,
+                        double bytesPerMessage, double bytesPerUpdate) {
+
+        boolean passes(long sloMillis) {
+            return errors == 0
+                    && sent >= scheduled * 0.99
+                    && delivered >= scheduled * 0.99
+                    && acknowledged >= scheduled * 0.99
+                    && millis(delivery, 99) <= sloMillis
+                    && millis(persisted, 99) <= sloMillis;
+        }
+
+        String format() {
+            return String.format("%-10.0f %10d %7.1f%% %7.1f%% %27s %27s %10.1f %7d %6.0f %6.0f", rate, sent,
+                    percent(delivered), percent(acknowledged),
+                    String.format("%.1f/%.1f/%.1f/%.1f", millis(delivery, 50), millis(delivery, 99),
+                            millis(delivery, 99.9), delivery.getMaxValue() / 1_000.0),
+                    String.format("%.1f/%.1f/%.1f/%.1f", millis(persisted, 50), millis(persisted, 99),
+                            millis(persisted, 99.9), persisted.getMaxValue() / 1_000.0),
+                    millis(typing, 99), errors, bytesPerMessage, bytesPerUpdate);
+        }
+
+        private double percent(long count) {
+            return scheduled == 0 ? 100 : count * 100.0 / scheduled;
+        }
+    }
+
+    private final class Client extends StompSessionHandlerAdapter {
+
+        private final int index;
+        private final String messagePrefix;
+        private final String typingPrefix;
+        private volatile StompSession session;
+
+        Client(int index, User user, User peer) {
+            this.index = index;
+            String addressing = "\"senderUsername\":\"" + user.getUsername()
+                    + "\",\"receiverUsername\":\"" + peer.getUsername()
+                    + "\",\"senderId\":" + user.getId()
+                    + ",\"receiverId\":" + peer.getId();
+            this.messagePrefix = "{" + addressing + ",\"clientMessageId\":\"lt:" + index + ":";
+            this.typingPrefix = "{" + addressing + ",\"type\":\"TYPING\",\"content\":\"lt:" + index + ":";
+        }
+
+        void sendMessage(long intendedNanos) {
+            send("/app/chat.sendMessage", messagePrefix + intendedNanos + "\",\"content\":\"lt:" + index + ":"
+                    + intendedNanos);
+            sent.increment();
+        }
+
+        void sendTyping(long intendedNanos) {
+            send("/app/chat.typing", typingPrefix + intendedNanos);
+        }
+
+        // body is the JSON up to the closing quote of the last value
+        private void send(String destination, String body) {
+            StompHeaders headers = new StompHeaders();
+            headers.setDestination(destination);
+            headers.setContentType(MimeTypeUtils.APPLICATION_JSON);
+            try {
+                session.send(headers, (body + "\"}").getBytes(StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                errors.increment();
+            }
+        }
+
+        @Override
+        public void afterConnected(StompSession session, StompHeaders connectedHeaders) {
+            session.subscribe("/user/queue/messages", handler(messageBytes, null, (sender, sentAt) -> {
+                // Both users get a copy; the sender's own echo is not a delivery
+                if (sender != index) {
+                    delivery.recordValue(elapsedMicros(sentAt));
+                    delivered.increment();
+                }
+            }));
+            session.subscribe("/user/queue/message-update", handler(updateBytes, updateFrames, (sender, sentAt) -> {
+                if (sender == index) {
+                    persisted.recordValue(elapsedMicros(sentAt));
+                    acknowledged.increment();
+                }
+            }));
+            session.subscribe("/user/queue/typing", handler((sender, sentAt) -> {
+                typing.recordValue(elapsedMicros(sentAt));
+                typingDelivered.increment();
+            }));
+            session.subscribe("/user/queue/errors", handler((sender, sentAt) -> errors.increment()));
+        }
+
+        @Override
+        public void handleException(StompSession session, StompCommand command, StompHeaders headers,
+                                    byte[] payload, Throwable exception) {
+            errors.increment();
+        }
+
+        @Override
+        public void handleTransportError(StompSession session, Throwable exception) {
+            if (this.session != null) {
+                disconnects.increment();
+            }
+        }
+
+        private StompFrameHandler handler(FrameListener listener) {
+            return handler(null, null, listener);
+        }
+
+        private StompFrameHandler handler(LongAdder bytes, LongAdder frames, FrameListener listener) {
+            return new StompFrameHandler() {
+                @Override
+                public Type getPayloadType(StompHeaders headers) {
+                    return byte[].class;
+                }
+
+                @Override
+                public void handleFrame(StompHeaders headers, Object payload) {
+                    byte[] body = (byte[]) payload;
+                    long[] content = parseContent(body);
+                    if (content != null) {
+                        if (content[1] >= stepStart) {
+                            if (bytes != null) {
+                                bytes.add(body.length);
+                            }
+                            if (frames != null) {
+                                frames.increment();
+                            }
+                            listener.onFrame((int) content[0], content[1]);
+                        }
+                    } else {
+                        listener.onFrame(-1, System.nanoTime());
+                    }
+                }
+            };
+        }
+
+        private long elapsedMicros(long sentAtNanos) {
+            return Math.max(0, (System.nanoTime() - sentAtNanos) / 1_000);
+        }
+    }
+
+    @FunctionalInterface
+    private interface FrameListener {
+        void onFrame(int sender, long sentAtNanos);
+    }
+}
@@ -1,25 +1,86 @@
 package com.example.demo.config;
 
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.core.task.TaskDecorator;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
+@Slf4j
 @EnableAsync
-public class AsyncConfig {
+@EnableScheduling
+public class AsyncConfig implements SchedulingConfigurer {
 
     @Bean(name = "taskExecutor")
-    public Executor taskExecutor() {
+    public Executor taskExecutor(MeterRegistry meterRegistry, Environment environment,
+                                 @Value("${app.threads.virtual.async-concurrency-limit:256}") int virtualConcurrencyLimit) {
+        // Queue wait is measured from submission to the start of the task
+        Timer queueWait = Timer.builder("chat.async.queue.wait")
+                .description("Time a task waits for a taskExecutor thread")
+                .register(meterRegistry);
+        TaskDecorator measureQueueWait = task -> {
+            long submittedAt = System.nanoTime();
+            return () -> {
+                queueWait.record(System.nanoTime() - submittedAt, TimeUnit.NANOSECONDS);
+                task.run();
+            };
+        };
+
+        if (Threading.VIRTUAL.isActive(environment)) {
+            // No pool to size: the limit bounds concurrent SMTP and callback work instead
+            SimpleAsyncTaskExecutor executor =
+                    VirtualThreadConfig.virtualThreadExecutor("ChatAsync-", virtualConcurrencyLimit);
+            executor.setTaskDecorator(measureQueueWait);
+            return executor;
+        }
+        if (environment.getProperty("spring.threads.virtual.enabled", Boolean.class, false)) {
+            log.warn("spring.threads.virtual.enabled is set but Java {} has no virtual threads; using platform pools",
+                    Runtime.version().feature());
+        }
+
         ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
         executor.setCorePoolSize(5);
         executor.setMaxPoolSize(10);
         executor.setQueueCapacity(100);
         executor.setThreadNamePrefix("ChatAsync-");
         executor.setRejectedExecutionHandler(new java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setTaskDecorator(measureQueueWait);
         executor.initialize();
+        Gauge.builder("chat.async.queue.depth", executor, ThreadPoolTaskExecutor::getQueueSize)
+                .register(meterRegistry);
+        Gauge.builder("chat.async.active", executor, ThreadPoolTaskExecutor::getActiveCount)
+                .register(meterRegistry);
         return executor;
     }
+
+    // A bean rather than a local so the context shuts its threads down on close
+    @Bean(name = "chatScheduler")
+    public ThreadPoolTaskScheduler chatScheduler() {
+        ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+        scheduler.setPoolSize(2);
+        scheduler.setThreadNamePrefix("ChatScheduled-");
+        return scheduler;
+    }
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar registrar) {
+        // Keep @Scheduled background jobs off the WebSocket heartbeat scheduler
+        registrar.setTaskScheduler(chatScheduler());
+    }
 }
\ No newline at end of file
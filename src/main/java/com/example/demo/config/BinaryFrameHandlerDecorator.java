@@ -0,0 +1,54 @@
+package com.example.demo.config;
+
+import com.example.demo.service.StompSessionFormats;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketHandler;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.WebSocketHandlerDecorator;
+import org.springframework.web.socket.handler.WebSocketSessionDecorator;
+import org.springframework.web.socket.sockjs.transport.session.AbstractSockJsSession;
+
+import java.io.IOException;
+
+// The STOMP handler writes every frame that is not application/octet-stream as a WebSocket text
+// message, which would corrupt CBOR bodies. For sessions that negotiated CBOR, frames go out as
+// binary messages with the same bytes instead. SockJS transports only carry text, so SockJS
+// sessions are marked text-only and keep JSON.
+public class BinaryFrameHandlerDecorator extends WebSocketHandlerDecorator {
+
+    private final StompSessionFormats sessionFormats;
+
+    public BinaryFrameHandlerDecorator(WebSocketHandler delegate, StompSessionFormats sessionFormats) {
+        super(delegate);
+        this.sessionFormats = sessionFormats;
+    }
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        if (session instanceof AbstractSockJsSession) {
+            sessionFormats.markTextOnly(session.getId());
+            super.afterConnectionEstablished(session);
+            return;
+        }
+        super.afterConnectionEstablished(new WebSocketSessionDecorator(session) {
+            @Override
+            public void sendMessage(WebSocketMessage<?> message) throws IOException {
+                if (message instanceof TextMessage text && sessionFormats.of(getId()).cbor()) {
+                    // asBytes() returns the encoded frame as built, without a round trip through String
+                    super.sendMessage(new BinaryMessage(text.asBytes(), text.isLast()));
+                } else {
+                    super.sendMessage(message);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus closeStatus) throws Exception {
+        sessionFormats.forget(session.getId());
+        super.afterConnectionClosed(session, closeStatus);
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.demo.config;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.MessageHandler;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.support.ExecutorChannelInterceptor;
+import org.springframework.messaging.support.ExecutorSubscribableChannel;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Queue wait, queue depth and busy threads of one executor-backed STOMP channel, per message type.
+// preSend runs on the sending thread before the message is queued; beforeHandle and
+// afterMessageHandled run on the channel's executor, once per subscribed handler.
+public class ChannelMetricsInterceptor implements ExecutorChannelInterceptor {
+
+    private static final String ENQUEUED_AT_HEADER = "chat.enqueuedAt";
+
+    private final Map<SimpMessageType, Timer> queueWait = new EnumMap<>(SimpMessageType.class);
+    private final Map<SimpMessageType, AtomicInteger> queued = new EnumMap<>(SimpMessageType.class);
+    private final Map<SimpMessageType, AtomicInteger> active = new EnumMap<>(SimpMessageType.class);
+
+    public ChannelMetricsInterceptor(String channelName, MeterRegistry meterRegistry) {
+        for (SimpMessageType type : SimpMessageType.values()) {
+            queueWait.put(type, Timer.builder("chat.channel.queue.wait")
+                    .description("Time a message waits for a channel executor thread")
+                    .tag("channel", channelName)
+                    .tag("type", type.name())
+                    .register(meterRegistry));
+            queued.put(type, gauge("chat.channel.queued", "Tasks waiting for a channel executor thread",
+                    channelName, type, meterRegistry));
+            active.put(type, gauge("chat.channel.active", "Channel executor threads handling a message",
+                    channelName, type, meterRegistry));
+        }
+    }
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        SimpMessageType type = typeOf(message);
+        // The channel runs one task per subscribed handler
+        int tasks = channel instanceof ExecutorSubscribableChannel subscribable
+                ? subscribable.getSubscribers().size() : 1;
+        queued.get(type).addAndGet(tasks);
+
+        Long now = System.nanoTime();
+        MessageHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, MessageHeaderAccessor.class);
+        if (accessor != null && accessor.isMutable()) {
+            accessor.setHeader(ENQUEUED_AT_HEADER, now);
+            return message;
+        }
+        return MessageBuilder.fromMessage(message).setHeader(ENQUEUED_AT_HEADER, now).build();
+    }
+
+    @Override
+    public void afterSendCompletion(Message<?> message, MessageChannel channel, boolean sent, Exception ex) {
+        // Rejected by the executor: the tasks never reach beforeHandle
+        if (ex != null) {
+            int tasks = channel instanceof ExecutorSubscribableChannel subscribable
+                    ? subscribable.getSubscribers().size() : 1;
+            queued.get(typeOf(message)).addAndGet(-tasks);
+        }
+    }
+
+    @Override
+    public Message<?> beforeHandle(Message<?> message, MessageChannel channel, MessageHandler handler) {
+        SimpMessageType type = typeOf(message);
+        queued.get(type).decrementAndGet();
+        active.get(type).incrementAndGet();
+        Long enqueuedAt = message.getHeaders().get(ENQUEUED_AT_HEADER, Long.class);
+        if (enqueuedAt != null) {
+            queueWait.get(type).record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+        }
+        return message;
+    }
+
+    @Override
+    public void afterMessageHandled(Message<?> message, MessageChannel channel, MessageHandler handler,
+                                    Exception ex) {
+        active.get(typeOf(message)).decrementAndGet();
+    }
+
+    private static SimpMessageType typeOf(Message<?> message) {
+        SimpMessageType type = SimpMessageHeaderAccessor.getMessageType(message.getHeaders());
+        return type != null ? type : SimpMessageType.OTHER;
+    }
+
+    private static AtomicInteger gauge(String name, String description, String channelName, SimpMessageType type,
+                                       MeterRegistry meterRegistry) {
+        AtomicInteger value = new AtomicInteger();
+        Gauge.builder(name, value, AtomicInteger::get)
+                .description(description)
+                .tag("channel", channelName)
+                .tag("type", type.name())
+                .register(meterRegistry);
+        return value;
+    }
+}
@@ -0,0 +1,102 @@
+package com.example.demo.config;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpUpgradeHandler;
+import jakarta.websocket.Endpoint;
+import jakarta.websocket.Extension;
+import jakarta.websocket.server.ServerEndpointConfig;
+import org.apache.tomcat.websocket.Transformation;
+import org.apache.tomcat.websocket.server.WsHandshakeRequest;
+import org.apache.tomcat.websocket.server.WsHttpUpgradeHandler;
+import org.apache.tomcat.websocket.server.WsServerContainer;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.socket.server.HandshakeFailureException;
+import org.springframework.web.socket.server.standard.ServerEndpointRegistration;
+import org.springframework.web.socket.server.standard.TomcatRequestUpgradeStrategy;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+// Tomcat upgrade with our permessage-deflate policy. Tomcat negotiates extensions itself from the
+// request headers, so the policy goes in through the endpoint configurator, and the transformation
+// it builds is wrapped by handing Tomcat an upgrade handler subclass that meters it.
+public class DeflateUpgradeStrategy extends TomcatRequestUpgradeStrategy {
+
+    private final WebSocketCompression compression;
+
+    public DeflateUpgradeStrategy(WebSocketCompression compression) {
+        this.compression = compression;
+    }
+
+    // Same as StandardWebSocketUpgradeStrategy, with the configurator and request swapped
+    @Override
+    protected void upgradeInternal(ServerHttpRequest request, ServerHttpResponse response,
+                                   String selectedProtocol, List<Extension> selectedExtensions,
+                                   Endpoint endpoint) throws HandshakeFailureException {
+        HttpServletRequest servletRequest = getHttpServletRequest(request);
+        HttpServletResponse servletResponse = getHttpServletResponse(response);
+
+        ServerEndpointRegistration endpointConfig = new ServerEndpointRegistration(
+                servletRequest.getRequestURI(), endpoint) {
+            @Override
+            public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+                return compression.negotiate(requested);
+            }
+        };
+        endpointConfig.setSubprotocols(Collections.singletonList(selectedProtocol));
+        endpointConfig.setExtensions(selectedExtensions);
+
+        try {
+            upgradeHttpToWebSocket(new MeteredUpgradeRequest(servletRequest, compression), servletResponse,
+                    endpointConfig, Collections.emptyMap());
+        } catch (Exception ex) {
+            throw new HandshakeFailureException(
+                    "Servlet request failed to upgrade to JSR-356 WebSocket: " + servletRequest.getRequestURL(), ex);
+        }
+    }
+
+    private static final class MeteredUpgradeRequest extends HttpServletRequestWrapper {
+
+        private final WebSocketCompression compression;
+
+        MeteredUpgradeRequest(HttpServletRequest request, WebSocketCompression compression) {
+            super(request);
+            this.compression = compression;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends HttpUpgradeHandler> T upgrade(Class<T> handlerClass) throws IOException, ServletException {
+            if (handlerClass != WsHttpUpgradeHandler.class) {
+                return super.upgrade(handlerClass);
+            }
+            MeteredUpgradeHandler handler = super.upgrade(MeteredUpgradeHandler.class);
+            handler.compression = compression;
+            return (T) handler;
+        }
+    }
+
+    // Instantiated by Tomcat through its public no-argument constructor
+    public static class MeteredUpgradeHandler extends WsHttpUpgradeHandler {
+
+        private WebSocketCompression compression;
+
+        @Override
+        public void preInit(ServerEndpointConfig serverEndpointConfig, WsServerContainer wsc,
+                            WsHandshakeRequest handshakeRequest, List<Extension> negotiatedExtensionsPhase2,
+                            String subProtocol, Transformation transformation, Map<String, String> pathParameters,
+                            boolean secure) {
+            if (transformation != null && compression != null) {
+                transformation = compression.meter(transformation);
+            }
+            super.preInit(serverEndpointConfig, wsc, handshakeRequest, negotiatedExtensionsPhase2, subProtocol,
+                    transformation, pathParameters, secure);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.demo.config;
+
+import jakarta.websocket.Extension;
+import org.apache.tomcat.websocket.MessagePart;
+import org.apache.tomcat.websocket.Transformation;
+import org.apache.tomcat.websocket.TransformationResult;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Sits in front of Tomcat's permessage-deflate transformation for one session. Outbound messages
+// that arrive whole and are smaller than the threshold skip the deflater and go out with RSV1
+// clear, which RFC 7692 allows per message and which leaves the compression context untouched.
+// Everything else is deflated by Tomcat and counted. Inbound frames go straight to Tomcat, which
+// inflates only the messages the client compressed.
+final class MeteredDeflate implements Transformation {
+
+    private final Transformation deflate;
+    private final WebSocketCompression compression;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    private volatile Transformation next;
+    // A message is routed as a whole; Tomcat sends one message per session at a time
+    private volatile boolean inMessage;
+    private volatile boolean skipping;
+
+    MeteredDeflate(Transformation deflate, WebSocketCompression compression) {
+        this.deflate = deflate;
+        this.compression = compression;
+    }
+
+    @Override
+    public List<MessagePart> sendMessagePart(List<MessagePart> messageParts) throws IOException {
+        long raw = 0;
+        boolean data = false;
+        boolean fin = false;
+        for (MessagePart part : messageParts) {
+            if (!isControl(part.getOpCode())) {
+                data = true;
+                fin = part.isFin();
+                raw += part.getPayload().remaining();
+            }
+        }
+        if (!data) {
+            return deflate.sendMessagePart(messageParts);
+        }
+        if (!inMessage) {
+            // A message sent in fragments is compressed, whatever its first fragment weighs
+            skipping = fin && raw < compression.minSize();
+        }
+        inMessage = !fin;
+
+        if (skipping) {
+            compression.skipped();
+            Transformation after = next;
+            return after == null ? messageParts : after.sendMessagePart(messageParts);
+        }
+        long start = System.nanoTime();
+        List<MessagePart> compressed = deflate.sendMessagePart(messageParts);
+        long nanos = System.nanoTime() - start;
+        long out = 0;
+        for (MessagePart part : compressed) {
+            if (!isControl(part.getOpCode())) {
+                out += part.getPayload().remaining();
+            }
+        }
+        compression.compressed(raw, out, nanos, fin);
+        return compressed;
+    }
+
+    // Close, ping and pong have the high bit of the opcode set
+    private static boolean isControl(byte opCode) {
+        return (opCode & 0x08) != 0;
+    }
+
+    @Override
+    public TransformationResult getMoreData(byte opCode, boolean fin, int rsv, ByteBuffer dest) throws IOException {
+        return deflate.getMoreData(opCode, fin, rsv, dest);
+    }
+
+    @Override
+    public boolean validateRsv(int rsv, byte opCode) {
+        return deflate.validateRsv(rsv, opCode);
+    }
+
+    @Override
+    public boolean validateRsvBits(int i) {
+        return deflate.validateRsvBits(i);
+    }
+
+    @Override
+    public Extension getExtensionResponse() {
+        return deflate.getExtensionResponse();
+    }
+
+    @Override
+    public void setNext(Transformation t) {
+        this.next = t;
+        deflate.setNext(t);
+    }
+
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            compression.closed();
+        }
+        deflate.close();
+    }
+}
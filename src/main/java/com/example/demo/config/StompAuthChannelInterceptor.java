@@ -0,0 +1,51 @@
+package com.example.demo.config;
+
+import com.example.demo.repository.UserRepository;
+import com.example.demo.util.JwtUtil;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageChannel;
+import org.springframework.messaging.simp.stomp.StompCommand;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.messaging.support.ChannelInterceptor;
+import org.springframework.messaging.support.MessageHeaderAccessor;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+
+// Binds a STOMP session to its user at CONNECT so convertAndSendToUser can route to it.
+// Tokens carry the email; user destinations are addressed by username.
+@Component
+public class StompAuthChannelInterceptor implements ChannelInterceptor {
+
+    @Autowired
+    private JwtUtil jwtUtil;
+
+    @Autowired
+    private UserRepository userRepository;
+
+    @Override
+    public Message<?> preSend(Message<?> message, MessageChannel channel) {
+        StompHeaderAccessor accessor = MessageHeaderAccessor.getAccessor(message, StompHeaderAccessor.class);
+        if (accessor == null || !StompCommand.CONNECT.equals(accessor.getCommand())) {
+            return message;
+        }
+
+        String authorizationHeader = accessor.getFirstNativeHeader("Authorization");
+        if (authorizationHeader == null || !authorizationHeader.startsWith("Bearer ")) {
+            return message;
+        }
+        String jwt = authorizationHeader.substring(7);
+        try {
+            String email = jwtUtil.extractUsername(jwt);
+            if (email != null && jwtUtil.validateToken(jwt, email)) {
+                userRepository.findByEmail(email).ifPresent(user -> accessor.setUser(
+                        new UsernamePasswordAuthenticationToken(user.getUsername(), null, new ArrayList<>())));
+            }
+        } catch (Exception e) {
+            // Invalid token: the session stays anonymous
+        }
+        return message;
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.demo.config;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+
+// Opt-in virtual-thread mode: spring.threads.virtual.enabled=true on Java 21 or later.
+// Spring Boot then runs Tomcat requests on virtual threads, AsyncConfig and WebSocketConfig switch
+// their executors, and this class puts a semaphore in front of the connection pool.
+// On older runtimes the property is ignored and the platform-thread pools stay in place.
+@Configuration
+@ConditionalOnThreading(Threading.VIRTUAL)
+@Slf4j
+public class VirtualThreadConfig {
+
+    // Executor that starts one virtual thread per task; a limit above 0 bounds concurrent tasks
+    public static SimpleAsyncTaskExecutor virtualThreadExecutor(String threadNamePrefix, int concurrencyLimit) {
+        SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+        executor.setVirtualThreads(true);
+        if (concurrencyLimit > 0) {
+            executor.setConcurrencyLimit(concurrencyLimit);
+        }
+        return executor;
+    }
+
+    @Bean
+    public static BeanPostProcessor connectionLimitingDataSourcePostProcessor(
+            ObjectProvider<MeterRegistry> meterRegistry) {
+        return new BeanPostProcessor() {
+            @Override
+            public Object postProcessAfterInitialization(Object bean, String beanName) {
+                if (!(bean instanceof HikariDataSource hikari)) {
+                    return bean;
+                }
+                // One permit per pooled connection; waiters give up after the pool's own timeout
+                ConnectionLimitingDataSource limited = new ConnectionLimitingDataSource(hikari,
+                        hikari.getMaximumPoolSize(), hikari.getConnectionTimeout());
+                MeterRegistry registry = meterRegistry.getIfAvailable();
+                if (registry != null) {
+                    Gauge.builder("chat.db.permits.available", limited, ConnectionLimitingDataSource::availablePermits)
+                            .register(registry);
+                    Gauge.builder("chat.db.permits.waiting", limited, ConnectionLimitingDataSource::waiting)
+                            .register(registry);
+                }
+                log.info("Virtual threads enabled; database access limited to {} concurrent connections",
+                        hikari.getMaximumPoolSize());
+                return limited;
+            }
+        };
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.demo.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.websocket.Extension;
+import org.apache.tomcat.websocket.Transformation;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Policy and metrics for permessage-deflate (RFC 7692) on the WebSocket transport. Tomcat accepts
+// the extension from any client that offers it unless told otherwise, so the handshake goes through
+// DeflateUpgradeStrategy, which asks negotiate() what to accept.
+//
+// Every compressing session holds a zlib deflater and inflater, roughly 300 KB of native memory
+// whatever the parameters: the JDK cannot shrink the window, so no-context-takeover only resets the
+// history after each message (worse ratio, nothing carried between messages). max-sessions is what
+// bounds the memory; sessions over it connect uncompressed.
+@Component
+public class WebSocketCompression {
+
+    static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+    private static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    private static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+
+    private final boolean enabled;
+    private final int minSize;
+    private final boolean serverContextTakeover;
+    private final boolean clientContextTakeover;
+    private final int maxSessions;
+
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final Counter rawBytes;
+    private final Counter compressedBytes;
+    private final Counter compressedMessages;
+    private final Counter skippedMessages;
+    private final Timer compressTime;
+
+    public WebSocketCompression(MeterRegistry meterRegistry,
+                                @Value("${app.ws.deflate.enabled:false}") boolean enabled,
+                                @Value("${app.ws.deflate.min-size:256}") int minSize,
+                                @Value("${app.ws.deflate.server-context-takeover:true}") boolean serverContextTakeover,
+                                @Value("${app.ws.deflate.client-context-takeover:true}") boolean clientContextTakeover,
+                                @Value("${app.ws.deflate.max-sessions:10000}") int maxSessions) {
+        this.enabled = enabled;
+        this.minSize = minSize;
+        this.serverContextTakeover = serverContextTakeover;
+        this.clientContextTakeover = clientContextTakeover;
+        this.maxSessions = maxSessions;
+
+        // Compression ratio = chat.ws.deflate.bytes{form=compressed} / chat.ws.deflate.bytes{form=raw}
+        this.rawBytes = bytes(meterRegistry, "raw");
+        this.compressedBytes = bytes(meterRegistry, "compressed");
+        this.compressedMessages = messages(meterRegistry, "compressed");
+        this.skippedMessages = messages(meterRegistry, "below-threshold");
+        this.compressTime = Timer.builder("chat.ws.deflate.time")
+                .description("Time spent deflating outbound messages on the sending thread")
+                .register(meterRegistry);
+        Gauge.builder("chat.ws.deflate.sessions", sessions, AtomicInteger::get)
+                .description("Open WebSocket sessions that negotiated permessage-deflate")
+                .register(meterRegistry);
+    }
+
+    private static Counter bytes(MeterRegistry meterRegistry, String form) {
+        return Counter.builder("chat.ws.deflate.bytes")
+                .description("Payload bytes of compressed outbound messages, before and after deflate")
+                .baseUnit("bytes")
+                .tag("form", form)
+                .register(meterRegistry);
+    }
+
+    private static Counter messages(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("chat.ws.deflate.messages")
+                .description("Outbound data messages on sessions that negotiated permessage-deflate")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    // The client's permessage-deflate offers, with our context takeover choices added, or nothing
+    // when compression is off or the session cap is reached. The cap is checked without reserving,
+    // so concurrent handshakes can overshoot it by a few sessions.
+    List<Extension> negotiate(List<Extension> requested) {
+        List<Extension> accepted = new ArrayList<>();
+        if (!enabled || sessions.get() >= maxSessions) {
+            return accepted;
+        }
+        for (Extension offer : requested) {
+            if (!PERMESSAGE_DEFLATE.equals(offer.getName())) {
+                continue;
+            }
+            List<Extension.Parameter> parameters = new ArrayList<>(offer.getParameters());
+            // Tomcat rejects an offer that names a parameter twice, so only add what is missing
+            if (!serverContextTakeover && !hasParameter(offer, SERVER_NO_CONTEXT_TAKEOVER)) {
+                parameters.add(new Flag(SERVER_NO_CONTEXT_TAKEOVER));
+            }
+            if (!clientContextTakeover && !hasParameter(offer, CLIENT_NO_CONTEXT_TAKEOVER)) {
+                parameters.add(new Flag(CLIENT_NO_CONTEXT_TAKEOVER));
+            }
+            accepted.add(new Offer(parameters));
+        }
+        return accepted;
+    }
+
+    private static boolean hasParameter(Extension extension, String name) {
+        return extension.getParameters().stream().anyMatch(parameter -> name.equals(parameter.getName()));
+    }
+
+    // Wraps the deflate transformation Tomcat built for one session
+    Transformation meter(Transformation deflate) {
+        sessions.incrementAndGet();
+        return new MeteredDeflate(deflate, this);
+    }
+
+    int minSize() {
+        return minSize;
+    }
+
+    void compressed(long raw, long compressed, long nanos, boolean endOfMessage) {
+        if (endOfMessage) {
+            compressedMessages.increment();
+        }
+        rawBytes.increment(raw);
+        compressedBytes.increment(compressed);
+        compressTime.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    void skipped() {
+        skippedMessages.increment();
+    }
+
+    void closed() {
+        sessions.decrementAndGet();
+    }
+
+    private record Offer(List<Parameter> parameters) implements Extension {
+
+        @Override
+        public String getName() {
+            return PERMESSAGE_DEFLATE;
+        }
+
+        @Override
+        public List<Parameter> getParameters() {
+            return parameters;
+        }
+    }
+
+    private record Flag(String name) implements Extension.Parameter {
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValue() {
+            return null;
+        }
+    }
+}
@@ -1,20 +1,52 @@
 package com.example.demo.config;
 
+import com.example.demo.service.StompFanout;
+import com.example.demo.service.StompSessionFormats;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.thread.Threading;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConverter;
 import org.springframework.messaging.simp.config.MessageBrokerRegistry;
 import org.springframework.web.socket.config.annotation.EnableWebSocketMessageBroker;
 import org.springframework.web.socket.config.annotation.StompEndpointRegistry;
+import org.springframework.web.socket.config.annotation.WebSocketTransportRegistration;
 import org.springframework.web.socket.config.annotation.WebSocketMessageBrokerConfigurer;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
 import org.springframework.messaging.simp.config.ChannelRegistration;
 import org.springframework.context.annotation.Bean;
 
+import java.util.List;
+
 @Configuration
 @EnableWebSocketMessageBroker
 public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
 
+    @Autowired
+    private StompAuthChannelInterceptor stompAuthChannelInterceptor;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Autowired
+    private Environment environment;
+
+    @Autowired
+    private Jackson2ObjectMapperBuilder objectMapperBuilder;
+
+    @Autowired
+    private StompSessionFormats sessionFormats;
+
+    @Autowired
+    private WebSocketCompression webSocketCompression;
+
     @Override
     public void configureMessageBroker(MessageBrokerRegistry config) {
         // Enable optimized simple broker with task scheduler for real-time messaging
+        // It only reaches this node's sessions; StompFanout forwards to the other nodes over the ClusterBus
         config.enableSimpleBroker("/topic", "/queue")
               .setHeartbeatValue(new long[]{5000, 5000})  // Faster heartbeat for real-time
               .setTaskScheduler(taskScheduler());
@@ -24,13 +56,21 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
         
         // Set user destination prefix for private messages
         config.setUserDestinationPrefix("/user");
+
+        // Frames to one session leave in the order they were published, so room order holds on the wire
+        config.setPreservePublishOrder(true);
     }
 
     @Override
     public void registerStompEndpoints(StompEndpointRegistry registry) {
+        // Frames from one session reach the controllers in the order the client sent them
+        registry.setPreserveReceiveOrder(true);
+
         // Register the "/ws" endpoint for WebSocket connections with real-time optimized settings
+        // The handshake handler must be set before withSockJS() to cover SockJS's WebSocket transport too
         registry.addEndpoint("/ws")
                 .setAllowedOriginPatterns("*")
+                .setHandshakeHandler(new DefaultHandshakeHandler(new DeflateUpgradeStrategy(webSocketCompression)))
                 .withSockJS()
                 .setHeartbeatTime(5000)   // Much faster heartbeat for real-time
                 .setDisconnectDelay(1000) // Very fast disconnect detection
@@ -41,24 +81,54 @@ public class WebSocketConfig implements WebSocketMessageBrokerConfigurer {
                 .setClientLibraryUrl("https://cdn.jsdelivr.net/npm/sockjs-client@1/dist/sockjs.min.js");
     }
 
+    @Override
+    public void configureWebSocketTransport(WebSocketTransportRegistration registration) {
+        // CBOR sessions need their frames as binary WebSocket messages
+        registration.addDecoratorFactory(handler -> new BinaryFrameHandlerDecorator(handler, sessionFormats));
+    }
+
+    @Override
+    public boolean configureMessageConverters(List<MessageConverter> messageConverters) {
+        // Frames sent with content-type application/cbor; strict, so frames without a content type
+        // still go to the JSON converter. Returning true keeps the default converters.
+        MappingJackson2MessageConverter cbor =
+                new MappingJackson2MessageConverter(StompSessionFormats.APPLICATION_CBOR);
+        cbor.setObjectMapper(StompFanout.cborMapper(objectMapperBuilder));
+        cbor.setStrictContentTypeMatch(true);
+        messageConverters.add(cbor);
+        return true;
+    }
+
     @Override
     public void configureClientInboundChannel(ChannelRegistration registration) {
-        // Optimized thread pool for handling incoming messages
-        registration.taskExecutor()
-                   .corePoolSize(8)  // Increased core pool
-                   .maxPoolSize(16)  // Increased max pool
-                   .keepAliveSeconds(60)
-                   .queueCapacity(1000);  // Added queue capacity
+        if (Threading.VIRTUAL.isActive(environment)) {
+            // One virtual thread per message; database access is bounded by VirtualThreadConfig
+            registration.executor(VirtualThreadConfig.virtualThreadExecutor("clientInbound-", 0));
+        } else {
+            // Optimized thread pool for handling incoming messages
+            registration.taskExecutor()
+                       .corePoolSize(8)  // Increased core pool
+                       .maxPoolSize(16)  // Increased max pool
+                       .keepAliveSeconds(60)
+                       .queueCapacity(1000);  // Added queue capacity
+        }
+        registration.interceptors(stompAuthChannelInterceptor,
+                new ChannelMetricsInterceptor("clientInbound", meterRegistry));
     }
 
     @Override
     public void configureClientOutboundChannel(ChannelRegistration registration) {
-        // Optimized thread pool for sending messages to clients
-        registration.taskExecutor()
-                   .corePoolSize(8)  // Increased core pool
-                   .maxPoolSize(16)  // Increased max pool
-                   .keepAliveSeconds(60)
-                   .queueCapacity(1000);  // Added queue capacity
+        if (Threading.VIRTUAL.isActive(environment)) {
+            registration.executor(VirtualThreadConfig.virtualThreadExecutor("clientOutbound-", 0));
+        } else {
+            // Optimized thread pool for sending messages to clients
+            registration.taskExecutor()
+                       .corePoolSize(8)  // Increased core pool
+                       .maxPoolSize(16)  // Increased max pool
+                       .keepAliveSeconds(60)
+                       .queueCapacity(1000);  // Added queue capacity
+        }
+        registration.interceptors(new ChannelMetricsInterceptor("clientOutbound", meterRegistry));
     }
     
     @Bean
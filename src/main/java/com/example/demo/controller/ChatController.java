@@ -1,24 +1,35 @@
 package com.example.demo.controller;
 
 import com.example.demo.dto.ChatMessage;
-import com.example.demo.service.ChatService;
+import com.example.demo.dto.MessageAck;
+import com.example.demo.service.ChatPipelineMetrics;
+import com.example.demo.service.RoomRouter;
+import com.example.demo.service.StompFanout;
+import com.example.demo.service.TypingDebouncer;
+import com.example.demo.service.UserDirectory;
 import lombok.RequiredArgsConstructor;
 import org.springframework.messaging.handler.annotation.MessageMapping;
 import org.springframework.messaging.handler.annotation.Payload;
-import org.springframework.messaging.simp.SimpMessagingTemplate;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Controller;
+
+import java.security.Principal;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 @Controller
 @RequiredArgsConstructor
 public class ChatController {
 
-    private final SimpMessagingTemplate messagingTemplate;
-    private final ChatService chatService;
+    private final RoomRouter roomRouter;
+    private final StompFanout stompFanout;
+    private final TypingDebouncer typingDebouncer;
+    private final ChatPipelineMetrics pipelineMetrics;
+    private final UserDirectory userDirectory;
 
     @MessageMapping("/chat.sendMessage")
-    public void sendMessage(@Payload ChatMessage chatMessage) {
+    public void sendMessage(@Payload ChatMessage chatMessage, Principal principal) {
+        long receivedAt = System.nanoTime();
         try {
             // Validate message
             if (chatMessage == null || chatMessage.getContent() == null || chatMessage.getContent().trim().isEmpty()) {
@@ -32,11 +43,22 @@ public class ChatController {
                 return;
             }
 
-            // Send message immediately to both users for instant delivery
-            sendMessageInstantly(chatMessage);
+            if (!isSentBy(chatMessage, principal)) {
+                sendErrorMessage(principal.getName(), "Sender does not match the authenticated user");
+                return;
+            }
+
+            // Defaults are applied before the writer thread can see the message
+            applyDefaults(chatMessage);
 
-            // Save to database asynchronously to avoid blocking
-            saveMessageAsync(chatMessage);
+            // On the room's sequencer lane, on the node that owns the room: number the message and
+            // queue it for persistence, then send it immediately to both users. A saturated lane or
+            // writer, or an unreachable owner, refuses the message instead of holding this inbound
+            // thread, and the client is asked to resend it later.
+            CompletableFuture<ChatMessage> persisted = roomRouter.submit(chatMessage, true);
+
+            // The update with the database ID follows once the message is committed, in room order
+            sendUpdateWhenSaved(chatMessage, persisted, receivedAt);
 
         } catch (Exception e) {
             sendErrorMessage(chatMessage != null ? chatMessage.getSenderUsername() : "unknown",
@@ -44,60 +66,85 @@ public class ChatController {
         }
     }
 
-    private void sendMessageInstantly(ChatMessage chatMessage) {
-        try {
-            // Add timestamp for immediate delivery (ensure consistent timezone)
-            if (chatMessage.getTimestamp() == null) {
-                chatMessage.setTimestamp(java.time.LocalDateTime.now());
-            }
-
-            // Set default type if not set
-            if (chatMessage.getType() == null) {
-                chatMessage.setType(ChatMessage.Type.CHAT);
-            }
-
-            // Send to receiver immediately
-            messagingTemplate.convertAndSendToUser(
-                    chatMessage.getReceiverUsername(),
-                    "/queue/messages",
-                    chatMessage);
+    // Sessions that authenticated on CONNECT may only send as themselves, by name and by id.
+    // Anonymous sessions are not checked.
+    private boolean isSentBy(ChatMessage chatMessage, Principal principal) {
+        if (principal == null) {
+            return true;
+        }
+        if (!principal.getName().equals(chatMessage.getSenderUsername())) {
+            return false;
+        }
+        if (chatMessage.getSenderId() == null) {
+            return true;
+        }
+        UserDirectory.Entry sender = userDirectory.find(chatMessage.getSenderId());
+        return sender != null && Objects.equals(sender.username(), principal.getName());
+    }
 
-            // Send confirmation back to sender immediately
-            messagingTemplate.convertAndSendToUser(
-                    chatMessage.getSenderUsername(),
-                    "/queue/messages",
-                    chatMessage);
+    private void applyDefaults(ChatMessage chatMessage) {
+        // Add timestamp for immediate delivery (ensure consistent timezone)
+        if (chatMessage.getTimestamp() == null) {
+            chatMessage.setTimestamp(java.time.LocalDateTime.now());
+        }
 
-        } catch (Exception e) {
-            sendErrorMessage(chatMessage.getSenderUsername(), "Failed to send message: " + e.getMessage());
+        // Set default type if not set
+        if (chatMessage.getType() == null) {
+            chatMessage.setType(ChatMessage.Type.CHAT);
         }
     }
 
-    @Async("taskExecutor")
-    public CompletableFuture<Void> saveMessageAsync(ChatMessage chatMessage) {
-        try {
-            // Save message to database in background
-            ChatMessage savedMessage = chatService.saveMessage(chatMessage);
-
-            // Update the message with database ID if needed
-            if (savedMessage != null && savedMessage.getId() != null) {
-                // Send updated message with real ID to both users
-                messagingTemplate.convertAndSendToUser(
-                        savedMessage.getReceiverUsername(),
-                        "/queue/message-update",
-                        savedMessage);
-
-                messagingTemplate.convertAndSendToUser(
-                        savedMessage.getSenderUsername(),
-                        "/queue/message-update",
-                        savedMessage);
+    private void sendUpdateWhenSaved(ChatMessage chatMessage, CompletableFuture<ChatMessage> persisted,
+                                     long receivedAt) {
+        // Completed by the group-commit writer once the message's batch commits
+        persisted.whenComplete((savedMessage, error) -> {
+            if (error instanceof RejectedExecutionException) {
+                sendRetryLater(chatMessage);
+                return;
+            }
+            if (error instanceof IllegalArgumentException) {
+                sendErrorMessage(chatMessage.getSenderUsername(), error.getMessage());
+                return;
+            }
+            if (error != null) {
+                pipelineMetrics.recordUpdate(receivedAt, false);
+                // Send error notification to sender
+                sendErrorMessage(chatMessage.getSenderUsername(), "Message sent but failed to save to database");
+                return;
             }
 
+            try {
+                // Update the message with database ID if needed
+                if (savedMessage != null && savedMessage.getId() != null) {
+                    // Send the real ID to both users, as a compact ack to sessions that asked for one.
+                    // Without a client message id an ack could not be matched, so it goes out in full.
+                    MessageAck ack = savedMessage.getClientMessageId() != null ? MessageAck.of(savedMessage) : null;
+                    stompFanout.sendToUsers("/queue/message-update", savedMessage, ack,
+                            savedMessage.getReceiverUsername(), savedMessage.getSenderUsername());
+                    pipelineMetrics.recordUpdate(receivedAt, true);
+                }
+            } catch (Exception e) {
+                pipelineMetrics.recordUpdate(receivedAt, false);
+                sendErrorMessage(chatMessage.getSenderUsername(), "Message saved but update could not be delivered");
+            }
+        });
+    }
+
+    private void sendRetryLater(ChatMessage chatMessage) {
+        try {
+            // The client message id (or the receiver and timestamp) lets the client match the refusal
+            ChatMessage retryMessage = new ChatMessage();
+            retryMessage.setContent("Server is busy, please retry later");
+            retryMessage.setType(ChatMessage.Type.CHAT);
+            retryMessage.setMessageType("RETRY_LATER");
+            retryMessage.setSenderUsername(chatMessage.getSenderUsername());
+            retryMessage.setReceiverUsername(chatMessage.getReceiverUsername());
+            retryMessage.setTimestamp(chatMessage.getTimestamp());
+            retryMessage.setClientMessageId(chatMessage.getClientMessageId());
+            stompFanout.sendToUsers("/queue/errors", retryMessage, chatMessage.getSenderUsername());
         } catch (Exception e) {
-            // Send error notification to sender
-            sendErrorMessage(chatMessage.getSenderUsername(), "Message sent but failed to save to database");
+            // Silent error handling
         }
-        return CompletableFuture.completedFuture(null);
     }
 
     private void sendErrorMessage(String username, String errorText) {
@@ -107,25 +154,28 @@ public class ChatController {
             errorMessage.setType(ChatMessage.Type.CHAT);
             errorMessage.setMessageType("ERROR");
             errorMessage.setTimestamp(java.time.LocalDateTime.now());
-            messagingTemplate.convertAndSendToUser(username, "/queue/errors", errorMessage);
+            stompFanout.sendToUsers("/queue/errors", errorMessage, username);
         } catch (Exception e) {
             // Silent error handling
         }
     }
 
     @MessageMapping("/chat.addUser")
-    public void addUser(@Payload ChatMessage chatMessage) {
+    public void addUser(@Payload ChatMessage chatMessage, Principal principal) {
+        if (!isSentBy(chatMessage, principal)) {
+            return;
+        }
         // Notify that user joined
-        messagingTemplate.convertAndSend("/topic/public", chatMessage);
+        stompFanout.sendToTopic("/topic/public", chatMessage);
     }
 
     @MessageMapping("/chat.typing")
-    public void handleTyping(@Payload ChatMessage chatMessage) {
-        // Send typing indicator to receiver
-        messagingTemplate.convertAndSendToUser(
-                chatMessage.getReceiverUsername(),
-                "/queue/typing",
-                chatMessage);
+    public void handleTyping(@Payload ChatMessage chatMessage, Principal principal) {
+        if (!isSentBy(chatMessage, principal)) {
+            return;
+        }
+        // Coalesced per sender and receiver before it reaches the receiver's /queue/typing
+        typingDebouncer.onTyping(chatMessage);
     }
 
     @MessageMapping("/ping")
@@ -1,12 +1,23 @@
 package com.example.demo.controller;
 
 import com.example.demo.dto.ChatMessage;
+import com.example.demo.dto.MessageHistoryResponse;
 import com.example.demo.service.ChatService;
+import com.example.demo.service.ConversationExportService;
+import com.example.demo.service.RecentMessageCache;
+import com.example.demo.service.RoomRouter;
+import jakarta.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
 
 @RestController
 @RequestMapping("/api/chat")
@@ -14,14 +25,23 @@ import java.util.List;
 public class ChatRestController {
     
     private final ChatService chatService;
+    private final ConversationExportService conversationExportService;
+    private final RecentMessageCache recentMessageCache;
+    private final RoomRouter roomRouter;
     
     @GetMapping("/messages")
-    public ResponseEntity<List<ChatMessage>> getMessages(
+    public ResponseEntity<?> getMessages(
             @RequestParam Long userId1,
             @RequestParam Long userId2,
             @RequestParam(defaultValue = "0") int page,
             @RequestParam(defaultValue = "50") int size) {
         try {
+            if (page == 0) {
+                RecentMessageCache.CachedPage cached = chatService.getNewestPageFromCache(userId1, userId2, size);
+                if (cached != null) {
+                    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON).body(cached.messagesJson());
+                }
+            }
             List<ChatMessage> messages = chatService.getMessagesBetweenUsers(userId1, userId2, page, size);
             return ResponseEntity.ok(messages);
         } catch (Exception e) {
@@ -29,6 +49,65 @@ public class ChatRestController {
         }
     }
     
+    // Cursor-based history: newest page by default, or N messages before/after a cursor,
+    // or a window around a message id for jump-to-message
+    @GetMapping("/history")
+    public ResponseEntity<?> getHistory(
+            @RequestParam Long userId1,
+            @RequestParam Long userId2,
+            @RequestParam(required = false) String before,
+            @RequestParam(required = false) String after,
+            @RequestParam(required = false) Long around,
+            @RequestParam(defaultValue = "50") int limit) {
+        try {
+            if (before == null && after == null && around == null) {
+                RecentMessageCache.CachedPage cached = chatService.getNewestPageFromCache(userId1, userId2, limit);
+                if (cached != null) {
+                    return ResponseEntity.ok().contentType(MediaType.APPLICATION_JSON)
+                            .body(recentMessageCache.toHistoryJson(cached));
+                }
+            }
+            MessageHistoryResponse history = chatService.getMessageHistory(userId1, userId2, before, after, around, limit);
+            return ResponseEntity.ok(history);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    // Whole conversation as NDJSON, oldest first. Pass the id of the last message received
+    // as fromMessageId to resume an interrupted export.
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportConversation(
+            @RequestParam Long userId1,
+            @RequestParam Long userId2,
+            @RequestParam(required = false) Long fromMessageId,
+            HttpServletResponse response) {
+        ConversationExportService.Export export;
+        try {
+            export = conversationExportService.prepare(userId1, userId2, fromMessageId);
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+        // The export slot is taken once the body runs; nothing has been written when it is
+        // refused, so the response can still be turned into a 429
+        StreamingResponseBody body = out -> {
+            try {
+                conversationExportService.write(export, out);
+            } catch (RejectedExecutionException e) {
+                if (!response.isCommitted()) {
+                    response.reset();
+                    response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+                    response.setHeader(HttpHeaders.RETRY_AFTER, "30");
+                }
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        "attachment; filename=\"conversation-" + userId1 + "-" + userId2 + ".ndjson\"")
+                .body(body);
+    }
+
     @PostMapping("/mark-read")
     public ResponseEntity<Void> markAsRead(
             @RequestParam Long senderId, 
@@ -44,7 +123,7 @@ public class ChatRestController {
     @PostMapping("/send")
     public ResponseEntity<ChatMessage> sendMessage(@RequestBody ChatMessage chatMessage) {
         try {
-            ChatMessage savedMessage = chatService.saveMessage(chatMessage);
+            ChatMessage savedMessage = roomRouter.saveInOrder(chatMessage);
             return ResponseEntity.ok(savedMessage);
         } catch (Exception e) {
             return ResponseEntity.badRequest().build();
@@ -60,4 +139,14 @@ public class ChatRestController {
             return ResponseEntity.badRequest().build();
         }
     }
+
+    // Room id -> unread count for every room with unread messages
+    @GetMapping("/unread-counts")
+    public ResponseEntity<Map<String, Long>> getUnreadCounts(@RequestParam Long userId) {
+        try {
+            return ResponseEntity.ok(chatService.getUnreadCountsByRoom(userId));
+        } catch (Exception e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
 }
\ No newline at end of file
@@ -1,7 +1,7 @@
 package com.example.demo.controller;
 
 import com.example.demo.dto.ChatMessage;
-import com.example.demo.service.ChatService;
+import com.example.demo.service.RoomRouter;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -16,7 +16,7 @@ import java.util.Map;
 @CrossOrigin(origins = "*")
 public class ChatTestController {
 
-    private final ChatService chatService;
+    private final RoomRouter roomRouter;
 
     @PostMapping("/send")
     public ResponseEntity<?> testSendMessage(@RequestBody ChatMessage chatMessage) {
@@ -52,7 +52,7 @@ public class ChatTestController {
             }
             
             // Try to save the message
-            ChatMessage savedMessage = chatService.saveMessage(chatMessage);
+            ChatMessage savedMessage = roomRouter.saveInOrder(chatMessage);
             
             response.put("success", true);
             response.put("message", "Message saved successfully");
@@ -2,6 +2,7 @@ package com.example.demo.controller;
 
 import com.example.demo.model.User;
 import com.example.demo.service.ImageUploadService;
+import com.example.demo.service.UserDirectory;
 import com.example.demo.service.UserService;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
@@ -19,6 +20,7 @@ public class ProfileController {
 
     private final UserService userService;
     private final ImageUploadService imageUploadService;
+    private final UserDirectory userDirectory;
 
     @PostMapping("/upload-image")
     public ResponseEntity<?> uploadProfileImage(
@@ -60,6 +62,7 @@ public class ProfileController {
             // Update user profile
             user.setProfileImageUrl(imageUrl);
             userService.save(user);
+            userDirectory.invalidate(user.getId());
 
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
@@ -97,6 +100,7 @@ public class ProfileController {
                 imageUploadService.deleteProfileImage(user.getProfileImageUrl());
                 user.setProfileImageUrl(null);
                 userService.save(user);
+                userDirectory.invalidate(user.getId());
             }
 
             Map<String, Object> response = new HashMap<>();
@@ -21,6 +21,8 @@ public class ChatMessage {
     private LocalDateTime timestamp;
     private Boolean isRead;
     private String roomId;
+    private Long roomSeq;
+    private String clientMessageId;
     
     public enum Type {
         CHAT, JOIN, LEAVE, TYPING, STOP_TYPING
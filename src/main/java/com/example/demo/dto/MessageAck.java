@@ -0,0 +1,25 @@
+package com.example.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// Compact /queue/message-update frame for sessions that opted in at CONNECT: the client already
+// holds the message, so it only learns what the server assigned when it was persisted
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageAck {
+    private String clientMessageId;
+    private Long id;
+    private Long roomSeq;
+    // Persisted created_at
+    private LocalDateTime timestamp;
+
+    public static MessageAck of(ChatMessage savedMessage) {
+        return new MessageAck(savedMessage.getClientMessageId(), savedMessage.getId(), savedMessage.getRoomSeq(),
+                savedMessage.getTimestamp());
+    }
+}
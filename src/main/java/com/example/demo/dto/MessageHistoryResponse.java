@@ -0,0 +1,21 @@
+package com.example.demo.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MessageHistoryResponse {
+    // Newest first, same order as /api/chat/messages
+    private List<ChatMessage> messages;
+    // Pass as "before" to continue towards older messages
+    private String olderCursor;
+    // Pass as "after" to continue towards newer messages
+    private String newerCursor;
+    private boolean hasOlder;
+    private boolean hasNewer;
+}
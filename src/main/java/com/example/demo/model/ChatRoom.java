@@ -13,7 +13,7 @@ import java.time.LocalDateTime;
 @AllArgsConstructor
 public class ChatRoom {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @PooledSequence("chat_rooms_seq")
     private Long id;
     
     @ManyToOne(fetch = FetchType.LAZY)
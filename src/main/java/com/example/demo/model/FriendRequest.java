@@ -8,7 +8,7 @@ import java.time.LocalDateTime;
 public class FriendRequest {
 
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @PooledSequence("friend_requests_seq")
     private Long id;
 
     @ManyToOne
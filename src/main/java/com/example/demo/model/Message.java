@@ -5,17 +5,35 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 
 @Entity
-@Table(name = "messages")
+@Table(name = "messages", uniqueConstraints = {
+        @UniqueConstraint(name = "uk_messages_sender_client_message_id",
+                columnNames = {"sender_id", "client_message_id"})
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class Message {
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @PooledSequence("messages_seq")
     private Long id;
     
+    // Chat room id, denormalized so history reads are one range scan on
+    // (conversation_id, created_at, id). That index is built concurrently by
+    // ConversationBackfillJob rather than declared here, so schema update never blocks writes.
+    @Column(name = "conversation_id")
+    private Long conversationId;
+
+    // Position within the chat room, assigned by RoomSequencer; null for messages older than it
+    @Column(name = "room_seq")
+    private Long roomSeq;
+
+    // Sender-generated id that makes resends idempotent; unique per sender when present
+    @Column(name = "client_message_id", length = 64)
+    private String clientMessageId;
+
     @ManyToOne(fetch = FetchType.LAZY)
     @JoinColumn(name = "sender_id", nullable = false)
     private User sender;
@@ -34,12 +52,14 @@ public class Message {
     @Column(name = "created_at", nullable = false)
     private LocalDateTime createdAt;
     
+    // Legacy flag, no longer updated; read state is derived from read_watermarks
     @Column(name = "is_read", nullable = false)
     private Boolean isRead = false;
     
     @PrePersist
     protected void onCreate() {
-        createdAt = LocalDateTime.now();
+        // Match the database's microsecond precision so cursors built before and after a reload agree
+        createdAt = LocalDateTime.now().truncatedTo(ChronoUnit.MICROS);
     }
     
     public enum MessageType {
@@ -0,0 +1,19 @@
+package com.example.demo.model;
+
+import org.hibernate.annotations.IdGeneratorType;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Sequence-backed id with the pooled optimizer. Unlike IDENTITY this keeps Hibernate
+// JDBC insert batching enabled. The allocation size comes from app.id.allocation-size.
+@IdGeneratorType(PooledSequenceGenerator.class)
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.FIELD, ElementType.METHOD})
+public @interface PooledSequence {
+
+    // Database sequence name, e.g. "messages_seq"
+    String value();
+}
@@ -0,0 +1,41 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+
+// Last message a participant has read in a conversation. Every message in the
+// conversation addressed to that user with an id up to this one counts as read.
+@Entity
+@Table(name = "read_watermarks")
+@IdClass(ReadWatermark.Key.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReadWatermark {
+    @Id
+    @Column(name = "conversation_id")
+    private Long conversationId;
+
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Column(name = "last_read_message_id", nullable = false)
+    private Long lastReadMessageId;
+
+    @Column(name = "updated_at", nullable = false)
+    private LocalDateTime updatedAt;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private Long conversationId;
+        private Long userId;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+
+// Materialized number of unread messages for one user in one conversation.
+// Maintained incrementally by UnreadCounterService and periodically reconciled.
+@Entity
+@Table(name = "unread_counters")
+@IdClass(UnreadCounter.Key.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class UnreadCounter {
+    @Id
+    @Column(name = "user_id")
+    private Long userId;
+
+    @Id
+    @Column(name = "conversation_id")
+    private Long conversationId;
+
+    // The other participant, so per-room counts can be keyed by room id without a join
+    @Column(name = "peer_user_id", nullable = false)
+    private Long peerUserId;
+
+    @Column(name = "unread_count", nullable = false)
+    private Long unreadCount;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private Long userId;
+        private Long conversationId;
+    }
+}
@@ -3,10 +3,12 @@ package com.example.demo.repository;
 import com.example.demo.model.ChatRoom;
 import com.example.demo.model.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 
@@ -22,4 +24,10 @@ public interface ChatRoomRepository extends JpaRepository<ChatRoom, Long> {
     List<ChatRoom> findByUser(@Param("user") User user);
     
     Optional<ChatRoom> findByRoomId(String roomId);
+
+    // Only moves last_message_at forward, so out-of-order flushes cannot rewind it
+    @Modifying
+    @Query("UPDATE ChatRoom cr SET cr.lastMessageAt = :lastMessageAt WHERE cr.id = :id " +
+           "AND (cr.lastMessageAt IS NULL OR cr.lastMessageAt < :lastMessageAt)")
+    int updateLastMessageAt(@Param("id") Long id, @Param("lastMessageAt") LocalDateTime lastMessageAt);
 }
\ No newline at end of file
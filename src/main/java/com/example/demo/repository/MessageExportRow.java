@@ -0,0 +1,11 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.Message;
+
+import java.time.LocalDateTime;
+
+// Unmanaged projection used for exports, so the persistence context never grows
+public record MessageExportRow(Long id, Long senderId, Long receiverId, String encryptedContent,
+                               Message.MessageType messageType, LocalDateTime createdAt, Long roomSeq,
+                               String clientMessageId) {
+}
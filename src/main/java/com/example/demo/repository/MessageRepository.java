@@ -1,34 +1,119 @@
 package com.example.demo.repository;
 
 import com.example.demo.model.Message;
-import com.example.demo.model.User;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface MessageRepository extends JpaRepository<Message, Long> {
-    
-    @Query("SELECT m FROM Message m WHERE " +
-           "(m.sender = :user1 AND m.receiver = :user2) OR " +
-           "(m.sender = :user2 AND m.receiver = :user1) " +
-           "ORDER BY m.createdAt ASC")
-    List<Message> findMessagesBetweenUsers(@Param("user1") User user1, @Param("user2") User user2);
-    
-    @Query("SELECT m FROM Message m WHERE " +
-           "(m.sender = :user1 AND m.receiver = :user2) OR " +
-           "(m.sender = :user2 AND m.receiver = :user1) " +
-           "ORDER BY m.createdAt DESC")
-    Page<Message> findMessagesBetweenUsers(@Param("user1") User user1, @Param("user2") User user2, Pageable pageable);
-    
-    @Query("SELECT COUNT(m) FROM Message m WHERE m.receiver = :receiver AND m.isRead = false")
-    Long countUnreadMessages(@Param("receiver") User receiver);
-    
-    @Query("SELECT COUNT(m) FROM Message m WHERE m.receiver = :receiver AND m.sender = :sender AND m.isRead = false")
-    Long countUnreadMessagesBetweenUsers(@Param("receiver") User receiver, @Param("sender") User sender);
-}
\ No newline at end of file
+
+    String ROW_SELECT = "SELECT new com.example.demo.repository.MessageRow(" +
+            "m.id, m.conversationId, s.id, s.username, s.profileImageUrl, r.id, r.username, r.profileImageUrl, " +
+            "m.encryptedContent, m.messageType, m.createdAt, m.roomSeq, m.clientMessageId) " +
+            "FROM Message m JOIN m.sender s JOIN m.receiver r ";
+
+    String EXPORT_SELECT = "SELECT new com.example.demo.repository.MessageExportRow(" +
+            "m.id, m.sender.id, m.receiver.id, m.encryptedContent, m.messageType, m.createdAt, m.roomSeq, " +
+            "m.clientMessageId) " +
+            "FROM Message m ";
+
+    String BETWEEN_USERS = "((m.sender.id = :user1 AND m.receiver.id = :user2) OR " +
+            "(m.sender.id = :user2 AND m.receiver.id = :user1)) ";
+
+    // History queries all filter on conversation_id so they are served by
+    // the (conversation_id, created_at, id) index instead of an OR over sender/receiver
+
+    // Offset page, newest first, without the COUNT query a Page would add
+    @Query(ROW_SELECT + "WHERE m.conversationId = :conversationId ORDER BY m.createdAt DESC, m.id DESC")
+    List<MessageRow> findPageInConversation(@Param("conversationId") Long conversationId, Pageable pageable);
+
+    @Query(ROW_SELECT + "WHERE m.id = :id")
+    Optional<MessageRow> findRowById(@Param("id") Long id);
+
+    // Sequence numbers of the newest messages in a room, newest first; null for unsequenced rows
+    @Query("SELECT m.roomSeq FROM Message m WHERE m.conversationId = :conversationId " +
+           "ORDER BY m.createdAt DESC, m.id DESC")
+    List<Long> findNewestRoomSeqs(@Param("conversationId") Long conversationId, Pageable pageable);
+
+    // The stored copy of a resent message, served by the (sender_id, client_message_id) unique index
+    @Query("SELECT m FROM Message m WHERE m.sender.id = :senderId AND m.clientMessageId = :clientMessageId")
+    Optional<Message> findByClientMessageId(@Param("senderId") Long senderId,
+                                            @Param("clientMessageId") String clientMessageId);
+
+    // Keyset pages: no COUNT query and no OFFSET, cost does not grow with scroll depth
+    @Query(ROW_SELECT + "WHERE m.conversationId = :conversationId ORDER BY m.createdAt DESC, m.id DESC")
+    List<MessageRow> findLatestInConversation(@Param("conversationId") Long conversationId, Pageable pageable);
+
+    @Query(ROW_SELECT + "WHERE m.conversationId = :conversationId " +
+           "AND (m.createdAt < :createdAt OR (m.createdAt = :createdAt AND m.id < :id)) " +
+           "ORDER BY m.createdAt DESC, m.id DESC")
+    List<MessageRow> findBeforeInConversation(@Param("conversationId") Long conversationId,
+                                              @Param("createdAt") LocalDateTime createdAt, @Param("id") Long id,
+                                              Pageable pageable);
+
+    @Query(ROW_SELECT + "WHERE m.conversationId = :conversationId " +
+           "AND (m.createdAt > :createdAt OR (m.createdAt = :createdAt AND m.id > :id)) " +
+           "ORDER BY m.createdAt ASC, m.id ASC")
+    List<MessageRow> findAfterInConversation(@Param("conversationId") Long conversationId,
+                                             @Param("createdAt") LocalDateTime createdAt, @Param("id") Long id,
+                                             Pageable pageable);
+
+    // Export pages, oldest first. Each page is its own short query, so an export never holds a
+    // transaction or a connection between pages however long it takes the client to read it.
+    @Query(EXPORT_SELECT + "WHERE m.conversationId = :conversationId ORDER BY m.createdAt ASC, m.id ASC")
+    List<MessageExportRow> findExportPage(@Param("conversationId") Long conversationId, Pageable pageable);
+
+    @Query(EXPORT_SELECT + "WHERE m.conversationId = :conversationId " +
+           "AND (m.createdAt > :createdAt OR (m.createdAt = :createdAt AND m.id > :id)) " +
+           "ORDER BY m.createdAt ASC, m.id ASC")
+    List<MessageExportRow> findExportPageAfter(@Param("conversationId") Long conversationId,
+                                               @Param("createdAt") LocalDateTime createdAt, @Param("id") Long id,
+                                               Pageable pageable);
+
+    // Participant variants of the history queries above, for ConversationQueries to use while
+    // ConversationBackfillJob has not yet given every old row its conversation_id
+
+    @Query(ROW_SELECT + "WHERE " + BETWEEN_USERS + "ORDER BY m.createdAt DESC, m.id DESC")
+    List<MessageRow> findPageBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                          Pageable pageable);
+
+    @Query("SELECT m.roomSeq FROM Message m WHERE " + BETWEEN_USERS + "ORDER BY m.createdAt DESC, m.id DESC")
+    List<Long> findNewestRoomSeqsBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                              Pageable pageable);
+
+    @Query(ROW_SELECT + "WHERE " + BETWEEN_USERS + "ORDER BY m.createdAt DESC, m.id DESC")
+    List<MessageRow> findLatestBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                            Pageable pageable);
+
+    @Query(ROW_SELECT + "WHERE " + BETWEEN_USERS +
+           "AND (m.createdAt < :createdAt OR (m.createdAt = :createdAt AND m.id < :id)) " +
+           "ORDER BY m.createdAt DESC, m.id DESC")
+    List<MessageRow> findBeforeBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                            @Param("createdAt") LocalDateTime createdAt, @Param("id") Long id,
+                                            Pageable pageable);
+
+    @Query(ROW_SELECT + "WHERE " + BETWEEN_USERS +
+           "AND (m.createdAt > :createdAt OR (m.createdAt = :createdAt AND m.id > :id)) " +
+           "ORDER BY m.createdAt ASC, m.id ASC")
+    List<MessageRow> findAfterBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                           @Param("createdAt") LocalDateTime createdAt, @Param("id") Long id,
+                                           Pageable pageable);
+
+    @Query(EXPORT_SELECT + "WHERE " + BETWEEN_USERS + "ORDER BY m.createdAt ASC, m.id ASC")
+    List<MessageExportRow> findExportPageBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                                      Pageable pageable);
+
+    @Query(EXPORT_SELECT + "WHERE " + BETWEEN_USERS +
+           "AND (m.createdAt > :createdAt OR (m.createdAt = :createdAt AND m.id > :id)) " +
+           "ORDER BY m.createdAt ASC, m.id ASC")
+    List<MessageExportRow> findExportPageAfterBetweenUsers(@Param("user1") Long user1, @Param("user2") Long user2,
+                                                           @Param("createdAt") LocalDateTime createdAt,
+                                                           @Param("id") Long id, Pageable pageable);
+}
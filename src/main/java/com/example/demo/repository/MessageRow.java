@@ -0,0 +1,14 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.Message;
+
+import java.time.LocalDateTime;
+
+// History page projection: the ciphertext plus everything the DTO needs about both users,
+// read in one joined query instead of through lazy sender/receiver proxies
+public record MessageRow(Long id, Long conversationId,
+                         Long senderId, String senderUsername, String senderProfileImageUrl,
+                         Long receiverId, String receiverUsername, String receiverProfileImageUrl,
+                         String encryptedContent, Message.MessageType messageType, LocalDateTime createdAt,
+                         Long roomSeq, String clientMessageId) {
+}
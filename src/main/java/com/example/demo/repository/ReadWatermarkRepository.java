@@ -0,0 +1,46 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.ReadWatermark;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Repository
+public interface ReadWatermarkRepository extends JpaRepository<ReadWatermark, ReadWatermark.Key> {
+
+    List<ReadWatermark> findByConversationId(Long conversationId);
+
+    // Single-statement mark-read: moves the watermark to the newest message in the
+    // conversation, never backwards
+    @Modifying
+    @Query(value = "INSERT INTO read_watermarks (conversation_id, user_id, last_read_message_id, updated_at) " +
+                   "SELECT :conversationId, :userId, m.id, :now FROM messages m " +
+                   "WHERE m.conversation_id = :conversationId " +
+                   "ORDER BY m.created_at DESC, m.id DESC LIMIT 1 " +
+                   "ON CONFLICT (conversation_id, user_id) DO UPDATE SET " +
+                   "last_read_message_id = GREATEST(read_watermarks.last_read_message_id, EXCLUDED.last_read_message_id), " +
+                   "updated_at = EXCLUDED.updated_at",
+           nativeQuery = true)
+    int markReadUpToLatest(@Param("conversationId") Long conversationId, @Param("userId") Long userId,
+                           @Param("now") LocalDateTime now);
+
+    // Same, for a conversation whose older rows may not have their conversation_id yet
+    @Modifying
+    @Query(value = "INSERT INTO read_watermarks (conversation_id, user_id, last_read_message_id, updated_at) " +
+                   "SELECT :conversationId, :userId, m.id, :now FROM messages m " +
+                   "WHERE (m.sender_id = :user1 AND m.receiver_id = :user2) " +
+                   "OR (m.sender_id = :user2 AND m.receiver_id = :user1) " +
+                   "ORDER BY m.created_at DESC, m.id DESC LIMIT 1 " +
+                   "ON CONFLICT (conversation_id, user_id) DO UPDATE SET " +
+                   "last_read_message_id = GREATEST(read_watermarks.last_read_message_id, EXCLUDED.last_read_message_id), " +
+                   "updated_at = EXCLUDED.updated_at",
+           nativeQuery = true)
+    int markReadUpToLatestBetweenUsers(@Param("conversationId") Long conversationId, @Param("userId") Long userId,
+                                       @Param("user1") Long user1, @Param("user2") Long user2,
+                                       @Param("now") LocalDateTime now);
+}
@@ -0,0 +1,13 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.UnreadCounter;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface UnreadCounterRepository extends JpaRepository<UnreadCounter, UnreadCounter.Key> {
+
+    List<UnreadCounter> findByUserId(Long userId);
+}
@@ -0,0 +1,57 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.TimeUnit;
+
+// Timers for the stages a chat message passes through between the STOMP controller and the
+// database. Channel queueing is measured by ChannelMetricsInterceptor, the async executor by
+// AsyncConfig and encryption by EncryptionUtil.
+@Component
+public class ChatPipelineMetrics {
+
+    private final Timer fanoutTimer;
+    private final Timer saveTimer;
+    private final Timer saveBatchTimer;
+    private final Timer updateDeliveredTimer;
+    private final Timer updateFailedTimer;
+
+    public ChatPipelineMetrics(MeterRegistry meterRegistry) {
+        this.fanoutTimer = Timer.builder("chat.fanout")
+                .description("Time to hand a message to the broker for the receiver and the sender")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.saveTimer = Timer.builder("chat.db.save")
+                .description("Repository time to insert messages, excluding the commit")
+                .tag("mode", "single")
+                .register(meterRegistry);
+        this.saveBatchTimer = Timer.builder("chat.db.save")
+                .description("Repository time to insert messages, excluding the commit")
+                .tag("mode", "batch")
+                .register(meterRegistry);
+        this.updateDeliveredTimer = Timer.builder("chat.message.update")
+                .description("Time from receiving a message to sending its /queue/message-update")
+                .tag("outcome", "delivered")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.updateFailedTimer = Timer.builder("chat.message.update")
+                .description("Time from receiving a message to sending its /queue/message-update")
+                .tag("outcome", "failed")
+                .register(meterRegistry);
+    }
+
+    public void recordFanout(long startNanos) {
+        fanoutTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSave(long startNanos, boolean batch) {
+        (batch ? saveBatchTimer : saveTimer).record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordUpdate(long receivedNanos, boolean delivered) {
+        (delivered ? updateDeliveredTimer : updateFailedTimer)
+                .record(System.nanoTime() - receivedNanos, TimeUnit.NANOSECONDS);
+    }
+}
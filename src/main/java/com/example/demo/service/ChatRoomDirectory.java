@@ -0,0 +1,156 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChatRoom;
+import com.example.demo.repository.ChatRoomRepository;
+import com.example.demo.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Resolves the chat room for a pair of users without querying chat_rooms on every
+// message, and coalesces last_message_at updates into one write per room per flush.
+@Component
+@Slf4j
+public class ChatRoomDirectory {
+
+    private static final long MAX_PACKED_ID = 0xFFFFFFFFL;
+
+    private final ChatRoomRepository chatRoomRepository;
+    private final UserRepository userRepository;
+    private final TransactionTemplate requiresNew;
+    private final TransactionTemplate flushTransaction;
+
+    // (minUserId << 32 | maxUserId) -> chat_rooms.id
+    private final Cache<Long, Long> rooms;
+    // chat_rooms.id -> newest message time not yet written
+    private final ConcurrentHashMap<Long, LocalDateTime> pendingLastMessageAt = new ConcurrentHashMap<>();
+
+    public ChatRoomDirectory(ChatRoomRepository chatRoomRepository,
+                             UserRepository userRepository,
+                             PlatformTransactionManager transactionManager,
+                             MeterRegistry meterRegistry,
+                             @Value("${app.chat.rooms.cache.max-size:500000}") long maxSize) {
+        this.chatRoomRepository = chatRoomRepository;
+        this.userRepository = userRepository;
+        this.requiresNew = new TransactionTemplate(transactionManager);
+        this.requiresNew.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        this.flushTransaction = new TransactionTemplate(transactionManager);
+        this.rooms = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, rooms, "chatRooms");
+    }
+
+    public static String roomId(long userId1, long userId2) {
+        return Math.min(userId1, userId2) + "_" + Math.max(userId1, userId2);
+    }
+
+    // Packs the canonical (min, max) pair into one long; -1 when an id does not fit in 32 bits
+    static long roomKey(long userId1, long userId2) {
+        long min = Math.min(userId1, userId2);
+        long max = Math.max(userId1, userId2);
+        if (min < 0 || max > MAX_PACKED_ID) {
+            return -1;
+        }
+        return (min << 32) | max;
+    }
+
+    public Long resolve(Long userId1, Long userId2) {
+        long key = roomKey(userId1, userId2);
+        if (key < 0) {
+            return findOrCreate(userId1, userId2);
+        }
+        Long id = rooms.getIfPresent(key);
+        if (id == null) {
+            id = findOrCreate(userId1, userId2);
+            rooms.put(key, id);
+        }
+        return id;
+    }
+
+    // Like resolve, but returns null instead of creating a room that does not exist yet
+    public Long find(Long userId1, Long userId2) {
+        long key = roomKey(userId1, userId2);
+        Long id = key < 0 ? null : rooms.getIfPresent(key);
+        if (id != null) {
+            return id;
+        }
+        id = chatRoomRepository.findByRoomId(roomId(userId1, userId2)).map(ChatRoom::getId).orElse(null);
+        if (id != null && key >= 0) {
+            rooms.put(key, id);
+        }
+        return id;
+    }
+
+    private Long findOrCreate(Long userId1, Long userId2) {
+        String roomId = roomId(userId1, userId2);
+        return chatRoomRepository.findByRoomId(roomId)
+                .map(ChatRoom::getId)
+                .orElseGet(() -> create(userId1, userId2, roomId));
+    }
+
+    private Long create(Long userId1, Long userId2, String roomId) {
+        // The unique room_id decides concurrent creates (here or on another node); the loser re-reads.
+        // Runs in its own transaction so a constraint violation cannot poison the caller's.
+        try {
+            return requiresNew.execute(status -> {
+                ChatRoom newRoom = new ChatRoom();
+                newRoom.setUser1(userRepository.getReferenceById(userId1));
+                newRoom.setUser2(userRepository.getReferenceById(userId2));
+                newRoom.setLastMessageAt(LocalDateTime.now());
+                return chatRoomRepository.saveAndFlush(newRoom).getId();
+            });
+        } catch (DataIntegrityViolationException e) {
+            return requiresNew.execute(status -> chatRoomRepository.findByRoomId(roomId)
+                    .map(ChatRoom::getId)
+                    .orElseThrow(() -> new RuntimeException("Chat room vanished after concurrent create: " + roomId)));
+        }
+    }
+
+    public void touch(Long chatRoomId, LocalDateTime lastMessageAt) {
+        pendingLastMessageAt.merge(chatRoomId, lastMessageAt, (current, next) -> next.isAfter(current) ? next : current);
+    }
+
+    @Scheduled(fixedDelayString = "${app.chat.rooms.flush-interval-ms:1000}")
+    public void flushLastMessageAt() {
+        if (pendingLastMessageAt.isEmpty()) {
+            return;
+        }
+        Map<Long, LocalDateTime> batch = new HashMap<>();
+        for (Long chatRoomId : pendingLastMessageAt.keySet()) {
+            LocalDateTime lastMessageAt = pendingLastMessageAt.remove(chatRoomId);
+            if (lastMessageAt != null) {
+                batch.put(chatRoomId, lastMessageAt);
+            }
+        }
+
+        try {
+            flushTransaction.executeWithoutResult(status -> batch.forEach(chatRoomRepository::updateLastMessageAt));
+        } catch (Exception e) {
+            // Put the timestamps back so the next flush retries them
+            batch.forEach(this::touch);
+            log.warn("Failed to flush chat room activity for {} rooms: {}", batch.size(), e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flushLastMessageAt();
+    }
+}
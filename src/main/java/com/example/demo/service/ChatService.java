@@ -1,83 +1,61 @@
 package com.example.demo.service;
 
 import com.example.demo.dto.ChatMessage;
-import com.example.demo.model.ChatRoom;
+import com.example.demo.dto.MessageHistoryResponse;
 import com.example.demo.model.Message;
 import com.example.demo.model.User;
-import com.example.demo.repository.ChatRoomRepository;
+import com.example.demo.model.ReadWatermark;
 import com.example.demo.repository.MessageRepository;
+import com.example.demo.repository.MessageRow;
+import com.example.demo.repository.ReadWatermarkRepository;
 import com.example.demo.repository.UserRepository;
+import com.example.demo.service.ConversationQueries.Conversation;
 import com.example.demo.util.EncryptionUtil;
 import lombok.RequiredArgsConstructor;
-import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 @Service
 @RequiredArgsConstructor
 public class ChatService {
 
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+
     private final MessageRepository messageRepository;
-    private final ChatRoomRepository chatRoomRepository;
+    private final ChatRoomDirectory chatRoomDirectory;
     private final UserRepository userRepository;
     private final EncryptionUtil encryptionUtil;
+    private final UserDirectory userDirectory;
+    private final ReadWatermarkRepository readWatermarkRepository;
+    private final UnreadCounterService unreadCounterService;
+    private final MessageDecryptor messageDecryptor;
+    private final RecentMessageCache recentMessageCache;
+    private final ChatPipelineMetrics pipelineMetrics;
+    private final ConversationQueries conversationQueries;
 
     @Transactional
     public ChatMessage saveMessage(ChatMessage chatMessage) {
         try {
-            // Validate input
-            if (chatMessage == null) {
-                throw new IllegalArgumentException("Chat message cannot be null");
-            }
-            if (chatMessage.getContent() == null || chatMessage.getContent().trim().isEmpty()) {
-                throw new IllegalArgumentException("Message content cannot be empty");
-            }
-            if (chatMessage.getSenderId() == null || chatMessage.getReceiverId() == null) {
-                throw new IllegalArgumentException("Sender and receiver IDs are required");
-            }
-
-            User sender = userRepository.findById(chatMessage.getSenderId())
-                    .orElseThrow(() -> new RuntimeException("Sender not found with ID: " + chatMessage.getSenderId()));
-            User receiver = userRepository.findById(chatMessage.getReceiverId())
-                    .orElseThrow(() -> new RuntimeException("Receiver not found with ID: " + chatMessage.getReceiverId()));
-
-            // Create or get chat room (optimized with caching)
-            ChatRoom chatRoom = getOrCreateChatRoomOptimized(sender, receiver);
-
-            // Encrypt message content
-            String encryptedContent = encryptionUtil.encrypt(chatMessage.getContent().trim());
-
-            // Create and save message
-            Message message = new Message();
-            message.setSender(sender);
-            message.setReceiver(receiver);
-            message.setEncryptedContent(encryptedContent);
-            
-            // Set message type with default fallback
-            String messageType = chatMessage.getMessageType();
-            if (messageType == null || messageType.trim().isEmpty()) {
-                messageType = "TEXT";
-            }
-            message.setMessageType(Message.MessageType.valueOf(messageType.toUpperCase()));
-            
-            message.setCreatedAt(chatMessage.getTimestamp() != null ? chatMessage.getTimestamp() : LocalDateTime.now());
-            message.setIsRead(false);
-
+            Message message = buildMessage(chatMessage);
+            long start = System.nanoTime();
             Message savedMessage = messageRepository.save(message);
-
-            // Update chat room last message time asynchronously
-            updateChatRoomAsync(chatRoom, savedMessage.getCreatedAt());
+            pipelineMetrics.recordSave(start, false);
+            touchRoom(savedMessage);
+            unreadCounterService.recordPersisted(List.of(savedMessage));
 
             // Convert to DTO and decrypt for response
-            return convertToDTO(savedMessage);
+            ChatMessage saved = convertToDTO(savedMessage);
+            recentMessageCache.recordPersisted(savedMessage.getConversationId(), saved);
+            return saved;
         } catch (IllegalArgumentException e) {
             throw e;
         } catch (Exception e) {
@@ -85,87 +63,322 @@ public class ChatService {
         }
     }
 
-    private void updateChatRoomAsync(ChatRoom chatRoom, LocalDateTime timestamp) {
-        // Update chat room in background to avoid blocking
+    // Persist a group of messages in one transaction; results keep the input order.
+    // Any invalid message rolls back the whole batch so callers can retry individually.
+    @Transactional
+    public List<ChatMessage> saveMessages(List<ChatMessage> chatMessages) {
         try {
-            chatRoom.setLastMessageAt(timestamp);
-            chatRoomRepository.save(chatRoom);
+            List<Message> messages = new ArrayList<>(chatMessages.size());
+            for (ChatMessage chatMessage : chatMessages) {
+                messages.add(buildMessage(chatMessage));
+            }
+
+            long start = System.nanoTime();
+            List<Message> savedMessages = messageRepository.saveAll(messages);
+            pipelineMetrics.recordSave(start, true);
+            savedMessages.forEach(this::touchRoom);
+            unreadCounterService.recordPersisted(savedMessages);
+
+            List<ChatMessage> result = new ArrayList<>(savedMessages.size());
+            for (Message savedMessage : savedMessages) {
+                ChatMessage saved = convertToDTO(savedMessage);
+                recentMessageCache.recordPersisted(savedMessage.getConversationId(), saved);
+                result.add(saved);
+            }
+            return result;
+        } catch (IllegalArgumentException e) {
+            throw e;
         } catch (Exception e) {
-            // Silent fail for background operations
+            throw new RuntimeException("Failed to save messages: " + e.getMessage(), e);
         }
     }
 
-    private ChatRoom getOrCreateChatRoomOptimized(User user1, User user2) {
-        // Try to find existing room first
-        Optional<ChatRoom> existingRoom = chatRoomRepository.findByUsers(user1, user2);
+    // The message a sender already stored under this client message id, or null
+    @Transactional(readOnly = true)
+    public ChatMessage findByClientMessageId(Long senderId, String clientMessageId) {
+        return messageRepository.findByClientMessageId(senderId, clientMessageId)
+                .map(this::convertToDTO)
+                .orElse(null);
+    }
+
+    // Last message time is coalesced in memory and written behind on a timer. It takes the server's
+    // persist time set by @PrePersist, never the client's timestamp, since the write-behind only
+    // moves forward and a client clock in the future would pin the room at the top of the list.
+    private void touchRoom(Message savedMessage) {
+        chatRoomDirectory.touch(savedMessage.getConversationId(), savedMessage.getCreatedAt());
+    }
 
-        if (existingRoom.isPresent()) {
-            return existingRoom.get();
+    private Message buildMessage(ChatMessage chatMessage) {
+        // Validate input
+        if (chatMessage == null) {
+            throw new IllegalArgumentException("Chat message cannot be null");
         }
+        if (chatMessage.getContent() == null || chatMessage.getContent().trim().isEmpty()) {
+            throw new IllegalArgumentException("Message content cannot be empty");
+        }
+        if (chatMessage.getSenderId() == null || chatMessage.getReceiverId() == null) {
+            throw new IllegalArgumentException("Sender and receiver IDs are required");
+        }
+
+        // Existence is checked against the user directory; the entities are only needed as FK references
+        if (userDirectory.find(chatMessage.getSenderId()) == null) {
+            throw new RuntimeException("Sender not found with ID: " + chatMessage.getSenderId());
+        }
+        if (userDirectory.find(chatMessage.getReceiverId()) == null) {
+            throw new RuntimeException("Receiver not found with ID: " + chatMessage.getReceiverId());
+        }
+        User sender = userRepository.getReferenceById(chatMessage.getSenderId());
+        User receiver = userRepository.getReferenceById(chatMessage.getReceiverId());
+
+        // Resolve or create the chat room through the in-memory room directory
+        Long chatRoomId = chatRoomDirectory.resolve(sender.getId(), receiver.getId());
+
+        // Encrypt message content
+        String encryptedContent = encryptionUtil.encrypt(chatMessage.getContent().trim());
+
+        Message message = new Message();
+        message.setConversationId(chatRoomId);
+        message.setRoomSeq(chatMessage.getRoomSeq());
+        message.setClientMessageId(chatMessage.getClientMessageId());
+        message.setSender(sender);
+        message.setReceiver(receiver);
+        message.setEncryptedContent(encryptedContent);
+
+        // Set message type with default fallback
+        String messageType = chatMessage.getMessageType();
+        if (messageType == null || messageType.trim().isEmpty()) {
+            messageType = "TEXT";
+        }
+        message.setMessageType(Message.MessageType.valueOf(messageType.toUpperCase()));
+
+        message.setCreatedAt(chatMessage.getTimestamp() != null ? chatMessage.getTimestamp() : LocalDateTime.now());
+        message.setIsRead(false);
 
-        // Create new room if not exists
-        ChatRoom newRoom = new ChatRoom();
-        newRoom.setUser1(user1);
-        newRoom.setUser2(user2);
-        newRoom.setLastMessageAt(LocalDateTime.now());
-        return chatRoomRepository.save(newRoom);
+        return message;
     }
 
     public List<ChatMessage> getMessagesBetweenUsers(Long userId1, Long userId2, int page, int size) {
-        User user1 = userRepository.findById(userId1)
-                .orElseThrow(() -> new RuntimeException("User not found"));
-        User user2 = userRepository.findById(userId2)
-                .orElseThrow(() -> new RuntimeException("User not found"));
+        Conversation conversation = findConversation(userId1, userId2);
+        if (conversation == null) {
+            return Collections.emptyList();
+        }
 
-        Pageable pageable = PageRequest.of(page, size, Sort.by("createdAt").descending());
-        Page<Message> messages = messageRepository.findMessagesBetweenUsers(user1, user2, pageable);
+        Pageable pageable = PageRequest.of(page, size);
+        List<MessageRow> rows = conversationQueries.page(conversation, pageable);
+        return convertRowsToDTOs(rows, loadWatermarks(conversation.id()));
+    }
 
-        return messages.getContent().stream()
-                .map(this::convertToDTO)
-                .collect(Collectors.toList());
+    // Newest page served from the in-memory ring of recent messages, or null when the
+    // caller has to fall back to the database query. Sizes the endpoints would reject or
+    // clamp also fall back, so the answer never depends on whether the room is cached.
+    public RecentMessageCache.CachedPage getNewestPageFromCache(Long userId1, Long userId2, int limit) {
+        if (limit < 1 || limit > MAX_HISTORY_PAGE_SIZE || limit >= recentMessageCache.messagesPerRoom()) {
+            return null;
+        }
+        Conversation conversation = findConversation(userId1, userId2);
+        if (conversation == null) {
+            return null;
+        }
+        return recentMessageCache.newestPage(conversation.id(), userId1, userId2, limit,
+                () -> loadRecentSnapshot(conversation));
+    }
+
+    private RecentMessageCache.Snapshot loadRecentSnapshot(Conversation conversation) {
+        int size = recentMessageCache.messagesPerRoom();
+        List<MessageRow> rows = conversationQueries.latest(conversation, size);
+        return new RecentMessageCache.Snapshot(convertRowsToDTOs(rows, Collections.emptyMap()),
+                rows.size() < size, loadWatermarks(conversation.id()));
+    }
+
+    public MessageHistoryResponse getMessageHistory(Long userId1, Long userId2, String before, String after,
+                                                    Long around, int limit) {
+        Conversation conversation = findConversation(userId1, userId2);
+        int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+        if (conversation == null) {
+            return toHistoryResponse(Collections.emptyList(), Collections.emptyMap(), false, false);
+        }
+
+        if (around != null) {
+            return getMessagesAround(conversation, around, pageSize);
+        }
+        Map<Long, Long> lastReadByUser = loadWatermarks(conversation.id());
+        if (after != null) {
+            // Newer messages come back oldest first from the seek; flip to newest first
+            MessageCursor cursor = MessageCursor.decode(after);
+            List<MessageRow> newer = conversationQueries.after(conversation, cursor, pageSize + 1);
+            boolean hasNewer = newer.size() > pageSize;
+            List<MessageRow> page = new ArrayList<>(newer.subList(0, Math.min(newer.size(), pageSize)));
+            Collections.reverse(page);
+            return toHistoryResponse(page, lastReadByUser, true, hasNewer);
+        }
+
+        List<MessageRow> older;
+        if (before != null) {
+            MessageCursor cursor = MessageCursor.decode(before);
+            older = conversationQueries.before(conversation, cursor, pageSize + 1);
+        } else {
+            older = conversationQueries.latest(conversation, pageSize + 1);
+        }
+        boolean hasOlder = older.size() > pageSize;
+        return toHistoryResponse(older.subList(0, Math.min(older.size(), pageSize)), lastReadByUser,
+                hasOlder, before != null);
+    }
+
+    private MessageHistoryResponse getMessagesAround(Conversation conversation, Long messageId, int pageSize) {
+        MessageRow target = messageRepository.findRowById(messageId)
+                .orElseThrow(() -> new RuntimeException("Message not found"));
+        if (!conversationQueries.contains(conversation, target.conversationId(),
+                target.senderId(), target.receiverId())) {
+            throw new IllegalArgumentException("Message does not belong to this conversation");
+        }
+
+        // Window of roughly half older and half newer messages around the target
+        int newerCount = (pageSize - 1) / 2;
+        int olderCount = pageSize - 1 - newerCount;
+        MessageCursor cursor = MessageCursor.of(target);
+        List<MessageRow> newer = conversationQueries.after(conversation, cursor, newerCount + 1);
+        List<MessageRow> older = conversationQueries.before(conversation, cursor, olderCount + 1);
+
+        List<MessageRow> page = new ArrayList<>(pageSize);
+        List<MessageRow> newerPage = new ArrayList<>(newer.subList(0, Math.min(newer.size(), newerCount)));
+        Collections.reverse(newerPage);
+        page.addAll(newerPage);
+        page.add(target);
+        page.addAll(older.subList(0, Math.min(older.size(), olderCount)));
+        return toHistoryResponse(page, loadWatermarks(conversation.id()),
+                older.size() > olderCount, newer.size() > newerCount);
+    }
+
+    private MessageHistoryResponse toHistoryResponse(List<MessageRow> newestFirst, Map<Long, Long> lastReadByUser,
+                                                     boolean hasOlder, boolean hasNewer) {
+        List<ChatMessage> messages = convertRowsToDTOs(newestFirst, lastReadByUser);
+        String olderCursor = null;
+        String newerCursor = null;
+        if (!newestFirst.isEmpty()) {
+            olderCursor = MessageCursor.of(newestFirst.get(newestFirst.size() - 1)).encode();
+            newerCursor = MessageCursor.of(newestFirst.get(0)).encode();
+        }
+        return new MessageHistoryResponse(messages, olderCursor, newerCursor, hasOlder, hasNewer);
     }
 
     @Transactional
     public void markMessagesAsRead(Long senderId, Long receiverId) {
-        User sender = userRepository.findById(senderId)
-                .orElseThrow(() -> new RuntimeException("Sender not found"));
-        User receiver = userRepository.findById(receiverId)
-                .orElseThrow(() -> new RuntimeException("Receiver not found"));
-
-        List<Message> unreadMessages = messageRepository.findMessagesBetweenUsers(sender, receiver)
-                .stream()
-                .filter(m -> m.getReceiver().equals(receiver) && !m.getIsRead())
-                .collect(Collectors.toList());
+        requireUser(senderId, "Sender not found");
+        requireUser(receiverId, "Receiver not found");
+        Long conversationId = chatRoomDirectory.find(senderId, receiverId);
+        if (conversationId == null) {
+            return;
+        }
 
-        unreadMessages.forEach(message -> message.setIsRead(true));
-        messageRepository.saveAll(unreadMessages);
+        long cleared = unreadCounterService.lockForReset(receiverId, conversationId, senderId);
+        // One upsert of the reader's watermark instead of loading and updating every message
+        conversationQueries.markReadUpToLatest(new Conversation(conversationId, senderId, receiverId),
+                receiverId, LocalDateTime.now());
+        unreadCounterService.reset(receiverId, conversationId, senderId, cleared);
+        // Other nodes may hold the room with the old read state
+        recentMessageCache.announceChange(conversationId);
+        if (recentMessageCache.isCached(conversationId)) {
+            readWatermarkRepository.findById(new ReadWatermark.Key(conversationId, receiverId))
+                    .ifPresent(watermark -> recentMessageCache.recordRead(conversationId, receiverId,
+                            watermark.getLastReadMessageId()));
+        }
     }
 
     public Long getUnreadMessageCount(Long userId) {
-        User user = userRepository.findById(userId)
-                .orElseThrow(() -> new RuntimeException("User not found"));
-        return messageRepository.countUnreadMessages(user);
+        requireUser(userId, "User not found");
+        return unreadCounterService.getTotal(userId);
+    }
+
+    public Map<String, Long> getUnreadCountsByRoom(Long userId) {
+        requireUser(userId, "User not found");
+        return unreadCounterService.getPerRoom(userId);
+    }
+
+    // Validates both users and returns their chat room, or null if they never talked
+    private Conversation findConversation(Long userId1, Long userId2) {
+        requireUser(userId1, "User not found");
+        requireUser(userId2, "User not found");
+        Long conversationId = chatRoomDirectory.find(userId1, userId2);
+        return conversationId != null ? new Conversation(conversationId, userId1, userId2) : null;
+    }
+
+    // Existence check against the directory; no EntityManager is opened outside a transaction
+    private void requireUser(Long userId, String notFoundMessage) {
+        if (userDirectory.find(userId) == null) {
+            throw new RuntimeException(notFoundMessage);
+        }
+    }
+
+    // Reader id -> last read message id for one conversation
+    private Map<Long, Long> loadWatermarks(Long conversationId) {
+        Map<Long, Long> lastReadByUser = new HashMap<>();
+        for (ReadWatermark watermark : readWatermarkRepository.findByConversationId(conversationId)) {
+            lastReadByUser.put(watermark.getUserId(), watermark.getLastReadMessageId());
+        }
+        return lastReadByUser;
     }
 
     private ChatMessage convertToDTO(Message message) {
+        return convertToDTO(message, Collections.emptyMap());
+    }
+
+    private ChatMessage convertToDTO(Message message, Map<Long, Long> lastReadByUser) {
+        // getId() on a lazy proxy does not initialize it; names and avatars come from the directory
+        UserDirectory.Entry sender = userDirectory.get(message.getSender().getId());
+        UserDirectory.Entry receiver = userDirectory.get(message.getReceiver().getId());
+
         ChatMessage dto = new ChatMessage();
         dto.setId(message.getId());
         dto.setContent(encryptionUtil.decrypt(message.getEncryptedContent()));
-        dto.setSenderUsername(message.getSender().getUsername());
-        dto.setReceiverUsername(message.getReceiver().getUsername());
-        dto.setSenderId(message.getSender().getId());
-        dto.setReceiverId(message.getReceiver().getId());
-        dto.setSenderProfileImageUrl(message.getSender().getProfileImageUrl());
-        dto.setReceiverProfileImageUrl(message.getReceiver().getProfileImageUrl());
+        dto.setSenderUsername(sender.username());
+        dto.setReceiverUsername(receiver.username());
+        dto.setSenderId(sender.id());
+        dto.setReceiverId(receiver.id());
+        dto.setSenderProfileImageUrl(sender.profileImageUrl());
+        dto.setReceiverProfileImageUrl(receiver.profileImageUrl());
         dto.setMessageType(message.getMessageType().toString());
         dto.setTimestamp(message.getCreatedAt());
-        dto.setIsRead(message.getIsRead());
+        dto.setRoomSeq(message.getRoomSeq());
+        dto.setClientMessageId(message.getClientMessageId());
+        Long lastRead = lastReadByUser.get(receiver.id());
+        dto.setIsRead(lastRead != null && message.getId() <= lastRead);
 
         // Generate room ID
-        Long smallerId = Math.min(message.getSender().getId(), message.getReceiver().getId());
-        Long largerId = Math.max(message.getSender().getId(), message.getReceiver().getId());
+        Long smallerId = Math.min(sender.id(), receiver.id());
+        Long largerId = Math.max(sender.id(), receiver.id());
         dto.setRoomId(smallerId + "_" + largerId);
 
         return dto;
     }
+
+    private List<ChatMessage> convertRowsToDTOs(List<MessageRow> rows, Map<Long, Long> lastReadByUser) {
+        List<String> ciphertexts = new ArrayList<>(rows.size());
+        for (MessageRow row : rows) {
+            ciphertexts.add(row.encryptedContent());
+        }
+        String[] contents = messageDecryptor.decryptAll(ciphertexts);
+
+        List<ChatMessage> messages = new ArrayList<>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            MessageRow row = rows.get(i);
+            ChatMessage dto = new ChatMessage();
+            dto.setId(row.id());
+            dto.setContent(contents[i]);
+            dto.setSenderUsername(row.senderUsername());
+            dto.setReceiverUsername(row.receiverUsername());
+            dto.setSenderId(row.senderId());
+            dto.setReceiverId(row.receiverId());
+            dto.setSenderProfileImageUrl(row.senderProfileImageUrl());
+            dto.setReceiverProfileImageUrl(row.receiverProfileImageUrl());
+            dto.setMessageType(row.messageType().toString());
+            dto.setTimestamp(row.createdAt());
+            dto.setRoomSeq(row.roomSeq());
+            dto.setClientMessageId(row.clientMessageId());
+            Long lastRead = lastReadByUser.get(row.receiverId());
+            dto.setIsRead(lastRead != null && row.id() <= lastRead);
+            dto.setRoomId(ChatRoomDirectory.roomId(row.senderId(), row.receiverId()));
+            messages.add(dto);
+        }
+        return messages;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package com.example.demo.service;
+
+// Messages between the nodes of a chat cluster. Each node's simple broker only reaches the sessions
+// connected to it, so StompFanout forwards sends for users connected elsewhere, and ClusterRoutes
+// tells the other nodes which users are connected here. Delivery is best effort and in order per
+// pair of nodes; a message to a node that is not connected, or whose queue is full, is dropped.
+// app.cluster.bus picks the implementation: memory (single node, the default) or tcp.
+public interface ClusterBus {
+
+    String nodeId();
+
+    // False if the message was dropped
+    boolean send(String nodeId, ClusterMessage message);
+
+    void broadcast(ClusterMessage message);
+
+    // Register before the bus starts to see every peer come up
+    void addListener(Listener listener);
+
+    interface Listener {
+
+        void onMessage(String fromNode, ClusterMessage message);
+
+        // Messages to the peer go through from now on; send it whatever state it needs
+        default void onPeerConnected(String nodeId) {
+        }
+
+        // The peer stopped talking to this node; forget what it said
+        default void onPeerLost(String nodeId) {
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// The nodes that share out chat rooms, as this node sees them: itself plus every peer that sent
+// MEMBER on its current connection. A peer is told on each (re)connect and dropped when the bus
+// loses it, the same way ClusterRoutes learns users. Each room has one owner, picked by rendezvous
+// hashing of the room id over the members, so a member coming or going only moves the rooms it
+// gains or loses. The member with the lowest id is the leader for cluster-wide jobs.
+//
+// Views are not agreed on: for a moment after a change two nodes can disagree about an owner or
+// the leader. Change listeners run on the bus thread that saw the change.
+@Component
+@Slf4j
+public class ClusterMembership implements ClusterBus.Listener {
+
+    private final ClusterBus clusterBus;
+    private final List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+    // Sorted by node id; replaced on every change
+    private volatile Member[] members;
+
+    public ClusterMembership(ClusterBus clusterBus, MeterRegistry meterRegistry) {
+        this.clusterBus = clusterBus;
+        this.members = new Member[]{new Member(clusterBus.nodeId())};
+        clusterBus.addListener(this);
+
+        Gauge.builder("chat.cluster.members", this, membership -> membership.members.length)
+                .description("Nodes sharing out chat rooms, including this one")
+                .register(meterRegistry);
+    }
+
+    public String nodeId() {
+        return clusterBus.nodeId();
+    }
+
+    public String ownerOf(long key) {
+        Member[] current = members;
+        Member owner = current[0];
+        long best = weight(owner, key);
+        for (int i = 1; i < current.length; i++) {
+            long weight = weight(current[i], key);
+            if (Long.compareUnsigned(weight, best) > 0) {
+                owner = current[i];
+                best = weight;
+            }
+        }
+        return owner.nodeId;
+    }
+
+    public boolean isOwner(long key) {
+        return ownerOf(key).equals(clusterBus.nodeId());
+    }
+
+    public boolean isLeader() {
+        return members[0].nodeId.equals(clusterBus.nodeId());
+    }
+
+    public boolean isMember(String nodeId) {
+        for (Member member : members) {
+            if (member.nodeId.equals(nodeId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Runs after every change; rooms may have moved to or from this node
+    public void addChangeListener(Runnable listener) {
+        changeListeners.add(listener);
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        if (message.type() == ClusterMessage.Type.MEMBER) {
+            update(fromNode, true);
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String nodeId) {
+        clusterBus.send(nodeId, ClusterMessage.member());
+    }
+
+    @Override
+    public void onPeerLost(String nodeId) {
+        update(nodeId, false);
+    }
+
+    private void update(String nodeId, boolean joined) {
+        synchronized (this) {
+            List<Member> updated = new ArrayList<>(List.of(members));
+            boolean changed = joined
+                    ? !isMember(nodeId) && updated.add(new Member(nodeId))
+                    : updated.removeIf(member -> member.nodeId.equals(nodeId));
+            if (!changed) {
+                return;
+            }
+            updated.sort((a, b) -> a.nodeId.compareTo(b.nodeId));
+            members = updated.toArray(new Member[0]);
+        }
+        log.info("Cluster member {} {}; {} members", nodeId, joined ? "joined" : "left", members.length);
+        for (Runnable listener : changeListeners) {
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                log.warn("Cluster membership listener failed", e);
+            }
+        }
+    }
+
+    private static long weight(Member member, long key) {
+        return mix(member.hash ^ mix(key));
+    }
+
+    // MurmurHash3's 64-bit finalizer
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+
+    private static final class Member {
+        private final String nodeId;
+        private final long hash;
+
+        Member(String nodeId) {
+            this.nodeId = nodeId;
+            // FNV-1a; String.hashCode is only 32 bits
+            long hash = 0xCBF29CE484222325L;
+            for (byte b : nodeId.getBytes(StandardCharsets.UTF_8)) {
+                hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+            }
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.demo.service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.StringJoiner;
+
+// One message on the cluster bus. key is what the message is about: a user for routes and
+// deliveries, a request id for room submissions. Payloads are frames already encoded as JSON by
+// the sending node; the compact variant, if any, is what sessions that asked for compact acks get
+// instead. Invalidations carry their ids as a comma-separated payload.
+public record ClusterMessage(Type type, String key, String destination, byte[] payload, byte[] compactPayload) {
+
+    public enum Type {
+        // user is now connected to the sending node
+        ROUTE_ADD,
+        // user's last session on the sending node is gone
+        ROUTE_REMOVE,
+        // payload for user's sessions on the receiving node
+        DELIVER,
+        // payload for the receiving node's subscribers of a topic
+        PUBLISH,
+        // the sending node takes part in room ownership
+        MEMBER,
+        // a chat message for a room the receiving node owns; destination names the options
+        SUBMIT,
+        // outcome of a SUBMIT, in destination; payload is the saved message or the error text
+        SUBMITTED,
+        // rooms whose recent messages or read state changed on the sending node
+        INVALIDATE_ROOMS,
+        // users whose unread counters changed on the sending node
+        INVALIDATE_UNREAD,
+        // users whose profile changed on the sending node
+        INVALIDATE_USERS
+    }
+
+    public static ClusterMessage routeAdd(String user) {
+        return new ClusterMessage(Type.ROUTE_ADD, user, null, null, null);
+    }
+
+    public static ClusterMessage routeRemove(String user) {
+        return new ClusterMessage(Type.ROUTE_REMOVE, user, null, null, null);
+    }
+
+    public static ClusterMessage deliver(String user, String destination, byte[] payload, byte[] compactPayload) {
+        return new ClusterMessage(Type.DELIVER, user, destination, payload, compactPayload);
+    }
+
+    public static ClusterMessage publish(String destination, byte[] payload) {
+        return new ClusterMessage(Type.PUBLISH, null, destination, payload, null);
+    }
+
+    public static ClusterMessage member() {
+        return new ClusterMessage(Type.MEMBER, null, null, null, null);
+    }
+
+    public static ClusterMessage submit(String requestId, String options, byte[] payload) {
+        return new ClusterMessage(Type.SUBMIT, requestId, options, payload, null);
+    }
+
+    public static ClusterMessage submitted(String requestId, String outcome, byte[] payload) {
+        return new ClusterMessage(Type.SUBMITTED, requestId, outcome, payload, null);
+    }
+
+    public static ClusterMessage invalidate(Type type, Collection<Long> ids) {
+        StringJoiner joined = new StringJoiner(",");
+        for (Long id : ids) {
+            joined.add(id.toString());
+        }
+        return new ClusterMessage(type, null, null, joined.toString().getBytes(StandardCharsets.US_ASCII), null);
+    }
+
+    // The ids of an invalidation
+    public long[] ids() {
+        if (payload == null || payload.length == 0) {
+            return new long[0];
+        }
+        String[] parts = new String(payload, StandardCharsets.US_ASCII).split(",");
+        long[] ids = new long[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            ids[i] = Long.parseLong(parts[i]);
+        }
+        return ids;
+    }
+
+    // State updates are not dropped for a full payload queue; losing one would leave a routing
+    // table, the membership or a cache wrong until the peer reconnects, so TcpClusterBus resets
+    // the connection instead, and the reconnect resends or clears that state
+    public boolean isControl() {
+        return switch (type) {
+            case ROUTE_ADD, ROUTE_REMOVE, MEMBER, INVALIDATE_ROOMS, INVALIDATE_UNREAD, INVALIDATE_USERS -> true;
+            default -> false;
+        };
+    }
+}
@@ -0,0 +1,120 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.messaging.SessionConnectedEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.security.Principal;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// User to node routing table. Local STOMP sessions are counted per user, and the other nodes are
+// told when a user gets a first session here (ROUTE_ADD) or loses the last one (ROUTE_REMOVE).
+// Their announcements make up the remote side of the table, which StompFanout consults to forward
+// sends. A peer that (re)connects gets the full list of local users; a peer that is lost has its
+// users dropped. Local changes and that resend hold one lock, so a peer never sees a snapshot
+// overtake a later change; connects and disconnects are rare enough for it not to matter.
+@Component
+public class ClusterRoutes implements ClusterBus.Listener {
+
+    private final ClusterBus clusterBus;
+    // Guarded by itself
+    private final Map<String, Set<String>> localSessions = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> remoteNodes = new ConcurrentHashMap<>();
+
+    public ClusterRoutes(ClusterBus clusterBus, MeterRegistry meterRegistry) {
+        this.clusterBus = clusterBus;
+        clusterBus.addListener(this);
+
+        Gauge.builder("chat.cluster.routes", localSessions, Map::size)
+                .description("Users in the cluster routing table")
+                .tag("node", "local")
+                .register(meterRegistry);
+        Gauge.builder("chat.cluster.routes", remoteNodes, Map::size)
+                .description("Users in the cluster routing table")
+                .tag("node", "remote")
+                .register(meterRegistry);
+    }
+
+    // Published once the CONNECT went through, with the user StompAuthChannelInterceptor bound
+    @EventListener
+    public void onConnected(SessionConnectedEvent event) {
+        Principal user = event.getUser();
+        String sessionId = SimpMessageHeaderAccessor.getSessionId(event.getMessage().getHeaders());
+        if (user == null || sessionId == null) {
+            return;
+        }
+        synchronized (localSessions) {
+            Set<String> sessions = localSessions.computeIfAbsent(user.getName(), name -> new HashSet<>());
+            if (sessions.add(sessionId) && sessions.size() == 1) {
+                clusterBus.broadcast(ClusterMessage.routeAdd(user.getName()));
+            }
+        }
+    }
+
+    // May be published more than once for a session
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        Principal user = event.getUser();
+        if (user == null) {
+            return;
+        }
+        synchronized (localSessions) {
+            Set<String> sessions = localSessions.get(user.getName());
+            if (sessions != null && sessions.remove(event.getSessionId()) && sessions.isEmpty()) {
+                localSessions.remove(user.getName());
+                clusterBus.broadcast(ClusterMessage.routeRemove(user.getName()));
+            }
+        }
+    }
+
+    // Other nodes the user has sessions on; empty when there are none, or no other nodes
+    public Set<String> remoteNodesOf(String username) {
+        Set<String> nodes = remoteNodes.get(username);
+        return nodes != null ? nodes : Collections.emptySet();
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        switch (message.type()) {
+            case ROUTE_ADD -> remoteNodes.compute(message.key(), (user, nodes) -> {
+                Set<String> updated = nodes != null ? nodes : ConcurrentHashMap.newKeySet();
+                updated.add(fromNode);
+                return updated;
+            });
+            case ROUTE_REMOVE -> removeRoute(message.key(), fromNode);
+            default -> {
+            }
+        }
+    }
+
+    @Override
+    public void onPeerConnected(String nodeId) {
+        synchronized (localSessions) {
+            for (String user : localSessions.keySet()) {
+                clusterBus.send(nodeId, ClusterMessage.routeAdd(user));
+            }
+        }
+    }
+
+    @Override
+    public void onPeerLost(String nodeId) {
+        for (String user : remoteNodes.keySet()) {
+            removeRoute(user, nodeId);
+        }
+    }
+
+    private void removeRoute(String user, String nodeId) {
+        remoteNodes.computeIfPresent(user, (key, nodes) -> {
+            nodes.remove(nodeId);
+            return nodes.isEmpty() ? null : nodes;
+        });
+    }
+}
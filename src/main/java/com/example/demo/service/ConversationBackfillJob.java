@@ -0,0 +1,148 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Online migration for messages.conversation_id: builds the history index concurrently,
+// then fills the column for pre-existing rows in small keyset batches while the app serves traffic.
+// Readers match on the participants instead of conversation_id until isComplete() turns true.
+@Component
+@Slf4j
+public class ConversationBackfillJob {
+
+    static final String INDEX_NAME = "idx_messages_conversation_created";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ChatRoomDirectory chatRoomDirectory;
+    private final Counter backfilledRows;
+    // Set once no row is left without a conversation_id; new rows always get one, so it stays set
+    private volatile boolean complete;
+
+    @Value("${app.chat.backfill.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.chat.backfill.batch-size:5000}")
+    private int batchSize;
+
+    @Value("${app.chat.backfill.pause-ms:50}")
+    private long pauseMs;
+
+    public ConversationBackfillJob(JdbcTemplate jdbcTemplate, ChatRoomDirectory chatRoomDirectory,
+                                   MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.chatRoomDirectory = chatRoomDirectory;
+        this.backfilledRows = Counter.builder("chat.backfill.conversation.rows")
+                .description("Messages assigned a conversation_id by the online backfill")
+                .register(meterRegistry);
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        // Long-running, so it gets its own thread instead of occupying the shared task executor
+        Thread thread = new Thread(this::run, "ConversationBackfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            ensureIndex();
+            backfill();
+        } catch (Exception e) {
+            log.error("Conversation backfill failed; it will resume on next start", e);
+        }
+    }
+
+    private void ensureIndex() {
+        boolean postgres = Boolean.TRUE.equals(jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                "PostgreSQL".equals(connection.getMetaData().getDatabaseProductName())));
+        if (!postgres) {
+            jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS " + INDEX_NAME
+                    + " ON messages (conversation_id, created_at, id)");
+            return;
+        }
+
+        // An interrupted CONCURRENTLY build leaves an INVALID index behind that IF NOT EXISTS would keep
+        List<Boolean> valid = jdbcTemplate.queryForList(
+                "SELECT i.indisvalid FROM pg_index i JOIN pg_class c ON c.oid = i.indexrelid WHERE c.relname = ?",
+                Boolean.class, INDEX_NAME);
+        if (!valid.isEmpty() && !valid.get(0)) {
+            jdbcTemplate.execute("DROP INDEX CONCURRENTLY IF EXISTS " + INDEX_NAME);
+        }
+        jdbcTemplate.execute("CREATE INDEX CONCURRENTLY IF NOT EXISTS " + INDEX_NAME
+                + " ON messages (conversation_id, created_at, id)");
+    }
+
+    // With the job disabled here another node may be running it; this one only watches for the end
+    @Scheduled(fixedDelayString = "${app.chat.backfill.check-interval-ms:60000}")
+    void checkComplete() {
+        if (!enabled && !complete) {
+            complete = nextMissingId() == null;
+        }
+    }
+
+    private Long nextMissingId() {
+        return jdbcTemplate.queryForObject(
+                "SELECT MIN(id) FROM messages WHERE conversation_id IS NULL", Long.class);
+    }
+
+    private void backfill() throws InterruptedException {
+        long total = 0;
+        // Rescans until nothing is missing: nodes still on the old version may add rows behind the keyset
+        for (Long start = nextMissingId(); start != null; start = nextMissingId()) {
+            log.info("Backfilling messages.conversation_id from id {}", start);
+            total += backfillFrom(start - 1);
+        }
+        complete = true;
+        log.info("Conversation backfill complete: {} rows", total);
+    }
+
+    private long backfillFrom(long lastId) throws InterruptedException {
+        long total = 0;
+        while (true) {
+            List<long[]> rows = jdbcTemplate.query(
+                    "SELECT id, sender_id, receiver_id FROM messages " +
+                    "WHERE id > ? AND conversation_id IS NULL ORDER BY id LIMIT ?",
+                    (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)},
+                    lastId, batchSize);
+            if (rows.isEmpty()) {
+                break;
+            }
+
+            List<Object[]> updates = new ArrayList<>(rows.size());
+            for (long[] row : rows) {
+                Long conversationId = chatRoomDirectory.resolve(row[1], row[2]);
+                updates.add(new Object[]{conversationId, row[0]});
+            }
+            jdbcTemplate.batchUpdate(
+                    "UPDATE messages SET conversation_id = ? WHERE id = ? AND conversation_id IS NULL", updates);
+
+            lastId = rows.get(rows.size() - 1)[0];
+            total += rows.size();
+            backfilledRows.increment(rows.size());
+            if (total % (batchSize * 100L) < batchSize) {
+                log.info("Conversation backfill progress: {} rows, last id {}", total, lastId);
+            }
+            Thread.sleep(pauseMs);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,174 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.model.Message;
+import com.example.demo.model.ReadWatermark;
+import com.example.demo.repository.MessageExportRow;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.repository.ReadWatermarkRepository;
+import com.example.demo.service.ConversationQueries.Conversation;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+// Streams a whole conversation as NDJSON, oldest first, one ChatMessage per line.
+// Rows are read a keyset page at a time, each page its own short query, then decrypted and
+// written; no transaction or connection is held while the client reads, and memory use does
+// not depend on the length of the conversation. Concurrent exports are capped because each one
+// keeps decrypting as fast as its client reads.
+@Service
+@Slf4j
+public class ConversationExportService {
+
+    private static final int PAGE_SIZE = 500;
+
+    private final MessageRepository messageRepository;
+    private final ConversationQueries conversationQueries;
+    private final ReadWatermarkRepository readWatermarkRepository;
+    private final ChatRoomDirectory chatRoomDirectory;
+    private final UserDirectory userDirectory;
+    private final MessageDecryptor messageDecryptor;
+    private final ObjectWriter lineWriter;
+    private final Semaphore exportPermits;
+    private final Counter exportedRows;
+
+    public ConversationExportService(MessageRepository messageRepository,
+                                     ConversationQueries conversationQueries,
+                                     ReadWatermarkRepository readWatermarkRepository,
+                                     ChatRoomDirectory chatRoomDirectory,
+                                     UserDirectory userDirectory,
+                                     MessageDecryptor messageDecryptor,
+                                     ObjectMapper objectMapper,
+                                     MeterRegistry meterRegistry,
+                                     @Value("${app.chat.export.max-concurrent:4}") int maxConcurrent) {
+        this.messageRepository = messageRepository;
+        this.conversationQueries = conversationQueries;
+        this.readWatermarkRepository = readWatermarkRepository;
+        this.chatRoomDirectory = chatRoomDirectory;
+        this.userDirectory = userDirectory;
+        this.messageDecryptor = messageDecryptor;
+        this.lineWriter = objectMapper.writer()
+                .without(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+                .without(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        this.exportPermits = new Semaphore(maxConcurrent);
+        this.exportedRows = Counter.builder("chat.export.rows").register(meterRegistry);
+        Gauge.builder("chat.export.active", exportPermits, permits -> maxConcurrent - permits.availablePermits())
+                .description("Conversation exports in progress")
+                .register(meterRegistry);
+    }
+
+    // Validates the request up front so errors can still be reported with a status code.
+    // fromMessageId is exclusive: an interrupted export resumes with the last id it received.
+    // Takes no export slot; write() does, so an export whose body never runs (rejected by the
+    // async executor, timed out or aborted first) cannot hold one.
+    public Export prepare(Long userId1, Long userId2, Long fromMessageId) {
+        userDirectory.get(userId1);
+        userDirectory.get(userId2);
+        Long conversationId = chatRoomDirectory.find(userId1, userId2);
+        if (conversationId == null) {
+            return new Export(null, null);
+        }
+        Conversation conversation = new Conversation(conversationId, userId1, userId2);
+        MessageCursor resumeAfter = null;
+        if (fromMessageId != null) {
+            Message from = messageRepository.findById(fromMessageId)
+                    .filter(message -> conversationQueries.contains(conversation, message.getConversationId(),
+                            message.getSender().getId(), message.getReceiver().getId()))
+                    .orElseThrow(() -> new IllegalArgumentException("Message not in this conversation"));
+            resumeAfter = MessageCursor.of(from);
+        }
+        return new Export(conversation, resumeAfter);
+    }
+
+    // Throws RejectedExecutionException before writing anything when
+    // app.chat.export.max-concurrent exports are running
+    public void write(Export export, OutputStream out) throws IOException {
+        if (export.conversation() == null) {
+            out.flush();
+            return;
+        }
+        if (!exportPermits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many conversation exports in progress");
+        }
+        try {
+            Map<Long, Long> lastReadByUser = new HashMap<>();
+            for (ReadWatermark watermark : readWatermarkRepository.findByConversationId(export.conversation().id())) {
+                lastReadByUser.put(watermark.getUserId(), watermark.getLastReadMessageId());
+            }
+
+            MessageCursor after = export.resumeAfter();
+            List<MessageExportRow> page;
+            do {
+                page = conversationQueries.exportPage(export.conversation(), after, PAGE_SIZE);
+                if (!page.isEmpty()) {
+                    writePage(page, lastReadByUser, out);
+                    MessageExportRow last = page.get(page.size() - 1);
+                    after = new MessageCursor(last.createdAt(), last.id());
+                }
+            } while (page.size() == PAGE_SIZE);
+            out.flush();
+        } catch (IOException e) {
+            // Usually the client went away; it can resume from the last id it received
+            log.debug("Export of conversation {} aborted: {}", export.conversation().id(), e.getMessage());
+            throw e;
+        } finally {
+            exportPermits.release();
+        }
+    }
+
+    private void writePage(List<MessageExportRow> page, Map<Long, Long> lastReadByUser,
+                           OutputStream out) throws IOException {
+        List<String> ciphertexts = new ArrayList<>(page.size());
+        for (MessageExportRow row : page) {
+            ciphertexts.add(row.encryptedContent());
+        }
+        String[] contents = messageDecryptor.decryptAll(ciphertexts);
+        for (int i = 0; i < page.size(); i++) {
+            lineWriter.writeValue(out, toDTO(page.get(i), contents[i], lastReadByUser));
+            out.write('\n');
+        }
+        out.flush();
+        exportedRows.increment(page.size());
+    }
+
+    private ChatMessage toDTO(MessageExportRow row, String content, Map<Long, Long> lastReadByUser) {
+        UserDirectory.Entry sender = userDirectory.get(row.senderId());
+        UserDirectory.Entry receiver = userDirectory.get(row.receiverId());
+
+        ChatMessage dto = new ChatMessage();
+        dto.setId(row.id());
+        dto.setContent(content);
+        dto.setSenderUsername(sender.username());
+        dto.setReceiverUsername(receiver.username());
+        dto.setSenderId(sender.id());
+        dto.setReceiverId(receiver.id());
+        dto.setSenderProfileImageUrl(sender.profileImageUrl());
+        dto.setReceiverProfileImageUrl(receiver.profileImageUrl());
+        dto.setMessageType(row.messageType().toString());
+        dto.setTimestamp(row.createdAt());
+        dto.setRoomSeq(row.roomSeq());
+        dto.setClientMessageId(row.clientMessageId());
+        Long lastRead = lastReadByUser.get(receiver.id());
+        dto.setIsRead(lastRead != null && row.id() <= lastRead);
+        dto.setRoomId(ChatRoomDirectory.roomId(sender.id(), receiver.id()));
+        return dto;
+    }
+
+    public record Export(Conversation conversation, MessageCursor resumeAfter) {
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.demo.service;
+
+import com.example.demo.repository.MessageExportRow;
+import com.example.demo.repository.MessageRepository;
+import com.example.demo.repository.MessageRow;
+import com.example.demo.repository.ReadWatermarkRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+// Message reads for one conversation. They filter on conversation_id once ConversationBackfillJob
+// reports every row filled; until then old rows still have it NULL, so the reads match on the two
+// participants instead and history is not cut short while the backfill runs.
+@Component
+@RequiredArgsConstructor
+public class ConversationQueries {
+
+    private final MessageRepository messageRepository;
+    private final ReadWatermarkRepository readWatermarkRepository;
+    private final ConversationBackfillJob conversationBackfillJob;
+
+    public List<MessageRow> page(Conversation conversation, Pageable pageable) {
+        if (useConversationId()) {
+            return messageRepository.findPageInConversation(conversation.id(), pageable);
+        }
+        return messageRepository.findPageBetweenUsers(conversation.userId1(), conversation.userId2(), pageable);
+    }
+
+    public List<MessageRow> latest(Conversation conversation, int limit) {
+        Pageable pageable = PageRequest.of(0, limit);
+        if (useConversationId()) {
+            return messageRepository.findLatestInConversation(conversation.id(), pageable);
+        }
+        return messageRepository.findLatestBetweenUsers(conversation.userId1(), conversation.userId2(), pageable);
+    }
+
+    public List<MessageRow> before(Conversation conversation, MessageCursor cursor, int limit) {
+        Pageable pageable = PageRequest.of(0, limit);
+        if (useConversationId()) {
+            return messageRepository.findBeforeInConversation(conversation.id(),
+                    cursor.createdAt(), cursor.id(), pageable);
+        }
+        return messageRepository.findBeforeBetweenUsers(conversation.userId1(), conversation.userId2(),
+                cursor.createdAt(), cursor.id(), pageable);
+    }
+
+    public List<MessageRow> after(Conversation conversation, MessageCursor cursor, int limit) {
+        Pageable pageable = PageRequest.of(0, limit);
+        if (useConversationId()) {
+            return messageRepository.findAfterInConversation(conversation.id(),
+                    cursor.createdAt(), cursor.id(), pageable);
+        }
+        return messageRepository.findAfterBetweenUsers(conversation.userId1(), conversation.userId2(),
+                cursor.createdAt(), cursor.id(), pageable);
+    }
+
+    public List<Long> newestRoomSeqs(Conversation conversation, int limit) {
+        Pageable pageable = PageRequest.of(0, limit);
+        if (useConversationId()) {
+            return messageRepository.findNewestRoomSeqs(conversation.id(), pageable);
+        }
+        return messageRepository.findNewestRoomSeqsBetweenUsers(conversation.userId1(), conversation.userId2(),
+                pageable);
+    }
+
+    // Oldest first, after the cursor if one is given
+    public List<MessageExportRow> exportPage(Conversation conversation, MessageCursor after, int limit) {
+        Pageable pageable = PageRequest.of(0, limit);
+        if (useConversationId()) {
+            return after == null
+                    ? messageRepository.findExportPage(conversation.id(), pageable)
+                    : messageRepository.findExportPageAfter(conversation.id(), after.createdAt(), after.id(),
+                            pageable);
+        }
+        return after == null
+                ? messageRepository.findExportPageBetweenUsers(conversation.userId1(), conversation.userId2(),
+                        pageable)
+                : messageRepository.findExportPageAfterBetweenUsers(conversation.userId1(), conversation.userId2(),
+                        after.createdAt(), after.id(), pageable);
+    }
+
+    public int markReadUpToLatest(Conversation conversation, Long userId, LocalDateTime now) {
+        if (useConversationId()) {
+            return readWatermarkRepository.markReadUpToLatest(conversation.id(), userId, now);
+        }
+        return readWatermarkRepository.markReadUpToLatestBetweenUsers(conversation.id(), userId,
+                conversation.userId1(), conversation.userId2(), now);
+    }
+
+    // Whether a message belongs to the conversation; a row the backfill has not reached yet
+    // is recognized by its participants
+    public boolean contains(Conversation conversation, Long conversationId, Long senderId, Long receiverId) {
+        if (conversationId != null) {
+            return conversation.id().equals(conversationId);
+        }
+        return (conversation.userId1().equals(senderId) && conversation.userId2().equals(receiverId))
+                || (conversation.userId1().equals(receiverId) && conversation.userId2().equals(senderId));
+    }
+
+    private boolean useConversationId() {
+        return conversationBackfillJob.isComplete();
+    }
+
+    public record Conversation(Long id, Long userId1, Long userId2) {
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.demo.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Adaptive cap on in-flight work, in the style of the gradient limiters: a short-term latency
+// sample is compared with a slowly moving long-term average. While the two agree the limit grows
+// by a small queue allowance; when samples exceed tolerance x the average the limit shrinks in
+// proportion, so queueing in front of a slow database stays bounded instead of growing to the
+// queue capacity. Samples come from one thread; acquire/release are lock-free from any thread.
+final class GradientConcurrencyLimit {
+
+    // Weight of one sample in the long-term average, about a 500-sample window
+    private static final double LONG_WINDOW_WEIGHT = 1.0 / 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double smoothing;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile int limit;
+    private double estimatedLimit;
+    private double longLatency;
+
+    GradientConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double tolerance, double smoothing) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Concurrency limit bounds must satisfy 1 <= min <= max");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.smoothing = smoothing;
+        this.estimatedLimit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.limit = (int) estimatedLimit;
+    }
+
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release(int permits) {
+        inFlight.addAndGet(-permits);
+    }
+
+    // Latency of work that completed while inFlightAtSample permits were taken
+    void onSample(long latencyNanos, int inFlightAtSample) {
+        double sample = Math.max(1, latencyNanos);
+        if (longLatency == 0) {
+            longLatency = sample;
+        } else {
+            longLatency += (sample - longLatency) * LONG_WINDOW_WEIGHT;
+        }
+        // After a drop in latency the average is stale; let it catch up instead of over-growing
+        if (longLatency / sample > 2) {
+            longLatency *= 0.95;
+        }
+
+        // Do not grow a limit that the load is not using
+        if (inFlightAtSample < estimatedLimit / 2) {
+            return;
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / sample));
+        double target = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        estimatedLimit = estimatedLimit * (1 - smoothing) + target * smoothing;
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit));
+        limit = (int) estimatedLimit;
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.demo.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Hashed timing wheel (Varghese & Lauck): one thread, a ring of buckets each covering one tick,
+// and timeouts hashed into the bucket of their deadline tick with a count of full turns still to
+// wait. Scheduling is a lock-free queue offer and expiry costs O(1) per timeout, whatever the
+// number pending, at the price of tick-sized precision. Buckets are only touched by the worker,
+// which moves newly scheduled timeouts into them at the start of every tick. Tasks run on the
+// worker and must be short; there is no cancel, callers check on expiry whether they still care.
+@Slf4j
+final class HashedTimerWheel {
+
+    private final long tickNanos;
+    private final int mask;
+    private final List<Timeout>[] buckets;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long startedAt;
+
+    private volatile boolean running = true;
+
+    @SuppressWarnings("unchecked")
+    HashedTimerWheel(String name, long tick, TimeUnit unit, int ticksPerWheel) {
+        if (tick <= 0 || ticksPerWheel < 1) {
+            throw new IllegalArgumentException("Timer wheel needs a positive tick and at least one bucket");
+        }
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.mask = Math.max(1, size) - 1;
+        this.buckets = new List[mask + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ArrayList<>();
+        }
+        this.startedAt = System.nanoTime();
+        this.worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    void schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startedAt + unit.toNanos(Math.max(0, delay));
+        pending.add(new Timeout(task, deadline));
+    }
+
+    void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long wakeAt = startedAt + (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = wakeAt - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running) {
+                return;
+            }
+            transferPending(tick);
+            expire(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending(long tick) {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            long due = timeout.deadline / tickNanos;
+            timeout.rounds = Math.max(0, (due - tick) / buckets.length);
+            // Already due: into the current bucket, which is expired right after
+            buckets[(int) (Math.max(due, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void expire(List<Timeout> bucket) {
+        int kept = 0;
+        for (int i = 0; i < bucket.size(); i++) {
+            Timeout timeout = bucket.get(i);
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+                bucket.set(kept++, timeout);
+                continue;
+            }
+            try {
+                timeout.task.run();
+            } catch (RuntimeException e) {
+                log.warn("Timer task failed", e);
+            }
+        }
+        bucket.subList(kept, bucket.size()).clear();
+    }
+
+    private static final class Timeout {
+
+        private final Runnable task;
+        // Nanoseconds since the wheel started
+        private final long deadline;
+        // Worker-only
+        private long rounds;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.demo.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Cluster bus between nodes in one JVM. As the application's bus it is a cluster of one, so
+// nothing is ever forwarded; benchmarks and tests put several nodes on one Hub. Messages are
+// handed to the receiving node's listeners on the sending thread.
+@Component
+@ConditionalOnProperty(name = "app.cluster.bus", havingValue = "memory", matchIfMissing = true)
+@Slf4j
+public class InMemoryClusterBus implements ClusterBus {
+
+    private final String nodeId;
+    private final Hub hub;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    @Autowired
+    public InMemoryClusterBus(@Value("${app.cluster.node-id:local}") String nodeId) {
+        this(nodeId, new Hub());
+        join();
+    }
+
+    public InMemoryClusterBus(String nodeId, Hub hub) {
+        this.nodeId = nodeId;
+        this.hub = hub;
+    }
+
+    // Connects this node to the others on the hub, in both directions
+    public void join() {
+        hub.join(this);
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public boolean send(String nodeId, ClusterMessage message) {
+        InMemoryClusterBus node = hub.nodes.get(nodeId);
+        if (node == null || node == this) {
+            return false;
+        }
+        node.dispatch(this.nodeId, message);
+        return true;
+    }
+
+    @Override
+    public void broadcast(ClusterMessage message) {
+        for (InMemoryClusterBus node : hub.nodes.values()) {
+            if (node != this) {
+                node.dispatch(nodeId, message);
+            }
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    private void dispatch(String fromNode, ClusterMessage message) {
+        for (Listener listener : listeners) {
+            try {
+                listener.onMessage(fromNode, message);
+            } catch (RuntimeException e) {
+                log.warn("Cluster listener failed on {} from {}", message.type(), fromNode, e);
+            }
+        }
+    }
+
+    public static final class Hub {
+
+        private final Map<String, InMemoryClusterBus> nodes = new ConcurrentHashMap<>();
+
+        private synchronized void join(InMemoryClusterBus joining) {
+            if (nodes.putIfAbsent(joining.nodeId, joining) != null) {
+                throw new IllegalStateException("Node " + joining.nodeId + " is already on the hub");
+            }
+            for (InMemoryClusterBus node : nodes.values()) {
+                if (node != joining) {
+                    node.listeners.forEach(listener -> listener.onPeerConnected(joining.nodeId));
+                    joining.listeners.forEach(listener -> listener.onPeerConnected(node.nodeId));
+                }
+            }
+        }
+    }
+}
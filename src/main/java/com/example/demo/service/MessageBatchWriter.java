@@ -0,0 +1,291 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Group-commit persistence stage: messages are queued in memory and a single writer
+// thread drains them into one transaction per batch instead of one per message.
+@Service
+@Slf4j
+public class MessageBatchWriter implements SmartLifecycle {
+
+    private final ChatService chatService;
+    private final Executor callbackExecutor;
+
+    private final int batchSize;
+    private final long maxLingerNanos;
+    private final BlockingQueue<PendingMessage> queue;
+    // Null when app.chat.writer.limit.enabled=false; the queue capacity is then the only bound
+    private final GradientConcurrencyLimit concurrencyLimit;
+
+    private final Timer commitTimer;
+    private final Timer latencyTimer;
+    private final DistributionSummary batchSizeSummary;
+    private final Counter rejectedCounter;
+    private final Counter failedCounter;
+    private final Counter constraintDuplicates;
+
+    private volatile boolean running;
+    private Thread writerThread;
+
+    public MessageBatchWriter(ChatService chatService,
+                              @Qualifier("taskExecutor") Executor callbackExecutor,
+                              MeterRegistry meterRegistry,
+                              @Value("${app.chat.writer.batch-size:64}") int batchSize,
+                              @Value("${app.chat.writer.max-linger-ms:5}") long maxLingerMs,
+                              @Value("${app.chat.writer.queue-capacity:10000}") int queueCapacity,
+                              @Value("${app.chat.writer.limit.enabled:true}") boolean limitEnabled,
+                              @Value("${app.chat.writer.limit.initial:256}") int initialLimit,
+                              @Value("${app.chat.writer.limit.min:16}") int minLimit,
+                              @Value("${app.chat.writer.limit.tolerance:2.0}") double tolerance,
+                              @Value("${app.chat.writer.limit.smoothing:0.2}") double smoothing) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("app.chat.writer.batch-size must be at least 1");
+        }
+        this.chatService = chatService;
+        this.callbackExecutor = callbackExecutor;
+        this.batchSize = batchSize;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMs);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.concurrencyLimit = limitEnabled
+                ? new GradientConcurrencyLimit(initialLimit, Math.min(minLimit, queueCapacity), queueCapacity,
+                        tolerance, smoothing)
+                : null;
+
+        this.commitTimer = Timer.builder("chat.writer.commit")
+                .description("Time to persist and commit one batch")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.latencyTimer = Timer.builder("chat.writer.latency")
+                .description("Time from enqueue to commit for a single message")
+                .publishPercentiles(0.5, 0.99)
+                .register(meterRegistry);
+        this.batchSizeSummary = DistributionSummary.builder("chat.writer.batch.size")
+                .register(meterRegistry);
+        this.rejectedCounter = Counter.builder("chat.writer.rejected")
+                .description("Messages rejected because the write queue was full")
+                .register(meterRegistry);
+        this.failedCounter = Counter.builder("chat.writer.failed")
+                .register(meterRegistry);
+        this.constraintDuplicates = MessageDeduplicator.duplicates(meterRegistry, "constraint");
+        Gauge.builder("chat.writer.queue.depth", queue, BlockingQueue::size)
+                .register(meterRegistry);
+        if (concurrencyLimit != null) {
+            Gauge.builder("chat.writer.limit", concurrencyLimit, GradientConcurrencyLimit::limit)
+                    .description("Messages currently allowed to wait for or be in a commit")
+                    .register(meterRegistry);
+            Gauge.builder("chat.writer.inflight", concurrencyLimit, GradientConcurrencyLimit::inFlight)
+                    .register(meterRegistry);
+        }
+    }
+
+    // Never blocks: when the writer is saturated the returned future has already failed with a
+    // RejectedExecutionException and the caller should ask the client to retry later
+    public CompletableFuture<ChatMessage> submit(ChatMessage chatMessage) {
+        return submit(chatMessage, null);
+    }
+
+    // As submit(ChatMessage), with the future completed on completionExecutor. Completions are
+    // handed to it in commit order, so a single-threaded executor sees them in that order too.
+    public CompletableFuture<ChatMessage> submit(ChatMessage chatMessage, Executor completionExecutor) {
+        CompletableFuture<ChatMessage> result = new CompletableFuture<>();
+        if (concurrencyLimit != null && !concurrencyLimit.tryAcquire()) {
+            rejectedCounter.increment();
+            result.completeExceptionally(new RejectedExecutionException("Message persistence is saturated"));
+            return result;
+        }
+        if (!running || !queue.offer(new PendingMessage(chatMessage, result, completionExecutor, System.nanoTime()))) {
+            release(1);
+            rejectedCounter.increment();
+            result.completeExceptionally(new RejectedExecutionException("Message write queue is full"));
+        }
+        return result;
+    }
+
+    private void runWriter() {
+        List<PendingMessage> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingMessage first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                fillBatch(batch);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (!running) {
+                    break;
+                }
+            } catch (Exception e) {
+                log.error("Message writer loop failed", e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void fillBatch(List<PendingMessage> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + maxLingerNanos;
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            PendingMessage next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    private void writeBatch(List<PendingMessage> batch) {
+        List<ChatMessage> messages = new ArrayList<>(batch.size());
+        for (PendingMessage pending : batch) {
+            messages.add(pending.message());
+        }
+
+        long start = System.nanoTime();
+        List<ChatMessage> saved;
+        try {
+            saved = chatService.saveMessages(messages);
+        } catch (Exception e) {
+            // One bad message must not fail its neighbours: retry the members individually
+            writeIndividually(new ArrayList<>(batch));
+            return;
+        }
+        long committedAt = System.nanoTime();
+        commitTimer.record(committedAt - start, TimeUnit.NANOSECONDS);
+        batchSizeSummary.record(batch.size());
+        if (concurrencyLimit != null) {
+            // The oldest member's wait covers both queueing and the commit
+            concurrencyLimit.onSample(committedAt - batch.get(0).enqueuedAt(), concurrencyLimit.inFlight());
+        }
+        release(batch.size());
+
+        List<PendingMessage> completed = new ArrayList<>(batch.size());
+        List<ChatMessage> completedSaved = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            PendingMessage pending = batch.get(i);
+            latencyTimer.record(committedAt - pending.enqueuedAt(), TimeUnit.NANOSECONDS);
+            if (pending.completionExecutor() != null) {
+                ChatMessage savedMessage = saved.get(i);
+                completeOn(pending.completionExecutor(), () -> pending.result().complete(savedMessage));
+            } else {
+                completed.add(pending);
+                completedSaved.add(saved.get(i));
+            }
+        }
+        if (!completed.isEmpty()) {
+            completeOn(null, () -> {
+                for (int i = 0; i < completed.size(); i++) {
+                    completed.get(i).result().complete(completedSaved.get(i));
+                }
+            });
+        }
+    }
+
+    private void writeIndividually(List<PendingMessage> batch) {
+        for (PendingMessage pending : batch) {
+            long start = System.nanoTime();
+            try {
+                ChatMessage saved = chatService.saveMessage(pending.message());
+                long committedAt = System.nanoTime();
+                commitTimer.record(committedAt - start, TimeUnit.NANOSECONDS);
+                batchSizeSummary.record(1);
+                latencyTimer.record(committedAt - pending.enqueuedAt(), TimeUnit.NANOSECONDS);
+                completeOn(pending.completionExecutor(), () -> pending.result().complete(saved));
+            } catch (Exception e) {
+                // A resend older than the dedup window trips the (sender, client message id)
+                // constraint; it is answered with the copy stored the first time
+                ChatMessage stored = findStoredCopy(pending.message());
+                if (stored != null) {
+                    constraintDuplicates.increment();
+                    completeOn(pending.completionExecutor(), () -> pending.result().complete(stored));
+                } else {
+                    failedCounter.increment();
+                    completeOn(pending.completionExecutor(), () -> pending.result().completeExceptionally(e));
+                }
+            } finally {
+                release(1);
+            }
+        }
+    }
+
+    private ChatMessage findStoredCopy(ChatMessage chatMessage) {
+        if (chatMessage.getClientMessageId() == null || chatMessage.getSenderId() == null) {
+            return null;
+        }
+        try {
+            return chatService.findByClientMessageId(chatMessage.getSenderId(), chatMessage.getClientMessageId());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void release(int permits) {
+        if (concurrencyLimit != null) {
+            concurrencyLimit.release(permits);
+        }
+    }
+
+    private void completeOn(Executor executor, Runnable completion) {
+        // Keep STOMP sends triggered by completion off the writer thread
+        try {
+            (executor != null ? executor : callbackExecutor).execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        writerThread = new Thread(this::runWriter, "ChatWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void stop() {
+        // Stop accepting new messages and let the writer drain what is already queued
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private record PendingMessage(ChatMessage message, CompletableFuture<ChatMessage> result,
+                                  Executor completionExecutor, long enqueuedAt) {
+    }
+}
@@ -0,0 +1,56 @@
+package com.example.demo.service;
+
+import com.example.demo.util.EncryptionUtil;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.stream.IntStream;
+
+// Decrypts whole history pages. Small pages stay on the calling thread; large ones are split
+// across a dedicated fork-join pool so they neither run serially nor compete with the common pool.
+@Component
+public class MessageDecryptor {
+
+    private final EncryptionUtil encryptionUtil;
+    private final ForkJoinPool pool;
+    private final int parallelThreshold;
+
+    public MessageDecryptor(EncryptionUtil encryptionUtil,
+                            @Value("${app.chat.history.parallel-decrypt-threshold:256}") int parallelThreshold,
+                            @Value("${app.chat.history.decrypt-parallelism:0}") int parallelism) {
+        this.encryptionUtil = encryptionUtil;
+        this.parallelThreshold = parallelThreshold;
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        this.pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("HistoryDecrypt-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    // Plaintexts in the same order as the ciphertexts
+    public String[] decryptAll(List<String> ciphertexts) {
+        String[] plainTexts = new String[ciphertexts.size()];
+        if (ciphertexts.size() < parallelThreshold || pool.getParallelism() == 1) {
+            for (int i = 0; i < plainTexts.length; i++) {
+                plainTexts[i] = encryptionUtil.decrypt(ciphertexts.get(i));
+            }
+            return plainTexts;
+        }
+        // A parallel stream started from inside the pool runs on the pool's workers
+        pool.submit(() -> IntStream.range(0, plainTexts.length).parallel()
+                .forEach(i -> plainTexts[i] = encryptionUtil.decrypt(ciphertexts.get(i))))
+                .join();
+        return plainTexts;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+// Drops resends of a message the sender already got accepted, keyed by (sender id, client message id).
+// Three layers, cheapest first:
+//  - an LRU of recent keys, bounded in size and time, holding each original's result future;
+//  - a time-windowed bloom filter that remembers keys for longer than the LRU can hold them, so the
+//    database is only asked about a key it may actually contain;
+//  - the unique (sender_id, client_message_id) constraint, for anything older or from another node.
+// A key's messages always hash to the same room lane, so claims for one key never race in practice;
+// the LRU's putIfAbsent keeps them correct regardless.
+@Component
+public class MessageDeduplicator {
+
+    public static final int MAX_CLIENT_MESSAGE_ID_LENGTH = 64;
+
+    private final ChatService chatService;
+    private final Cache<Key, CompletableFuture<ChatMessage>> recent;
+    private final TimeWindowedBloomFilter seen;
+
+    private final Counter checked;
+    private final Counter windowDuplicates;
+    private final Counter lookupDuplicates;
+    private final Counter bloomFalsePositives;
+
+    public MessageDeduplicator(ChatService chatService,
+                               MeterRegistry meterRegistry,
+                               @Value("${app.chat.dedup.window-seconds:300}") long windowSeconds,
+                               @Value("${app.chat.dedup.max-entries:200000}") long maxEntries,
+                               @Value("${app.chat.dedup.bloom.expected-per-window:1000000}") long expectedPerWindow,
+                               @Value("${app.chat.dedup.bloom.fpp:0.01}") double falsePositiveRate) {
+        this.chatService = chatService;
+        Duration window = Duration.ofSeconds(windowSeconds);
+        this.recent = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(window)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, recent, "messageDedup");
+        this.seen = new TimeWindowedBloomFilter(expectedPerWindow, falsePositiveRate, window.toNanos());
+
+        // Duplicate rate = sum(chat.dedup.duplicates) / chat.dedup.checked
+        this.checked = Counter.builder("chat.dedup.checked")
+                .description("Messages carrying a client message id")
+                .register(meterRegistry);
+        this.windowDuplicates = duplicates(meterRegistry, "window");
+        this.lookupDuplicates = duplicates(meterRegistry, "lookup");
+        this.bloomFalsePositives = Counter.builder("chat.dedup.bloom.false.positives")
+                .description("Bloom filter hits that the database did not confirm")
+                .register(meterRegistry);
+    }
+
+    static Counter duplicates(MeterRegistry meterRegistry, String stage) {
+        return Counter.builder("chat.dedup.duplicates")
+                .description("Resent messages dropped instead of stored again")
+                .tag("stage", stage)
+                .register(meterRegistry);
+    }
+
+    // Registers result as the outcome of this message, or returns the outcome of the earlier copy
+    // when the message is a resend; null means the caller should go on and store it. A failed
+    // original is forgotten, so its resend is accepted.
+    public CompletableFuture<ChatMessage> claim(ChatMessage chatMessage, CompletableFuture<ChatMessage> result) {
+        String clientMessageId = chatMessage.getClientMessageId();
+        if (clientMessageId == null) {
+            return null;
+        }
+        checked.increment();
+        Key key = new Key(chatMessage.getSenderId(), clientMessageId);
+        CompletableFuture<ChatMessage> original = recent.asMap().putIfAbsent(key, result);
+        if (original != null) {
+            windowDuplicates.increment();
+            return original;
+        }
+        result.whenComplete((saved, error) -> {
+            if (error != null) {
+                recent.asMap().remove(key, result);
+            }
+        });
+
+        long hash = key.hash64();
+        if (seen.mightContain(hash)) {
+            ChatMessage stored = chatService.findByClientMessageId(key.senderId(), clientMessageId);
+            if (stored != null) {
+                lookupDuplicates.increment();
+                CompletableFuture<ChatMessage> storedResult = CompletableFuture.completedFuture(stored);
+                recent.asMap().replace(key, result, storedResult);
+                return storedResult;
+            }
+            bloomFalsePositives.increment();
+        }
+        seen.put(hash);
+        return null;
+    }
+
+    private record Key(Long senderId, String clientMessageId) {
+
+        // 64-bit FNV-1a over the sender id and the id's chars, finished with a murmur mix
+        long hash64() {
+            long hash = 0xcbf29ce484222325L;
+            hash = (hash ^ senderId) * 0x100000001b3L;
+            for (int i = 0; i < clientMessageId.length(); i++) {
+                hash = (hash ^ clientMessageId.charAt(i)) * 0x100000001b3L;
+            }
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            return hash ^ (hash >>> 33);
+        }
+    }
+}
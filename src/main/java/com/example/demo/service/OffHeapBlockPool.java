@@ -0,0 +1,85 @@
+package com.example.demo.service;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Fixed-size blocks carved out of large direct buffers. Slabs are allocated on demand up to
+// the byte cap and never returned, so the off-heap footprint is bounded and the heap only
+// holds the slab references and a free list of block numbers.
+final class OffHeapBlockPool {
+
+    private static final int MAX_SLAB_BYTES = 64 * 1024 * 1024;
+
+    private final int blockSize;
+    private final int blocksPerSlab;
+    private final int maxBlocks;
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    private int[] freeBlocks = new int[64];
+    private int freeCount;
+    private int allocatedBlocks;
+
+    OffHeapBlockPool(int blockSize, long maxBytes) {
+        if (blockSize <= 0 || blockSize > MAX_SLAB_BYTES) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_SLAB_BYTES);
+        }
+        this.blockSize = blockSize;
+        this.maxBlocks = (int) Math.min(Integer.MAX_VALUE, maxBytes / blockSize);
+        this.blocksPerSlab = Math.max(1, Math.min(maxBlocks, MAX_SLAB_BYTES / blockSize));
+    }
+
+    int blockSize() {
+        return blockSize;
+    }
+
+    int maxBlocks() {
+        return maxBlocks;
+    }
+
+    // Block number, or -1 when the cap is reached and nothing has been freed
+    synchronized int allocate() {
+        if (freeCount > 0) {
+            return freeBlocks[--freeCount];
+        }
+        if (allocatedBlocks >= maxBlocks) {
+            return -1;
+        }
+        if (allocatedBlocks == slabs.size() * blocksPerSlab) {
+            int blocks = Math.min(blocksPerSlab, maxBlocks - allocatedBlocks);
+            slabs.add(ByteBuffer.allocateDirect(blocks * blockSize));
+        }
+        return allocatedBlocks++;
+    }
+
+    synchronized void free(int block) {
+        if (freeCount == freeBlocks.length) {
+            int[] grown = new int[freeBlocks.length * 2];
+            System.arraycopy(freeBlocks, 0, grown, 0, freeCount);
+            freeBlocks = grown;
+        }
+        freeBlocks[freeCount++] = block;
+    }
+
+    // Shared buffer holding the block; absolute get/put only, positions are never touched
+    ByteBuffer slab(int block) {
+        synchronized (this) {
+            return slabs.get(block / blocksPerSlab);
+        }
+    }
+
+    int offset(int block) {
+        return (block % blocksPerSlab) * blockSize;
+    }
+
+    synchronized long reservedBytes() {
+        long bytes = 0;
+        for (ByteBuffer slab : slabs) {
+            bytes += slab.capacity();
+        }
+        return bytes;
+    }
+
+    synchronized int blocksInUse() {
+        return allocatedBlocks - freeCount;
+    }
+}
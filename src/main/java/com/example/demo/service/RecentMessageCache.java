@@ -0,0 +1,511 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.dto.MessageHistoryResponse;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// Newest messages of recently opened conversations, kept as serialized JSON in off-heap
+// blocks so the newest history page is served without a database query or decryption.
+// Each room owns one fixed-size block holding a ring of its last N messages; rooms are
+// evicted by the cache policy when the block pool reaches its byte cap. Read state is not
+// serialized: it changes after the fact and is spliced in from cached watermarks per request.
+// Rooms are written on their owner node but read anywhere, so each transaction that changes
+// rooms tells the other nodes to drop them once it commits; a membership change drops every room.
+@Component
+@Slf4j
+public class RecentMessageCache implements ClusterBus.Listener {
+
+    // Slot: id, createdAt seconds, createdAt nanos, data offset, data length, receiver is lower user id
+    private static final int SLOT_BYTES = 32;
+    private static final byte[] READ = ",\"isRead\":true}".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] UNREAD = ",\"isRead\":false}".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] EMPTY_MESSAGES = "\"messages\":[]".getBytes(StandardCharsets.US_ASCII);
+
+    private final OffHeapBlockPool blocks;
+    private final int messagesPerRoom;
+    private final int headerBytes;
+    private final int dataCapacity;
+    private final Cache<Long, Ring> rings;
+    private final ConcurrentHashMap<Long, PendingLoad> pendingLoads = new ConcurrentHashMap<>();
+    private final ObjectWriter messageWriter;
+    private final ObjectWriter envelopeWriter;
+    private final Counter served;
+    private final Counter fallbacks;
+    private final ClusterBus clusterBus;
+
+    public RecentMessageCache(ObjectMapper objectMapper,
+                              MeterRegistry meterRegistry,
+                              ClusterBus clusterBus,
+                              ClusterMembership clusterMembership,
+                              @Value("${app.chat.recent.max-bytes:268435456}") long maxBytes,
+                              @Value("${app.chat.recent.block-bytes:32768}") int blockBytes,
+                              @Value("${app.chat.recent.messages-per-room:64}") int messagesPerRoom) {
+        this.blocks = new OffHeapBlockPool(blockBytes, maxBytes);
+        this.messagesPerRoom = messagesPerRoom;
+        this.headerBytes = messagesPerRoom * SLOT_BYTES;
+        this.dataCapacity = blockBytes - headerBytes;
+        if (messagesPerRoom < 1 || dataCapacity < 1024) {
+            throw new IllegalArgumentException("app.chat.recent.block-bytes is too small for "
+                    + messagesPerRoom + " messages per room");
+        }
+        // Keep a few blocks spare so a room can be loaded before the policy evicts another one
+        long maxRooms = Math.max(1, blocks.maxBlocks() - Math.max(1, blocks.maxBlocks() / 100));
+        this.rings = Caffeine.newBuilder()
+                .maximumSize(maxRooms)
+                .executor(Runnable::run)
+                .removalListener((Long conversationId, Ring ring, RemovalCause cause) -> {
+                    if (ring != null) {
+                        release(ring);
+                    }
+                })
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, rings, "recentMessages");
+
+        this.messageWriter = objectMapper.copy()
+                .addMixIn(ChatMessage.class, WithoutReadState.class)
+                .writerFor(ChatMessage.class);
+        this.envelopeWriter = objectMapper.writerFor(MessageHistoryResponse.class);
+        this.served = Counter.builder("chat.recent.served").register(meterRegistry);
+        this.fallbacks = Counter.builder("chat.recent.fallback").register(meterRegistry);
+        Gauge.builder("chat.recent.offheap.bytes", blocks, OffHeapBlockPool::reservedBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("chat.recent.blocks.used", blocks, OffHeapBlockPool::blocksInUse)
+                .register(meterRegistry);
+        this.clusterBus = clusterBus;
+        clusterBus.addListener(this);
+        clusterMembership.addChangeListener(this::invalidateAll);
+    }
+
+    public int messagesPerRoom() {
+        return messagesPerRoom;
+    }
+
+    // Newest page of a conversation, or null when it cannot be answered from memory and
+    // the caller should query the database. Loads the room on a miss.
+    public CachedPage newestPage(Long conversationId, long userId1, long userId2, int limit,
+                                 Supplier<Snapshot> loader) {
+        Ring ring = rings.getIfPresent(conversationId);
+        if (ring == null) {
+            ring = load(conversationId, Math.min(userId1, userId2), Math.max(userId1, userId2), loader);
+        }
+        CachedPage page = ring != null ? render(ring, limit) : null;
+        (page != null ? served : fallbacks).increment();
+        return page;
+    }
+
+    // Splices the message array into a Jackson-written envelope so field names and
+    // formatting match the MessageHistoryResponse the database path produces
+    public byte[] toHistoryJson(CachedPage page) {
+        byte[] envelope;
+        try {
+            envelope = envelopeWriter.writeValueAsBytes(new MessageHistoryResponse(
+                    Collections.emptyList(), page.olderCursor(), page.newerCursor(), page.hasOlder(), false));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialize history envelope", e);
+        }
+        int at = indexOf(envelope, EMPTY_MESSAGES);
+        int arrayStart = at + EMPTY_MESSAGES.length - 2;
+        byte[] messages = page.messagesJson();
+        byte[] result = new byte[envelope.length - 2 + messages.length];
+        System.arraycopy(envelope, 0, result, 0, arrayStart);
+        System.arraycopy(messages, 0, result, arrayStart, messages.length);
+        System.arraycopy(envelope, arrayStart + 2, result, arrayStart + messages.length,
+                envelope.length - arrayStart - 2);
+        return result;
+    }
+
+    // Write-through from the persistence path; applied only once the transaction commits
+    public void recordPersisted(Long conversationId, ChatMessage saved) {
+        announceChange(conversationId);
+        afterCommit(() -> apply(conversationId, ring -> {
+            if (!append(ring, saved)) {
+                // Out of order or too large to keep: drop the room, the next read reloads it
+                rings.invalidate(conversationId);
+            }
+        }));
+    }
+
+    public void recordRead(Long conversationId, Long userId, Long lastReadMessageId) {
+        announceChange(conversationId);
+        afterCommit(() -> apply(conversationId, ring -> {
+            synchronized (ring) {
+                if (userId == ring.lowUserId) {
+                    ring.lastReadLow = Math.max(ring.lastReadLow, lastReadMessageId);
+                } else if (userId == ring.highUserId) {
+                    ring.lastReadHigh = Math.max(ring.lastReadHigh, lastReadMessageId);
+                }
+            }
+        }));
+    }
+
+    public boolean isCached(Long conversationId) {
+        return rings.getIfPresent(conversationId) != null || pendingLoads.containsKey(conversationId);
+    }
+
+    public void invalidate(Long conversationId) {
+        rings.invalidate(conversationId);
+    }
+
+    // Tells the other nodes to drop the room, once per room and transaction, after it commits
+    @SuppressWarnings("unchecked")
+    public void announceChange(Long conversationId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            clusterBus.broadcast(ClusterMessage.invalidate(ClusterMessage.Type.INVALIDATE_ROOMS, List.of(conversationId)));
+            return;
+        }
+        Set<Long> changed = (Set<Long>) TransactionSynchronizationManager.getResource(this);
+        if (changed == null) {
+            Set<Long> created = new HashSet<>();
+            TransactionSynchronizationManager.bindResource(this, created);
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    clusterBus.broadcast(ClusterMessage.invalidate(ClusterMessage.Type.INVALIDATE_ROOMS, created));
+                }
+
+                @Override
+                public void afterCompletion(int status) {
+                    TransactionSynchronizationManager.unbindResourceIfPossible(RecentMessageCache.this);
+                }
+            });
+            changed = created;
+        }
+        changed.add(conversationId);
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        if (message.type() == ClusterMessage.Type.INVALIDATE_ROOMS) {
+            for (long conversationId : message.ids()) {
+                drop(conversationId);
+            }
+        }
+    }
+
+    // Another node may have written any room while this one could not hear about it
+    private void invalidateAll() {
+        for (Long conversationId : pendingLoads.keySet()) {
+            drop(conversationId);
+        }
+        rings.invalidateAll();
+    }
+
+    // Also discards a load in progress, which may have read the room before the change
+    private void drop(Long conversationId) {
+        apply(conversationId, ring -> rings.invalidate(conversationId));
+    }
+
+    // Changes land in the ring if it exists, or are replayed on a ring that is being loaded,
+    // so a load that raced with a commit cannot install a stale page
+    private void apply(Long conversationId, Consumer<Ring> change) {
+        PendingLoad pending = pendingLoads.get(conversationId);
+        if (pending != null) {
+            synchronized (pending) {
+                if (!pending.done) {
+                    pending.deferred.add(change);
+                    return;
+                }
+            }
+        }
+        Ring ring = rings.getIfPresent(conversationId);
+        if (ring != null) {
+            change.accept(ring);
+        }
+    }
+
+    private Ring load(Long conversationId, long lowUserId, long highUserId, Supplier<Snapshot> loader) {
+        PendingLoad pending = new PendingLoad();
+        if (pendingLoads.putIfAbsent(conversationId, pending) != null) {
+            return null;
+        }
+        try {
+            Snapshot snapshot = loader.get();
+            int block = allocateBlock();
+            if (block < 0) {
+                return null;
+            }
+            Ring ring = new Ring(block, lowUserId, highUserId);
+            ring.complete = snapshot.complete();
+            ring.lastReadLow = snapshot.lastReadByUser().getOrDefault(lowUserId, 0L);
+            ring.lastReadHigh = snapshot.lastReadByUser().getOrDefault(highUserId, 0L);
+            List<ChatMessage> oldestFirst = new ArrayList<>(snapshot.newestFirst());
+            Collections.reverse(oldestFirst);
+            for (ChatMessage message : oldestFirst) {
+                if (!append(ring, message)) {
+                    release(ring);
+                    return null;
+                }
+            }
+            synchronized (pending) {
+                rings.put(conversationId, ring);
+                for (Consumer<Ring> change : pending.deferred) {
+                    change.accept(ring);
+                }
+                pending.done = true;
+            }
+            return rings.getIfPresent(conversationId);
+        } finally {
+            pendingLoads.remove(conversationId, pending);
+        }
+    }
+
+    private int allocateBlock() {
+        int block = blocks.allocate();
+        if (block < 0) {
+            // Let the size policy run its pending evictions, which hand blocks back
+            rings.cleanUp();
+            block = blocks.allocate();
+        }
+        return block;
+    }
+
+    private void release(Ring ring) {
+        synchronized (ring) {
+            if (ring.released) {
+                return;
+            }
+            ring.released = true;
+        }
+        blocks.free(ring.block);
+    }
+
+    private boolean append(Ring ring, ChatMessage message) {
+        byte[] json;
+        try {
+            json = messageWriter.writeValueAsBytes(message);
+        } catch (JsonProcessingException e) {
+            log.warn("Could not serialize message {} for the recent cache", message.getId(), e);
+            return false;
+        }
+        long id = message.getId();
+        LocalDateTime createdAt = message.getTimestamp();
+        boolean receiverIsLow = message.getReceiverId() == ring.lowUserId;
+
+        synchronized (ring) {
+            if (ring.released) {
+                return true;
+            }
+            ByteBuffer slab = blocks.slab(ring.block);
+            int base = blocks.offset(ring.block);
+            if (ring.count > 0) {
+                int newest = slotAddress(ring, base, ring.count - 1);
+                int order = compare(createdAt, id, slab, newest);
+                if (order <= 0) {
+                    // Already present (a load and a write-through overlapped) or out of order
+                    return contains(ring, slab, base, id);
+                }
+            }
+            if (json.length > dataCapacity) {
+                return false;
+            }
+            if (ring.count == messagesPerRoom) {
+                evictOldest(ring);
+            }
+
+            int position = ring.writePosition;
+            boolean wrap = position + json.length > dataCapacity;
+            while (ring.count > 0) {
+                int oldest = slotAddress(ring, base, 0);
+                int offset = slab.getInt(oldest + 20);
+                int end = offset + slab.getInt(oldest + 24);
+                boolean overlaps = wrap
+                        ? end > position || offset < json.length
+                        : offset < position + json.length && end > position;
+                if (!overlaps) {
+                    break;
+                }
+                evictOldest(ring);
+            }
+            if (wrap) {
+                position = 0;
+            }
+
+            int slot = slotAddress(ring, base, ring.count);
+            slab.putLong(slot, id);
+            slab.putLong(slot + 8, createdAt.toEpochSecond(ZoneOffset.UTC));
+            slab.putInt(slot + 16, createdAt.getNano());
+            slab.putInt(slot + 20, position);
+            slab.putInt(slot + 24, json.length);
+            slab.putInt(slot + 28, receiverIsLow ? 1 : 0);
+            slab.put(base + headerBytes + position, json);
+            ring.count++;
+            ring.writePosition = position + json.length;
+            return true;
+        }
+    }
+
+    private CachedPage render(Ring ring, int limit) {
+        ByteArrayOutputStream messages = new ByteArrayOutputStream(limit * 512);
+        String olderCursor = null;
+        String newerCursor = null;
+        boolean hasOlder;
+        synchronized (ring) {
+            if (ring.released) {
+                return null;
+            }
+            // Serve only when the ring can also tell whether older messages exist
+            if (ring.count <= limit && !ring.complete) {
+                return null;
+            }
+            int size = Math.min(limit, ring.count);
+            hasOlder = ring.count > limit;
+            ByteBuffer slab = blocks.slab(ring.block);
+            int base = blocks.offset(ring.block);
+            messages.write('[');
+            for (int i = 0; i < size; i++) {
+                int slot = slotAddress(ring, base, ring.count - 1 - i);
+                long id = slab.getLong(slot);
+                int length = slab.getInt(slot + 24);
+                byte[] json = new byte[length];
+                slab.get(base + headerBytes + slab.getInt(slot + 20), json);
+                long lastRead = slab.getInt(slot + 28) == 1 ? ring.lastReadLow : ring.lastReadHigh;
+
+                if (i > 0) {
+                    messages.write(',');
+                }
+                // Stored objects end with '}'; reopen them to append the read flag
+                messages.write(json, 0, length - 1);
+                messages.writeBytes(id <= lastRead ? READ : UNREAD);
+
+                if (i == 0 || i == size - 1) {
+                    LocalDateTime createdAt = LocalDateTime.ofEpochSecond(
+                            slab.getLong(slot + 8), slab.getInt(slot + 16), ZoneOffset.UTC);
+                    String cursor = new MessageCursor(createdAt, id).encode();
+                    if (i == 0) {
+                        newerCursor = cursor;
+                    }
+                    if (i == size - 1) {
+                        olderCursor = cursor;
+                    }
+                }
+            }
+            messages.write(']');
+        }
+        return new CachedPage(messages.toByteArray(), olderCursor, newerCursor, hasOlder);
+    }
+
+    private int slotAddress(Ring ring, int base, int index) {
+        return base + ((ring.head + index) % messagesPerRoom) * SLOT_BYTES;
+    }
+
+    private void evictOldest(Ring ring) {
+        ring.head = (ring.head + 1) % messagesPerRoom;
+        ring.count--;
+        ring.complete = false;
+        if (ring.count == 0) {
+            ring.writePosition = 0;
+        }
+    }
+
+    private static int compare(LocalDateTime createdAt, long id, ByteBuffer slab, int slot) {
+        LocalDateTime other = LocalDateTime.ofEpochSecond(slab.getLong(slot + 8), slab.getInt(slot + 16), ZoneOffset.UTC);
+        int order = createdAt.compareTo(other);
+        return order != 0 ? order : Long.compare(id, slab.getLong(slot));
+    }
+
+    private boolean contains(Ring ring, ByteBuffer slab, int base, long id) {
+        for (int i = 0; i < ring.count; i++) {
+            if (slab.getLong(slotAddress(ring, base, i)) == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        outer:
+        for (int i = 0; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
+    }
+
+    // Newest messages as loaded from the database, newest first. complete means the
+    // conversation has no messages beyond these.
+    public record Snapshot(List<ChatMessage> newestFirst, boolean complete, Map<Long, Long> lastReadByUser) {
+    }
+
+    // messagesJson is a JSON array of ChatMessage, newest first
+    public record CachedPage(byte[] messagesJson, String olderCursor, String newerCursor, boolean hasOlder) {
+    }
+
+    // Heap side of a room: block number, ring cursors and read watermarks. Message bytes
+    // and the slot table live in the block.
+    private static final class Ring {
+        private final int block;
+        private final long lowUserId;
+        private final long highUserId;
+        private int head;
+        private int count;
+        private int writePosition;
+        private boolean complete;
+        private boolean released;
+        private long lastReadLow;
+        private long lastReadHigh;
+
+        Ring(int block, long lowUserId, long highUserId) {
+            this.block = block;
+            this.lowUserId = lowUserId;
+            this.highUserId = highUserId;
+        }
+    }
+
+    private static final class PendingLoad {
+        private final List<Consumer<Ring>> deferred = new ArrayList<>();
+        private boolean done;
+    }
+
+    @JsonIgnoreProperties("isRead")
+    private abstract static class WithoutReadState {
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Entry point for new chat messages. Room sequence numbers, id order within a room and duplicate
+// detection all live in one process, so every room is written by the node ClusterMembership names
+// as its owner: a message for a room owned here goes straight to RoomSequencer, any other is sent
+// to the owner as SUBMIT and its outcome comes back as SUBMITTED. The owner also sends the instant
+// copy, so it goes out in room order wherever the message came in.
+//
+// An owner refuses a message for a room it does not think it owns, and a forwarded message whose
+// owner cannot be reached, drops out of the membership or does not answer within submit-timeout-ms
+// fails with a RejectedExecutionException; either way the client is asked to resend. A late answer
+// is ignored, and a resend with the same client message id is matched to the stored message.
+@Component
+@Slf4j
+public class RoomRouter implements ClusterBus.Listener {
+
+    private static final String INSTANT_FANOUT = "fanout";
+    private static final String SAVED = "saved";
+    private static final String REJECTED = "rejected";
+    private static final String INVALID = "invalid";
+    private static final String FAILED = "failed";
+
+    private final ClusterBus clusterBus;
+    private final ClusterMembership clusterMembership;
+    private final RoomSequencer roomSequencer;
+    private final ChatRoomDirectory chatRoomDirectory;
+    private final StompFanout stompFanout;
+    private final ChatPipelineMetrics pipelineMetrics;
+    private final ObjectMapper objectMapper;
+    private final Executor timeouts;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong();
+    private final Counter forwarded;
+
+    public RoomRouter(ClusterBus clusterBus,
+                      ClusterMembership clusterMembership,
+                      RoomSequencer roomSequencer,
+                      ChatRoomDirectory chatRoomDirectory,
+                      StompFanout stompFanout,
+                      ChatPipelineMetrics pipelineMetrics,
+                      ObjectMapper objectMapper,
+                      MeterRegistry meterRegistry,
+                      @Value("${app.cluster.submit-timeout-ms:10000}") long submitTimeoutMs) {
+        this.clusterBus = clusterBus;
+        this.clusterMembership = clusterMembership;
+        this.roomSequencer = roomSequencer;
+        this.chatRoomDirectory = chatRoomDirectory;
+        this.stompFanout = stompFanout;
+        this.pipelineMetrics = pipelineMetrics;
+        this.objectMapper = objectMapper;
+        this.timeouts = CompletableFuture.delayedExecutor(submitTimeoutMs, TimeUnit.MILLISECONDS);
+        clusterBus.addListener(this);
+
+        this.forwarded = Counter.builder("chat.room.forwarded")
+                .description("Messages sent to the node that owns their room")
+                .register(meterRegistry);
+        Gauge.builder("chat.room.forward.pending", pending, Map::size)
+                .description("Forwarded messages waiting for their owner's answer")
+                .register(meterRegistry);
+    }
+
+    // As RoomSequencer.submit, on the room's owner. With instantFanout the message is sent to both
+    // users as soon as the owner accepts it.
+    public CompletableFuture<ChatMessage> submit(ChatMessage chatMessage, boolean instantFanout) {
+        Long conversationId;
+        try {
+            conversationId = roomOf(chatMessage);
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        String owner = conversationId != null ? clusterMembership.ownerOf(conversationId) : clusterBus.nodeId();
+        if (owner.equals(clusterBus.nodeId())) {
+            return submitHere(chatMessage, instantFanout);
+        }
+        return forward(owner, chatMessage, instantFanout);
+    }
+
+    // Blocking form for request/response callers; failures are rethrown unwrapped
+    public ChatMessage saveInOrder(ChatMessage chatMessage) {
+        try {
+            return submit(chatMessage, false).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    // Null when the message is missing a user, which RoomSequencer rejects
+    private Long roomOf(ChatMessage chatMessage) {
+        if (chatMessage.getSenderId() == null || chatMessage.getReceiverId() == null) {
+            return null;
+        }
+        return chatRoomDirectory.resolve(chatMessage.getSenderId(), chatMessage.getReceiverId());
+    }
+
+    private CompletableFuture<ChatMessage> submitHere(ChatMessage chatMessage, boolean instantFanout) {
+        return roomSequencer.submit(chatMessage, instantFanout ? () -> sendInstantly(chatMessage) : null);
+    }
+
+    private void sendInstantly(ChatMessage chatMessage) {
+        long start = System.nanoTime();
+        try {
+            // Send to receiver immediately, and the confirmation back to the sender; encoded once for both
+            stompFanout.sendToUsers("/queue/messages", chatMessage,
+                    chatMessage.getReceiverUsername(), chatMessage.getSenderUsername());
+        } catch (Exception e) {
+            log.warn("Instant delivery of a message from {} failed: {}", chatMessage.getSenderUsername(), e.toString());
+        } finally {
+            pipelineMetrics.recordFanout(start);
+        }
+    }
+
+    private CompletableFuture<ChatMessage> forward(String owner, ChatMessage chatMessage, boolean instantFanout) {
+        byte[] payload;
+        try {
+            payload = objectMapper.writeValueAsBytes(chatMessage);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Message cannot be encoded", e));
+        }
+        String requestId = Long.toString(requestIds.incrementAndGet());
+        Pending request = new Pending(owner, new CompletableFuture<>());
+        pending.put(requestId, request);
+        if (!clusterBus.send(owner, ClusterMessage.submit(requestId, instantFanout ? INSTANT_FANOUT : null, payload))) {
+            pending.remove(requestId);
+            request.result.completeExceptionally(new RejectedExecutionException("Room owner " + owner + " is unreachable"));
+            return request.result;
+        }
+        forwarded.increment();
+        timeouts.execute(() -> {
+            if (pending.remove(requestId, request)) {
+                request.result.completeExceptionally(
+                        new RejectedExecutionException("Room owner " + owner + " did not answer in time"));
+            }
+        });
+        return request.result;
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        switch (message.type()) {
+            case SUBMIT -> accept(fromNode, message);
+            case SUBMITTED -> complete(message);
+            default -> {
+            }
+        }
+    }
+
+    @Override
+    public void onPeerLost(String nodeId) {
+        pending.forEach((requestId, request) -> {
+            if (request.owner.equals(nodeId) && pending.remove(requestId, request)) {
+                request.result.completeExceptionally(
+                        new RejectedExecutionException("Room owner " + nodeId + " left the cluster"));
+            }
+        });
+    }
+
+    // On the bus's thread; the room is normally in the directory cache already, and the rest
+    // happens on the room's lane
+    private void accept(String fromNode, ClusterMessage message) {
+        String requestId = message.key();
+        CompletableFuture<ChatMessage> result;
+        try {
+            ChatMessage chatMessage = objectMapper.readValue(message.payload(), ChatMessage.class);
+            Long conversationId = roomOf(chatMessage);
+            if (conversationId != null && !clusterMembership.isOwner(conversationId)) {
+                reply(fromNode, requestId, REJECTED, "Room is owned by another node");
+                return;
+            }
+            result = submitHere(chatMessage, INSTANT_FANOUT.equals(message.destination()));
+        } catch (Exception e) {
+            result = CompletableFuture.failedFuture(e);
+        }
+        result.whenComplete((saved, error) -> {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            if (cause == null) {
+                try {
+                    clusterBus.send(fromNode, ClusterMessage.submitted(requestId, SAVED,
+                            objectMapper.writeValueAsBytes(saved)));
+                } catch (IOException e) {
+                    reply(fromNode, requestId, FAILED, "Saved message cannot be encoded");
+                }
+            } else if (cause instanceof RejectedExecutionException) {
+                reply(fromNode, requestId, REJECTED, cause.getMessage());
+            } else if (cause instanceof IllegalArgumentException) {
+                reply(fromNode, requestId, INVALID, cause.getMessage());
+            } else {
+                reply(fromNode, requestId, FAILED, String.valueOf(cause.getMessage()));
+            }
+        });
+    }
+
+    private void reply(String node, String requestId, String outcome, String error) {
+        byte[] text = error != null ? error.getBytes(StandardCharsets.UTF_8) : null;
+        clusterBus.send(node, ClusterMessage.submitted(requestId, outcome, text));
+    }
+
+    private void complete(ClusterMessage message) {
+        Pending request = pending.remove(message.key());
+        if (request == null) {
+            return;
+        }
+        String error = message.payload() != null ? new String(message.payload(), StandardCharsets.UTF_8) : null;
+        switch (message.destination()) {
+            case SAVED -> {
+                try {
+                    request.result.complete(objectMapper.readValue(message.payload(), ChatMessage.class));
+                } catch (IOException e) {
+                    request.result.completeExceptionally(new IllegalStateException("Unreadable answer from room owner", e));
+                }
+            }
+            case REJECTED -> request.result.completeExceptionally(new RejectedExecutionException(error));
+            case INVALID -> request.result.completeExceptionally(new IllegalArgumentException(error));
+            default -> request.result.completeExceptionally(new IllegalStateException(error));
+        }
+    }
+
+    private record Pending(String owner, CompletableFuture<ChatMessage> result) {
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.service.ConversationQueries.Conversation;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Orders messages per chat room without a global lock. Each room hashes onto one of K lanes, a
+// single thread with its own queue, and everything for that room happens on it in arrival order:
+// the room sequence number is assigned, the message is queued for the (FIFO) batch writer, the
+// instant copy is fanned out, and later the persisted update is sent. Rooms on different lanes
+// proceed in parallel. Sequence counters are confined to their lane thread, so they are plain
+// fields. The counters are per process, so RoomRouter sends each room to the node that owns it;
+// when membership changes, rooms may have moved and every counter is reloaded before its next use.
+@Component
+public class RoomSequencer {
+
+    // Newest rows inspected when a room's counter is loaded; sequenced rows are always the newest
+    private static final int SEQ_LOOKBACK = 64;
+
+    private final ChatRoomDirectory chatRoomDirectory;
+    private final MessageBatchWriter messageBatchWriter;
+    private final ConversationQueries conversationQueries;
+    private final MessageDeduplicator messageDeduplicator;
+    private final Lane[] lanes;
+    private final int laneCapacity;
+
+    public RoomSequencer(ChatRoomDirectory chatRoomDirectory,
+                         MessageBatchWriter messageBatchWriter,
+                         ConversationQueries conversationQueries,
+                         MessageDeduplicator messageDeduplicator,
+                         ClusterMembership clusterMembership,
+                         MeterRegistry meterRegistry,
+                         @Value("${app.chat.sequencer.lanes:8}") int laneCount,
+                         @Value("${app.chat.sequencer.lane-capacity:10000}") int laneCapacity,
+                         @Value("${app.chat.sequencer.rooms-per-lane:100000}") int roomsPerLane) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("app.chat.sequencer.lanes must be at least 1");
+        }
+        this.chatRoomDirectory = chatRoomDirectory;
+        this.messageBatchWriter = messageBatchWriter;
+        this.conversationQueries = conversationQueries;
+        this.messageDeduplicator = messageDeduplicator;
+        this.laneCapacity = laneCapacity;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i, roomsPerLane);
+            Gauge.builder("chat.sequencer.lane.depth", lanes[i].executor, e -> e.getQueue().size())
+                    .description("Tasks waiting on a room sequencer lane")
+                    .tag("lane", Integer.toString(i))
+                    .register(meterRegistry);
+        }
+        clusterMembership.addChangeListener(this::forgetCounters);
+    }
+
+    // Sequences the message and queues it for persistence on its room's lane. onAccepted, if given,
+    // runs on the lane right after the message is accepted and before the room's next message.
+    // The returned future completes on the lane in room order; it fails with a
+    // RejectedExecutionException when the lane or the writer is saturated (no number is used up).
+    // A resend of an accepted message (same sender and client message id) is not stored or fanned
+    // out again; its future completes with the original's outcome.
+    public CompletableFuture<ChatMessage> submit(ChatMessage chatMessage, Runnable onAccepted) {
+        CompletableFuture<ChatMessage> result = new CompletableFuture<>();
+        if (chatMessage.getSenderId() == null || chatMessage.getReceiverId() == null) {
+            result.completeExceptionally(new IllegalArgumentException("Sender and receiver IDs are required"));
+            return result;
+        }
+        String clientMessageId = chatMessage.getClientMessageId();
+        if (clientMessageId != null && clientMessageId.isBlank()) {
+            chatMessage.setClientMessageId(null);
+        } else if (clientMessageId != null && clientMessageId.length() > MessageDeduplicator.MAX_CLIENT_MESSAGE_ID_LENGTH) {
+            result.completeExceptionally(new IllegalArgumentException("Client message ID must be at most "
+                    + MessageDeduplicator.MAX_CLIENT_MESSAGE_ID_LENGTH + " characters"));
+            return result;
+        }
+        Long conversationId;
+        try {
+            conversationId = chatRoomDirectory.resolve(chatMessage.getSenderId(), chatMessage.getReceiverId());
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        Lane lane = laneFor(conversationId);
+        // Capacity applies to new messages only; completions must always reach their lane
+        if (lane.executor.getQueue().size() >= laneCapacity) {
+            result.completeExceptionally(new RejectedExecutionException("Room sequencer lane is full"));
+            return result;
+        }
+        try {
+            lane.executor.execute(() -> lane.accept(conversationId, chatMessage, onAccepted, result));
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    // Another node may have numbered messages in rooms this one used to own
+    private void forgetCounters() {
+        for (Lane lane : lanes) {
+            try {
+                lane.executor.execute(lane::forgetCounters);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    private Lane laneFor(long conversationId) {
+        // Fibonacci hashing spreads sequential room ids evenly over the lanes
+        long mixed = conversationId * 0x9E3779B97F4A7C15L;
+        return lanes[(int) Math.floorMod(mixed >>> 32, (long) lanes.length)];
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        for (Lane lane : lanes) {
+            lane.executor.shutdown();
+        }
+        for (Lane lane : lanes) {
+            lane.executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private final class Lane {
+
+        private final ThreadPoolExecutor executor;
+        // Lane-thread only. Rooms with messages still in flight are never evicted, so a reload
+        // from the database cannot hand out a number twice.
+        private final LinkedHashMap<Long, RoomCounter> counters;
+
+        Lane(int index, int maxRooms) {
+            this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(), runnable -> {
+                        Thread thread = new Thread(runnable, "RoomLane-" + index);
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+            this.counters = new LinkedHashMap<>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, RoomCounter> eldest) {
+                    return size() > maxRooms && eldest.getValue().inFlight == 0;
+                }
+            };
+        }
+
+        void accept(Long conversationId, ChatMessage chatMessage, Runnable onAccepted,
+                    CompletableFuture<ChatMessage> result) {
+            RoomCounter counter;
+            try {
+                CompletableFuture<ChatMessage> original = messageDeduplicator.claim(chatMessage, result);
+                if (original != null) {
+                    original.whenComplete((saved, error) -> {
+                        if (error != null) {
+                            result.completeExceptionally(error);
+                        } else {
+                            result.complete(saved);
+                        }
+                    });
+                    return;
+                }
+                counter = counterFor(conversationId, chatMessage);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+                return;
+            }
+
+            chatMessage.setRoomSeq(counter.last + 1);
+            CompletableFuture<ChatMessage> persisted = messageBatchWriter.submit(chatMessage, executor);
+            if (persisted.isCompletedExceptionally()) {
+                chatMessage.setRoomSeq(null);
+                persisted.whenComplete((saved, error) -> result.completeExceptionally(error));
+                return;
+            }
+            counter.last++;
+            counter.inFlight++;
+
+            // The writer completes on this lane, in commit order
+            persisted.whenComplete((saved, error) -> {
+                counter.inFlight--;
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(saved);
+                }
+            });
+            if (onAccepted != null) {
+                onAccepted.run();
+            }
+        }
+
+        private RoomCounter counterFor(Long conversationId, ChatMessage chatMessage) {
+            RoomCounter counter = counters.get(conversationId);
+            if (counter == null || counter.stale && counter.inFlight == 0) {
+                counter = load(new Conversation(conversationId, chatMessage.getSenderId(), chatMessage.getReceiverId()));
+                counters.put(conversationId, counter);
+            }
+            return counter;
+        }
+
+        // Rooms with messages in flight keep counting until those land, then reload
+        void forgetCounters() {
+            counters.values().removeIf(counter -> {
+                counter.stale = true;
+                return counter.inFlight == 0;
+            });
+        }
+
+        private RoomCounter load(Conversation conversation) {
+            List<Long> newest = conversationQueries.newestRoomSeqs(conversation, SEQ_LOOKBACK);
+            long last = 0;
+            for (Long seq : newest) {
+                if (seq != null && seq > last) {
+                    last = seq;
+                }
+            }
+            return new RoomCounter(last);
+        }
+    }
+
+    private static final class RoomCounter {
+        private long last;
+        private int inFlight;
+        private boolean stale;
+
+        RoomCounter(long last) {
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.example.demo.dto.MessageAck;
+import com.example.demo.service.StompSessionFormats.SessionFormat;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessagingException;
+import org.springframework.messaging.simp.SimpMessageHeaderAccessor;
+import org.springframework.messaging.simp.SimpMessageType;
+import org.springframework.messaging.simp.SimpMessagingTemplate;
+import org.springframework.messaging.simp.user.SimpSession;
+import org.springframework.messaging.simp.user.SimpUser;
+import org.springframework.messaging.simp.user.SimpUserRegistry;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StringUtils;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.Set;
+
+// Sends one payload to several user destinations with a single encoding per wire format.
+// convertAndSendToUser runs the message converter once per recipient; here the payload is written
+// to bytes once and every recipient gets its own Message<byte[]> around the same array (headers
+// are per message, since the broker may still hold the previous one).
+// Sessions pick JSON or CBOR, and full or compact acks, on CONNECT (StompSessionFormats). A user
+// whose sessions all agree gets one user-addressed frame; otherwise each session is addressed.
+// ChatMessage, the bulk of the traffic, is written by a hand-rolled serializer instead of the
+// reflective bean serializer, with timestamps written without a formatter. Its output is checked
+// against the application ObjectMapper at startup and the bean serializer is kept if they differ.
+// Users with sessions on other nodes (ClusterRoutes) get the send forwarded over the cluster bus
+// as JSON, full and compact; the receiving node delivers it to its own sessions, transcoding to
+// CBOR for the ones that asked for it.
+@Component
+@Slf4j
+public class StompFanout {
+
+    private final SimpMessagingTemplate messagingTemplate;
+    private final StompSessionFormats sessionFormats;
+    private final SimpUserRegistry userRegistry;
+    private final ClusterBus clusterBus;
+    private final ClusterRoutes clusterRoutes;
+    private final Codec json;
+    private final Codec cbor;
+
+    public StompFanout(SimpMessagingTemplate messagingTemplate,
+                       ObjectMapper objectMapper,
+                       Jackson2ObjectMapperBuilder objectMapperBuilder,
+                       StompSessionFormats sessionFormats,
+                       SimpUserRegistry userRegistry,
+                       ClusterBus clusterBus,
+                       ClusterRoutes clusterRoutes) {
+        this.messagingTemplate = messagingTemplate;
+        this.sessionFormats = sessionFormats;
+        this.userRegistry = userRegistry;
+        this.clusterBus = clusterBus;
+        this.clusterRoutes = clusterRoutes;
+        this.json = new Codec(objectMapper, MimeTypeUtils.APPLICATION_JSON);
+        this.cbor = new Codec(cborMapper(objectMapperBuilder), StompSessionFormats.APPLICATION_CBOR);
+        clusterBus.addListener(this::onClusterMessage);
+    }
+
+    // Same modules and features as the JSON ObjectMapper, on a CBOR factory
+    public static ObjectMapper cborMapper(Jackson2ObjectMapperBuilder objectMapperBuilder) {
+        return objectMapperBuilder.factory(new CBORFactory()).build();
+    }
+
+    public void sendToUsers(String destination, Object payload, String... usernames) {
+        sendToUsers(destination, payload, null, usernames);
+    }
+
+    // compactPayload, if given, replaces payload for sessions that asked for compact acks
+    public void sendToUsers(String destination, Object payload, Object compactPayload, String... usernames) {
+        Encodings encodings = new Encodings(payload, compactPayload);
+        for (String username : usernames) {
+            sendToUser(username, destination, encodings);
+            forward(username, destination, encodings);
+        }
+    }
+
+    // To the topic's subscribers on every node, as JSON like convertAndSend
+    public void sendToTopic(String destination, Object payload) {
+        Encoded encoded = new Encoded(json.encode(payload), json.contentType);
+        send(destination, encoded, null);
+        clusterBus.broadcast(ClusterMessage.publish(destination, encoded.bytes()));
+    }
+
+    public byte[] encode(Object payload, boolean binary) {
+        return (binary ? cbor : json).encode(payload);
+    }
+
+    private void sendToUser(String username, String destination, Encodings encodings) {
+        SimpUser user = sessionFormats.allDefault() ? null : userRegistry.getUser(username);
+        if (user == null) {
+            sendEncoded(username, destination, encodings.get(SessionFormat.DEFAULT), null);
+            return;
+        }
+
+        Set<SimpSession> sessions = user.getSessions();
+        SessionFormat shared = null;
+        boolean uniform = true;
+        for (SimpSession session : sessions) {
+            SessionFormat format = sessionFormats.of(session.getId());
+            if (shared == null) {
+                shared = format;
+            } else if (!shared.equals(format)) {
+                uniform = false;
+                break;
+            }
+        }
+        if (uniform) {
+            sendEncoded(username, destination, encodings.get(shared != null ? shared : SessionFormat.DEFAULT), null);
+            return;
+        }
+        for (SimpSession session : sessions) {
+            sendEncoded(username, destination, encodings.get(sessionFormats.of(session.getId())), session.getId());
+        }
+    }
+
+    private void forward(String username, String destination, Encodings encodings) {
+        Set<String> nodes = clusterRoutes.remoteNodesOf(username);
+        if (nodes.isEmpty()) {
+            return;
+        }
+        byte[] compact = encodings.hasCompact() ? encodings.get(COMPACT_JSON).bytes() : null;
+        ClusterMessage message = ClusterMessage.deliver(username, destination,
+                encodings.get(SessionFormat.DEFAULT).bytes(), compact);
+        for (String node : nodes) {
+            clusterBus.send(node, message);
+        }
+    }
+
+    // On the bus's thread; forwarded sends only go to this node's sessions
+    private void onClusterMessage(String fromNode, ClusterMessage message) {
+        switch (message.type()) {
+            case DELIVER -> sendToUser(message.key(), message.destination(),
+                    new Encodings(message.payload(), message.compactPayload()));
+            case PUBLISH -> send(message.destination(), new Encoded(message.payload(), json.contentType), null);
+            default -> {
+            }
+        }
+    }
+
+    // sessionId, if given, limits delivery to that one session of the user
+    private void sendEncoded(String username, String destination, Encoded encoded, String sessionId) {
+        // Same user destination convertAndSendToUser would build
+        send(messagingTemplate.getUserDestinationPrefix() + StringUtils.replace(username, "/", "%2F") + destination,
+                encoded, sessionId);
+    }
+
+    private void send(String destination, Encoded encoded, String sessionId) {
+        SimpMessageHeaderAccessor accessor = SimpMessageHeaderAccessor.create(SimpMessageType.MESSAGE);
+        accessor.setContentType(encoded.contentType());
+        if (sessionId != null) {
+            accessor.setSessionId(sessionId);
+        }
+        accessor.setLeaveMutable(true);
+        Message<byte[]> message = MessageBuilder.createMessage(encoded.bytes(), accessor.getMessageHeaders());
+        messagingTemplate.send(destination, message);
+    }
+
+    private record Encoded(byte[] bytes, MimeType contentType) {
+    }
+
+    private static final SessionFormat COMPACT_JSON = new SessionFormat(true, false);
+
+    // Lazily encoded variants of one send: (full | compact) x (JSON | CBOR), each at most once
+    private final class Encodings {
+
+        private final Object payload;
+        private final Object compactPayload;
+        private final boolean hasCompact;
+        private final Encoded[] encoded = new Encoded[4];
+
+        Encodings(Object payload, Object compactPayload) {
+            this.payload = payload;
+            this.compactPayload = compactPayload;
+            this.hasCompact = compactPayload != null;
+        }
+
+        // JSON forwarded by another node; the CBOR variants are transcoded from it
+        Encodings(byte[] payload, byte[] compactPayload) {
+            this.payload = null;
+            this.compactPayload = null;
+            this.hasCompact = compactPayload != null;
+            encoded[0] = new Encoded(payload, json.contentType);
+            if (hasCompact) {
+                encoded[2] = new Encoded(compactPayload, json.contentType);
+            }
+        }
+
+        boolean hasCompact() {
+            return hasCompact;
+        }
+
+        Encoded get(SessionFormat format) {
+            boolean compact = format.compactAcks() && hasCompact;
+            int index = (compact ? 2 : 0) + (format.cbor() ? 1 : 0);
+            if (encoded[index] == null) {
+                Codec codec = format.cbor() ? cbor : json;
+                byte[] bytes = payload != null
+                        ? codec.encode(compact ? compactPayload : payload)
+                        : transcode(encoded[index - 1].bytes(), codec);
+                encoded[index] = new Encoded(bytes, codec.contentType);
+            }
+            return encoded[index];
+        }
+    }
+
+    // Only CBOR is ever transcoded, and always from the JSON variant next to it
+    private byte[] transcode(byte[] jsonBytes, Codec to) {
+        try {
+            return to.mapper.writeValueAsBytes(json.mapper.readTree(jsonBytes));
+        } catch (IOException e) {
+            throw new MessagingException("Could not transcode a forwarded payload", e);
+        }
+    }
+
+    private static final class Codec {
+
+        private final ObjectMapper mapper;
+        private final MimeType contentType;
+        private final ObjectWriter chatMessageWriter;
+        private final ObjectWriter ackWriter;
+
+        Codec(ObjectMapper mapper, MimeType contentType) {
+            this.mapper = mapper;
+            this.contentType = contentType;
+            ObjectWriter reference = mapper.writerFor(ChatMessage.class);
+            ObjectWriter tuned = mapper.copy()
+                    .registerModule(new SimpleModule("chatMessageFanout").addSerializer(new ChatMessageSerializer()))
+                    .writerFor(ChatMessage.class);
+            this.chatMessageWriter = writesSameJson(tuned, reference) ? tuned : reference;
+            this.ackWriter = mapper.writerFor(MessageAck.class);
+        }
+
+        byte[] encode(Object payload) {
+            try {
+                if (payload instanceof ChatMessage) {
+                    return chatMessageWriter.writeValueAsBytes(payload);
+                }
+                if (payload instanceof MessageAck) {
+                    return ackWriter.writeValueAsBytes(payload);
+                }
+                return mapper.writeValueAsBytes(payload);
+            } catch (IOException e) {
+                throw new MessagingException("Could not encode " + payload.getClass().getSimpleName(), e);
+            }
+        }
+    }
+
+    private static boolean writesSameJson(ObjectWriter tuned, ObjectWriter reference) {
+        ChatMessage full = new ChatMessage(1L, "content \"quoted\" é", "alice", "bob", 1L, 2L,
+                "https://example.com/a.jpg", null, "TEXT", LocalDateTime.of(2024, 1, 2, 3, 4, 5, 120_000_000),
+                false, "1_2", 7L, "c-1", ChatMessage.Type.CHAT);
+        ChatMessage wholeSeconds = new ChatMessage();
+        wholeSeconds.setTimestamp(LocalDateTime.of(987, 12, 31, 23, 59, 0));
+        ChatMessage nanos = new ChatMessage();
+        nanos.setTimestamp(LocalDateTime.of(2024, 6, 1, 0, 0, 1, 5));
+        ChatMessage empty = new ChatMessage();
+        empty.setType(null);
+        try {
+            for (ChatMessage sample : new ChatMessage[]{full, wholeSeconds, nanos, empty}) {
+                if (!Arrays.equals(tuned.writeValueAsBytes(sample), reference.writeValueAsBytes(sample))) {
+                    log.warn("ChatMessage fan-out serializer disagrees with the ObjectMapper; using the bean serializer");
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            log.warn("ChatMessage fan-out serializer failed its self-check; using the bean serializer", e);
+            return false;
+        }
+    }
+
+    // Field for field what the bean serializer writes for ChatMessage under Boot's defaults
+    // (declaration order, nulls included, ISO-8601 LocalDateTime). Keep in step with ChatMessage;
+    // the startup check falls back to the bean serializer when they drift apart.
+    static final class ChatMessageSerializer extends StdSerializer<ChatMessage> {
+
+        private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+        ChatMessageSerializer() {
+            super(ChatMessage.class);
+        }
+
+        @Override
+        public void serialize(ChatMessage message, JsonGenerator gen, SerializerProvider provider)
+                throws IOException {
+            gen.writeStartObject(message);
+            writeNumber(gen, "id", message.getId());
+            gen.writeStringField("content", message.getContent());
+            gen.writeStringField("senderUsername", message.getSenderUsername());
+            gen.writeStringField("receiverUsername", message.getReceiverUsername());
+            writeNumber(gen, "senderId", message.getSenderId());
+            writeNumber(gen, "receiverId", message.getReceiverId());
+            gen.writeStringField("senderProfileImageUrl", message.getSenderProfileImageUrl());
+            gen.writeStringField("receiverProfileImageUrl", message.getReceiverProfileImageUrl());
+            gen.writeStringField("messageType", message.getMessageType());
+            gen.writeFieldName("timestamp");
+            writeTimestamp(gen, message.getTimestamp());
+            if (message.getIsRead() != null) {
+                gen.writeBooleanField("isRead", message.getIsRead());
+            } else {
+                gen.writeNullField("isRead");
+            }
+            gen.writeStringField("roomId", message.getRoomId());
+            writeNumber(gen, "roomSeq", message.getRoomSeq());
+            gen.writeStringField("clientMessageId", message.getClientMessageId());
+            gen.writeStringField("type", message.getType() != null ? message.getType().name() : null);
+            gen.writeEndObject();
+        }
+
+        // ISO_LOCAL_DATE_TIME written straight into a char buffer: seconds always, the fraction
+        // only when non-zero and without trailing zeros. Years outside 0..9999 take the formatter.
+        private static void writeTimestamp(JsonGenerator gen, LocalDateTime timestamp) throws IOException {
+            if (timestamp == null) {
+                gen.writeNull();
+                return;
+            }
+            int year = timestamp.getYear();
+            if (year < 0 || year > 9999) {
+                gen.writeString(TIMESTAMP_FORMAT.format(timestamp));
+                return;
+            }
+            char[] buf = new char[29];
+            digits(buf, 0, year, 4);
+            buf[4] = '-';
+            digits(buf, 5, timestamp.getMonthValue(), 2);
+            buf[7] = '-';
+            digits(buf, 8, timestamp.getDayOfMonth(), 2);
+            buf[10] = 'T';
+            digits(buf, 11, timestamp.getHour(), 2);
+            buf[13] = ':';
+            digits(buf, 14, timestamp.getMinute(), 2);
+            buf[16] = ':';
+            digits(buf, 17, timestamp.getSecond(), 2);
+            int length = 19;
+            int nanos = timestamp.getNano();
+            if (nanos > 0) {
+                buf[19] = '.';
+                digits(buf, 20, nanos, 9);
+                length = 29;
+                while (buf[length - 1] == '0') {
+                    length--;
+                }
+            }
+            gen.writeString(buf, 0, length);
+        }
+
+        private static void digits(char[] buf, int offset, int value, int width) {
+            for (int i = offset + width - 1; i >= offset; i--) {
+                buf[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+
+        private static void writeNumber(JsonGenerator gen, String name, Long value) throws IOException {
+            if (value != null) {
+                gen.writeNumberField(name, value);
+            } else {
+                gen.writeNullField(name);
+            }
+        }
+    }
+}
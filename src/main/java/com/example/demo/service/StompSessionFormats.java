@@ -0,0 +1,68 @@
+package com.example.demo.service;
+
+import org.springframework.context.event.EventListener;
+import org.springframework.messaging.simp.stomp.StompHeaderAccessor;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeType;
+import org.springframework.web.socket.messaging.SessionConnectEvent;
+import org.springframework.web.socket.messaging.SessionDisconnectEvent;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// What each STOMP session asked for on CONNECT:
+//   "ack-format: compact"            MessageAck instead of the full message on /queue/message-update
+//   "content-type: application/cbor" CBOR instead of JSON for frames sent to it
+// Only sessions that deviate from the defaults are tracked. CBOR needs binary WebSocket frames,
+// so it is only granted on the raw WebSocket endpoint, not over SockJS.
+@Component
+public class StompSessionFormats {
+
+    public static final String ACK_FORMAT_HEADER = "ack-format";
+    public static final String COMPACT = "compact";
+    public static final MimeType APPLICATION_CBOR = new MimeType("application", "cbor");
+
+    public record SessionFormat(boolean compactAcks, boolean cbor) {
+        public static final SessionFormat DEFAULT = new SessionFormat(false, false);
+    }
+
+    private final ConcurrentHashMap<String, SessionFormat> formats = new ConcurrentHashMap<>();
+    private final Set<String> textOnlySessions = ConcurrentHashMap.newKeySet();
+
+    // Published before the CONNECT reaches the channel interceptors, so only the session id is known
+    @EventListener
+    public void onConnect(SessionConnectEvent event) {
+        StompHeaderAccessor accessor = StompHeaderAccessor.wrap(event.getMessage());
+        boolean compactAcks = COMPACT.equalsIgnoreCase(accessor.getFirstNativeHeader(ACK_FORMAT_HEADER));
+        MimeType contentType = accessor.getContentType();
+        boolean cbor = contentType != null && APPLICATION_CBOR.equalsTypeAndSubtype(contentType)
+                && !textOnlySessions.contains(accessor.getSessionId());
+        if (compactAcks || cbor) {
+            formats.put(accessor.getSessionId(), new SessionFormat(compactAcks, cbor));
+        }
+    }
+
+    @EventListener
+    public void onDisconnect(SessionDisconnectEvent event) {
+        forget(event.getSessionId());
+    }
+
+    // Called when the transport opens, before the CONNECT frame arrives
+    public void markTextOnly(String sessionId) {
+        textOnlySessions.add(sessionId);
+    }
+
+    public void forget(String sessionId) {
+        formats.remove(sessionId);
+        textOnlySessions.remove(sessionId);
+    }
+
+    public SessionFormat of(String sessionId) {
+        return formats.getOrDefault(sessionId, SessionFormat.DEFAULT);
+    }
+
+    // True while every connected session uses the defaults
+    public boolean allDefault() {
+        return formats.isEmpty();
+    }
+}
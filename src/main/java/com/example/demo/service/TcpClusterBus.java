@@ -0,0 +1,573 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Full-mesh cluster bus over TCP. Every node dials every address in app.cluster.peers and sends
+// on that connection only; it receives on the connections the peers dial in. Both start with a
+// HELLO carrying the node id, and a node that finds itself in the peer list drops that address,
+// so all nodes can share one list.
+//
+// The HELLOs also carry a random nonce each, and each side answers the other's nonce with an
+// HMAC-SHA256 under app.cluster.secret, so only nodes that share the secret get connected. Without
+// a secret the bus only listens on a loopback address. The exchange authenticates the connection
+// once; frames after it are neither signed nor encrypted, so the network still has to be trusted.
+//
+// Each outbound connection has a writer thread and a queue: the writer takes what is queued,
+// writes it into a buffered stream and flushes once the queue is empty, so messages sent in a
+// burst share a packet and a syscall. Payload messages over queue-capacity, or to a peer that is
+// not connected, are dropped and counted. State updates may use twice that; if even that is full
+// the connection is reset rather than lose one. On (re)connecting the queue is cleared and
+// listeners resend their state. A lost inbound connection, or a new one from the same node id,
+// means the peer restarted or went away, and listeners forget its state.
+//
+// A half-open connection would otherwise look healthy forever. The writer sends a HEARTBEAT at
+// least every heartbeat-interval-ms and the receiving side echoes it back; an inbound connection
+// silent for peer-timeout-ms, or an outbound one whose echoes stop for as long, is closed.
+//
+// Frames are self-delimiting: a type byte, then the message's fields, strings as modified UTF-8
+// and byte arrays length-prefixed.
+@Component
+@ConditionalOnProperty(name = "app.cluster.bus", havingValue = "tcp")
+@Slf4j
+public class TcpClusterBus implements ClusterBus, SmartLifecycle {
+
+    private static final byte HELLO = -1;
+    private static final byte HEARTBEAT = -2;
+    private static final int NONCE_BYTES = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    // Stands in for the secret on loopback-only nodes, where the exchange proves nothing
+    private static final byte[] NO_SECRET = "unauthenticated".getBytes(StandardCharsets.UTF_8);
+    private static final int MAX_PAYLOAD_BYTES = 16 << 20;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long MIN_BACKOFF_MS = 100;
+    private static final long MAX_BACKOFF_MS = 5000;
+    private static final ClusterMessage.Type[] TYPES = ClusterMessage.Type.values();
+
+    private final String nodeId;
+    private final String bindAddress;
+    private final int port;
+    private final int queueCapacity;
+    private final SecretKeySpec secretKey;
+    private final long heartbeatIntervalMs;
+    private final long peerTimeoutMs;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Peer> peers = new ArrayList<>();
+    // Connected outbound peers by node id
+    private final Map<String, Peer> connected = new ConcurrentHashMap<>();
+    // Current inbound connection per node id
+    private final Map<String, Socket> inbound = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private final Counter sent;
+    private final Counter received;
+    private final Counter dropped;
+    private final DistributionSummary flushSize;
+
+    private volatile boolean running;
+    private volatile ServerSocket serverSocket;
+
+    public TcpClusterBus(MeterRegistry meterRegistry,
+                         @Value("${app.cluster.node-id:}") String nodeId,
+                         @Value("${app.cluster.bind-address:127.0.0.1}") String bindAddress,
+                         @Value("${app.cluster.port:7400}") int port,
+                         @Value("${app.cluster.peers:}") String peers,
+                         @Value("${app.cluster.queue-capacity:10000}") int queueCapacity,
+                         @Value("${app.cluster.secret:}") String secret,
+                         @Value("${app.cluster.heartbeat-interval-ms:1000}") long heartbeatIntervalMs,
+                         @Value("${app.cluster.peer-timeout-ms:5000}") long peerTimeoutMs) {
+        if (!StringUtils.hasText(secret) && !isLoopback(bindAddress)) {
+            throw new IllegalStateException("app.cluster.secret is required to listen on " + bindAddress
+                    + "; without it the cluster bus only binds a loopback address");
+        }
+        if (peerTimeoutMs <= heartbeatIntervalMs) {
+            throw new IllegalArgumentException("app.cluster.peer-timeout-ms must exceed app.cluster.heartbeat-interval-ms");
+        }
+        this.nodeId = StringUtils.hasText(nodeId) ? nodeId : localHostName() + ":" + port;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.queueCapacity = queueCapacity;
+        this.secretKey = new SecretKeySpec(StringUtils.hasText(secret)
+                ? secret.getBytes(StandardCharsets.UTF_8) : NO_SECRET, MAC_ALGORITHM);
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.peerTimeoutMs = peerTimeoutMs;
+        for (String peer : StringUtils.tokenizeToStringArray(peers, ",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Cluster peer must be host:port, got " + peer);
+            }
+            this.peers.add(new Peer(InetSocketAddress.createUnresolved(
+                    peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)))));
+        }
+
+        this.sent = Counter.builder("chat.cluster.sent")
+                .description("Messages written to peer nodes")
+                .register(meterRegistry);
+        this.received = Counter.builder("chat.cluster.received")
+                .description("Messages read from peer nodes")
+                .register(meterRegistry);
+        this.dropped = Counter.builder("chat.cluster.dropped")
+                .description("Messages for peer nodes that were not connected or had a full queue")
+                .register(meterRegistry);
+        // Messages per flush; near 1 means every message costs its own packet
+        this.flushSize = DistributionSummary.builder("chat.cluster.flush.messages")
+                .description("Messages written per flush to a peer node")
+                .register(meterRegistry);
+        Gauge.builder("chat.cluster.peers", connected, Map::size)
+                .description("Peer nodes this node is connected to")
+                .register(meterRegistry);
+    }
+
+    private static boolean isLoopback(String address) {
+        try {
+            return InetAddress.getByName(address).isLoopbackAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Unknown cluster bind address " + address, e);
+        }
+    }
+
+    private static String localHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public boolean send(String nodeId, ClusterMessage message) {
+        Peer peer = connected.get(nodeId);
+        if (peer == null || !peer.offer(message)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void broadcast(ClusterMessage message) {
+        for (Peer peer : connected.values()) {
+            if (!peer.offer(message)) {
+                dropped.increment();
+            }
+        }
+    }
+
+    @Override
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void start() {
+        try {
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cluster bus cannot listen on " + bindAddress + ":" + port, e);
+        }
+        running = true;
+        daemon(this::accept, "ClusterAccept").start();
+        daemon(this::watch, "ClusterWatchdog").start();
+        for (Peer peer : peers) {
+            peer.thread = daemon(peer::run, "ClusterOut-" + peer.address);
+            peer.thread.start();
+        }
+        log.info("Cluster bus {} listening on {}:{} with {} peer address(es)", nodeId, bindAddress, port, peers.size());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        closeQuietly(serverSocket);
+        for (Peer peer : peers) {
+            if (peer.thread != null) {
+                peer.thread.interrupt();
+            }
+            closeQuietly(peer.socket);
+        }
+        inbound.values().forEach(TcpClusterBus::closeQuietly);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon(() -> read(socket), "ClusterIn-" + socket.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (running) {
+                    log.warn("Cluster bus accept failed", e);
+                }
+            }
+        }
+    }
+
+    // Closes outbound connections whose heartbeat echoes stopped; that also frees a writer
+    // blocked on a peer that no longer reads
+    private void watch() {
+        while (running) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(heartbeatIntervalMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Map.Entry<String, Peer> entry : connected.entrySet()) {
+                Peer peer = entry.getValue();
+                if (now - peer.lastHeard > TimeUnit.MILLISECONDS.toNanos(peerTimeoutMs)) {
+                    log.warn("Cluster peer {} silent for over {} ms; reconnecting", entry.getKey(), peerTimeoutMs);
+                    closeQuietly(peer.socket);
+                }
+            }
+        }
+    }
+
+    // One thread per inbound connection, for as long as it lasts
+    private void read(Socket socket) {
+        String peerId = null;
+        try (socket) {
+            // Covers the handshake too, so a connection that never completes it does not hold a thread
+            socket.setSoTimeout((int) peerTimeoutMs);
+            socket.setKeepAlive(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Hello hello = readHello(in);
+            byte[] nonce = writeHello(out);
+            out.write(proof(hello.nonce(), nodeId));
+            out.flush();
+            if (!verify(in, nonce, hello.nodeId())) {
+                log.warn("Cluster connection from {} claiming {} failed authentication",
+                        socket.getRemoteSocketAddress(), hello.nodeId());
+                return;
+            }
+            peerId = hello.nodeId();
+            if (peerId.equals(nodeId)) {
+                return;
+            }
+            Socket previous = inbound.put(peerId, socket);
+            if (previous != null) {
+                // The peer restarted: what it said on the old connection no longer holds
+                closeQuietly(previous);
+                peerLost(peerId);
+            }
+            while (running) {
+                ClusterMessage message = readMessage(in);
+                if (message == null) {
+                    out.writeByte(HEARTBEAT);
+                    out.flush();
+                    continue;
+                }
+                received.increment();
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onMessage(peerId, message);
+                    } catch (RuntimeException e) {
+                        log.warn("Cluster listener failed on {} from {}", message.type(), peerId, e);
+                    }
+                }
+            }
+        } catch (EOFException e) {
+            log.debug("Cluster peer {} closed its connection", peerId);
+        } catch (SocketTimeoutException e) {
+            if (running) {
+                log.warn("Cluster connection from {} silent for over {} ms; closing", peerId, peerTimeoutMs);
+            }
+        } catch (IOException e) {
+            if (running) {
+                log.info("Cluster connection from {} failed: {}", peerId, e.toString());
+            }
+        } finally {
+            if (peerId != null && inbound.remove(peerId, socket)) {
+                peerLost(peerId);
+            }
+        }
+    }
+
+    private void peerLost(String peerId) {
+        for (Listener listener : listeners) {
+            listener.onPeerLost(peerId);
+        }
+    }
+
+    // Returns the nonce the other side has to answer
+    private byte[] writeHello(DataOutputStream out) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        out.writeByte(HELLO);
+        out.writeUTF(nodeId);
+        out.write(nonce);
+        return nonce;
+    }
+
+    private static Hello readHello(DataInputStream in) throws IOException {
+        if (in.readByte() != HELLO) {
+            throw new IOException("Cluster peer did not start with HELLO");
+        }
+        String peerId = in.readUTF();
+        byte[] nonce = new byte[NONCE_BYTES];
+        in.readFully(nonce);
+        return new Hello(peerId, nonce);
+    }
+
+    // HMAC of the other side's nonce and the sender's node id: proves the secret, and cannot be
+    // replayed to a node that picks a new nonce, or passed off under another id
+    private byte[] proof(byte[] nonce, String senderId) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(secretKey);
+            mac.update(nonce);
+            return mac.doFinal(senderId.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot compute the cluster handshake MAC", e);
+        }
+    }
+
+    private boolean verify(DataInputStream in, byte[] nonce, String senderId) throws IOException {
+        byte[] expected = proof(nonce, senderId);
+        byte[] actual = new byte[expected.length];
+        in.readFully(actual);
+        return MessageDigest.isEqual(expected, actual);
+    }
+
+    static void writeMessage(DataOutputStream out, ClusterMessage message) throws IOException {
+        out.writeByte(message.type().ordinal());
+        writeString(out, message.key());
+        writeString(out, message.destination());
+        writeBytes(out, message.payload());
+        writeBytes(out, message.compactPayload());
+    }
+
+    // Null for a HEARTBEAT frame
+    static ClusterMessage readMessage(DataInputStream in) throws IOException {
+        int type = in.readByte();
+        if (type == HEARTBEAT) {
+            return null;
+        }
+        if (type < 0 || type >= TYPES.length) {
+            throw new IOException("Unknown cluster message type " + type);
+        }
+        return new ClusterMessage(TYPES[type], readString(in), readString(in), readBytes(in), readBytes(in));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] value) throws IOException {
+        out.writeInt(value != null ? value.length : -1);
+        if (value != null) {
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_PAYLOAD_BYTES) {
+            throw new IOException("Cluster payload of " + length + " bytes exceeds the limit");
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    private record Hello(String nodeId, byte[] nonce) {
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    // Outbound side of one peer address: connects, reconnects with backoff, and writes its queue
+    private final class Peer {
+
+        private final InetSocketAddress address;
+        private final BlockingQueue<ClusterMessage> queue = new LinkedBlockingQueue<>();
+
+        private Thread thread;
+        private volatile Socket socket;
+        // System.nanoTime() of the last heartbeat echo, or of connecting
+        private volatile long lastHeard;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        boolean offer(ClusterMessage message) {
+            // size() is a counter read, not a traversal
+            int size = queue.size();
+            if (!message.isControl()) {
+                return size < queueCapacity && queue.offer(message);
+            }
+            if (size >= 2L * queueCapacity) {
+                // The peer is not keeping up; a fresh connection resends the full state instead
+                log.warn("Cluster queue to {} is full; resetting the connection", address);
+                closeQuietly(socket);
+                return false;
+            }
+            return queue.offer(message);
+        }
+
+        void run() {
+            long backoff = MIN_BACKOFF_MS;
+            while (running) {
+                String peerId = null;
+                try (Socket socket = new Socket()) {
+                    this.socket = socket;
+                    socket.setTcpNoDelay(true);
+                    socket.setKeepAlive(true);
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                            CONNECT_TIMEOUT_MS);
+                    // Only the handshake reads block; echoes are picked up with available()
+                    socket.setSoTimeout((int) peerTimeoutMs);
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES));
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    byte[] nonce = writeHello(out);
+                    out.flush();
+                    Hello hello = readHello(in);
+                    if (!verify(in, nonce, hello.nodeId())) {
+                        throw new IOException("Cluster peer " + hello.nodeId() + " failed authentication");
+                    }
+                    out.write(proof(hello.nonce(), nodeId));
+                    out.flush();
+                    String remoteId = hello.nodeId();
+                    if (remoteId.equals(nodeId)) {
+                        log.debug("Cluster peer {} is this node", address);
+                        return;
+                    }
+                    // Whatever was queued for an earlier connection is superseded by the resend
+                    queue.clear();
+                    peerId = remoteId;
+                    lastHeard = System.nanoTime();
+                    connected.put(peerId, this);
+                    backoff = MIN_BACKOFF_MS;
+                    log.info("Cluster bus {} connected to {} at {}", nodeId, peerId, address);
+                    for (Listener listener : listeners) {
+                        listener.onPeerConnected(peerId);
+                    }
+                    write(out, in);
+                } catch (IOException e) {
+                    if (running) {
+                        log.debug("Cluster peer {} unavailable: {}", address, e.toString());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (peerId != null) {
+                        connected.remove(peerId, this);
+                        log.info("Cluster bus {} disconnected from {}", nodeId, peerId);
+                    }
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+
+        private void write(DataOutputStream out, DataInputStream in) throws IOException, InterruptedException {
+            long heartbeatNanos = TimeUnit.MILLISECONDS.toNanos(heartbeatIntervalMs);
+            long nextHeartbeat = System.nanoTime();
+            while (running) {
+                ClusterMessage message = queue.poll(heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+                int batch = 0;
+                while (message != null) {
+                    writeMessage(out, message);
+                    batch++;
+                    message = queue.poll();
+                }
+                // Sent on a clock, busy or not, so the echoes keep proving the peer reads
+                long now = System.nanoTime();
+                if (now - nextHeartbeat >= 0) {
+                    out.writeByte(HEARTBEAT);
+                    nextHeartbeat = now + heartbeatNanos;
+                }
+                out.flush();
+                if (batch > 0) {
+                    sent.increment(batch);
+                    flushSize.record(batch);
+                }
+                while (in.available() > 0) {
+                    if (in.readByte() != HEARTBEAT) {
+                        throw new IOException("Unexpected data from cluster peer " + address);
+                    }
+                    lastHeard = System.nanoTime();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.demo.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bloom filter over the recent past: two generations of bits, each covering one window. Keys are
+// added to the current generation and looked up in both, so a key is remembered for at least one
+// and at most two windows, after which the older generation is dropped wholesale. Lock-free except
+// for the rotation itself; false positives are possible, false negatives within a window are not.
+final class TimeWindowedBloomFilter {
+
+    private final int bits;
+    private final int hashes;
+    private final long windowNanos;
+
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    TimeWindowedBloomFilter(long expectedPerWindow, double falsePositiveRate, long windowNanos) {
+        if (expectedPerWindow < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Bloom filter needs expected insertions >= 1 and 0 < fpp < 1");
+        }
+        // Standard sizing: m = -n ln p / (ln 2)^2, k = m / n ln 2
+        double m = -expectedPerWindow * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.bits = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, Math.ceil(m)));
+        this.hashes = Math.max(1, (int) Math.round(bits / (double) expectedPerWindow * Math.log(2)));
+        this.windowNanos = windowNanos;
+        this.current = new Generation(bits, System.nanoTime());
+        this.previous = new Generation(bits, current.startedAt);
+    }
+
+    void put(long hash) {
+        Generation generation = rotateIfDue();
+        long h1 = hash;
+        long h2 = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            generation.set(Math.floorMod(h1 + i * h2, bits));
+        }
+    }
+
+    boolean mightContain(long hash) {
+        Generation newer = rotateIfDue();
+        return contains(newer, hash) || contains(previous, hash);
+    }
+
+    private boolean contains(Generation generation, long hash) {
+        long h1 = hash;
+        long h2 = Long.rotateLeft(hash, 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            if (!generation.get(Math.floorMod(h1 + i * h2, bits))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Generation rotateIfDue() {
+        Generation generation = current;
+        long now = System.nanoTime();
+        if (now - generation.startedAt < windowNanos) {
+            return generation;
+        }
+        synchronized (this) {
+            if (current == generation) {
+                previous = generation;
+                current = new Generation(bits, now);
+            }
+            return current;
+        }
+    }
+
+    private static final class Generation {
+
+        private final AtomicLongArray words;
+        private final long startedAt;
+
+        Generation(int bits, long startedAt) {
+            this.words = new AtomicLongArray((bits + 63) >>> 6);
+            this.startedAt = startedAt;
+        }
+
+        void set(int bit) {
+            int index = bit >>> 6;
+            long mask = 1L << bit;
+            long word = words.get(index);
+            while ((word & mask) == 0 && !words.compareAndSet(index, word, word | mask)) {
+                word = words.get(index);
+            }
+        }
+
+        boolean get(int bit) {
+            return (words.get(bit >>> 6) & (1L << bit)) != 0;
+        }
+    }
+}
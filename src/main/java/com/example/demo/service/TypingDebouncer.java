@@ -0,0 +1,184 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Coalesces typing indicators per (sender, receiver). Clients send one on nearly every keystroke;
+// the receiver gets the first, then at most one per window while the sender keeps typing, and a
+// STOP_TYPING either when the sender says so or, synthesized here, once it has been quiet for the
+// idle timeout. Each typing pair has one timeout on a hashed timer wheel; keystrokes only move
+// the pair's last-seen time, and an expiring timeout that finds more recent activity re-arms
+// itself for the remainder instead of being cancelled and rescheduled on every frame.
+@Component
+public class TypingDebouncer {
+
+    private static final String DESTINATION = "/queue/typing";
+
+    private final StompFanout stompFanout;
+    private final long windowNanos;
+    private final long idleNanos;
+    private final HashedTimerWheel timer;
+    private final ConcurrentHashMap<Pair, Typing> typing = new ConcurrentHashMap<>();
+
+    private final Counter received;
+    private final Counter suppressedStarts;
+    private final Counter suppressedStops;
+    private final Counter clientStops;
+    private final Counter idleStops;
+
+    public TypingDebouncer(StompFanout stompFanout,
+                           MeterRegistry meterRegistry,
+                           @Value("${app.chat.typing.window-ms:2000}") long windowMillis,
+                           @Value("${app.chat.typing.idle-timeout-ms:3000}") long idleMillis,
+                           @Value("${app.chat.typing.tick-ms:100}") long tickMillis) {
+        this.stompFanout = stompFanout;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        // One turn of the wheel covers the idle timeout, so timeouts rarely wait out extra rounds
+        int ticksPerWheel = (int) Math.max(64, Math.min(1 << 16, idleMillis / Math.max(1, tickMillis) + 1));
+        this.timer = new HashedTimerWheel("TypingTimer", tickMillis, TimeUnit.MILLISECONDS, ticksPerWheel);
+
+        // Suppression rate = sum(chat.typing.suppressed) / chat.typing.received
+        this.received = Counter.builder("chat.typing.received")
+                .description("Typing indicator frames received from clients")
+                .register(meterRegistry);
+        this.suppressedStarts = suppressed(meterRegistry, "TYPING");
+        this.suppressedStops = suppressed(meterRegistry, "STOP_TYPING");
+        this.clientStops = stops(meterRegistry, "client");
+        this.idleStops = stops(meterRegistry, "idle");
+        Gauge.builder("chat.typing.active", typing, ConcurrentHashMap::size)
+                .description("Sender and receiver pairs currently shown as typing")
+                .register(meterRegistry);
+    }
+
+    private static Counter suppressed(MeterRegistry meterRegistry, String type) {
+        return Counter.builder("chat.typing.suppressed")
+                .description("Typing indicator frames not forwarded to the receiver")
+                .tag("type", type)
+                .register(meterRegistry);
+    }
+
+    private static Counter stops(MeterRegistry meterRegistry, String cause) {
+        return Counter.builder("chat.typing.stopped")
+                .description("STOP_TYPING indicators forwarded to the receiver")
+                .tag("cause", cause)
+                .register(meterRegistry);
+    }
+
+    // STOP_TYPING ends the pair's typing; any other type is treated as a keystroke
+    public void onTyping(ChatMessage chatMessage) {
+        if (chatMessage.getSenderUsername() == null || chatMessage.getReceiverUsername() == null) {
+            return;
+        }
+        received.increment();
+        Pair pair = new Pair(chatMessage.getSenderUsername(), chatMessage.getReceiverUsername());
+        long now = System.nanoTime();
+
+        if (chatMessage.getType() == ChatMessage.Type.STOP_TYPING) {
+            if (typing.remove(pair) != null) {
+                clientStops.increment();
+                stompFanout.sendToUsers(DESTINATION, chatMessage, pair.receiver());
+            } else {
+                suppressedStops.increment();
+            }
+            return;
+        }
+
+        Typing[] started = new Typing[1];
+        boolean[] forward = new boolean[1];
+        typing.compute(pair, (key, current) -> {
+            if (current == null) {
+                started[0] = new Typing(chatMessage, now);
+                forward[0] = true;
+                return started[0];
+            }
+            current.lastSeen = now;
+            if (now - current.lastForwarded >= windowNanos) {
+                current.lastForwarded = now;
+                current.last = chatMessage;
+                forward[0] = true;
+            }
+            return current;
+        });
+        if (started[0] != null) {
+            armIdleTimeout(pair, started[0], idleNanos);
+        }
+        if (forward[0]) {
+            stompFanout.sendToUsers(DESTINATION, chatMessage, pair.receiver());
+        } else {
+            suppressedStarts.increment();
+        }
+    }
+
+    private void armIdleTimeout(Pair pair, Typing state, long delayNanos) {
+        timer.schedule(() -> expire(pair, state), delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    // On the timer thread. A pair that stopped, or stopped and started again, has moved on to
+    // another Typing instance and this timeout is stale.
+    private void expire(Pair pair, Typing state) {
+        long[] remaining = new long[1];
+        boolean[] idle = new boolean[1];
+        typing.computeIfPresent(pair, (key, current) -> {
+            if (current != state) {
+                return current;
+            }
+            long quietFor = System.nanoTime() - current.lastSeen;
+            if (quietFor < idleNanos) {
+                remaining[0] = idleNanos - quietFor;
+                return current;
+            }
+            idle[0] = true;
+            return null;
+        });
+        if (remaining[0] > 0) {
+            armIdleTimeout(pair, state, remaining[0]);
+        } else if (idle[0]) {
+            idleStops.increment();
+            stompFanout.sendToUsers(DESTINATION, stopTyping(state.last), pair.receiver());
+        }
+    }
+
+    private static ChatMessage stopTyping(ChatMessage last) {
+        ChatMessage stop = new ChatMessage();
+        stop.setSenderUsername(last.getSenderUsername());
+        stop.setReceiverUsername(last.getReceiverUsername());
+        stop.setSenderId(last.getSenderId());
+        stop.setReceiverId(last.getReceiverId());
+        stop.setRoomId(last.getRoomId());
+        stop.setTimestamp(LocalDateTime.now());
+        stop.setType(ChatMessage.Type.STOP_TYPING);
+        return stop;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        timer.stop();
+    }
+
+    private record Pair(String sender, String receiver) {
+    }
+
+    private static final class Typing {
+
+        // Guarded by the map's compute for the pair
+        private ChatMessage last;
+        private long lastSeen;
+        private long lastForwarded;
+
+        Typing(ChatMessage first, long now) {
+            this.last = first;
+            this.lastSeen = now;
+            this.lastForwarded = now;
+        }
+    }
+}
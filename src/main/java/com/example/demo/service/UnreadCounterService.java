@@ -0,0 +1,352 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Message;
+import com.example.demo.model.UnreadCounter;
+import com.example.demo.repository.UnreadCounterRepository;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Cache;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Unread counts maintained incrementally: +n when messages are persisted, 0 on mark-read.
+// Mark-read locks the counter row before it moves the watermark, so it never clears a message
+// that committed after the watermark was computed.
+// The unread_counters table is the source of truth; an in-memory map per user fronts it
+// so the unread endpoints are lookups instead of COUNT scans over messages.
+// A cached user must never miss a committed change or see one twice. Writes are counted per
+// stripe of users while their transaction is open, and are applied to cached entries with
+// computeIfPresent, which waits for a concurrent insert of the same entry. A loaded entry
+// is only cached if no write for its stripe was open when the load began or started since.
+// Counters are changed on whichever node saves or reads the messages, so each committed write
+// names its users to the other nodes, which drop them the same way; a membership change drops
+// every user. The nightly reconcile runs on the cluster leader only.
+@Service
+@Slf4j
+public class UnreadCounterService implements ClusterBus.Listener {
+
+    private static final int WRITE_STRIPES = 1024;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final UnreadCounterRepository unreadCounterRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final ConversationBackfillJob conversationBackfillJob;
+    private final ClusterBus clusterBus;
+    private final ClusterMembership clusterMembership;
+    private final int reconcileBatchRooms;
+    private final Cache<Long, UserCounters> users;
+    private final AtomicLongArray writesStarted = new AtomicLongArray(WRITE_STRIPES);
+    private final AtomicLongArray writesFinished = new AtomicLongArray(WRITE_STRIPES);
+
+    public UnreadCounterService(JdbcTemplate jdbcTemplate,
+                                UnreadCounterRepository unreadCounterRepository,
+                                PlatformTransactionManager transactionManager,
+                                ConversationBackfillJob conversationBackfillJob,
+                                ClusterBus clusterBus,
+                                ClusterMembership clusterMembership,
+                                MeterRegistry meterRegistry,
+                                @Value("${app.chat.unread.cache.max-users:200000}") long maxUsers,
+                                @Value("${app.chat.unread.cache.idle-seconds:1800}") long idleSeconds,
+                                @Value("${app.chat.unread.reconcile-batch-rooms:500}") int reconcileBatchRooms) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.unreadCounterRepository = unreadCounterRepository;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.conversationBackfillJob = conversationBackfillJob;
+        this.clusterBus = clusterBus;
+        this.clusterMembership = clusterMembership;
+        this.reconcileBatchRooms = reconcileBatchRooms;
+        this.users = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(Duration.ofSeconds(idleSeconds))
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, users, "unreadCounters");
+        clusterBus.addListener(this);
+        clusterMembership.addChangeListener(this::invalidateAll);
+    }
+
+    // Must run inside the transaction that inserts the messages
+    public void recordPersisted(List<Message> messages) {
+        Map<Delta.Key, Delta> deltas = new HashMap<>();
+        for (Message message : messages) {
+            Long receiverId = message.getReceiver().getId();
+            Delta.Key key = new Delta.Key(receiverId, message.getConversationId());
+            deltas.computeIfAbsent(key, k -> new Delta(k, message.getSender().getId())).count++;
+        }
+        List<Object[]> inserts = new ArrayList<>(deltas.size());
+        List<Object[]> increments = new ArrayList<>(deltas.size());
+        for (Delta delta : deltas.values()) {
+            inserts.add(new Object[]{delta.key.userId(), delta.key.conversationId(), delta.peerUserId});
+            increments.add(new Object[]{delta.count, delta.key.userId(), delta.key.conversationId()});
+        }
+
+        // Insert-if-absent then increment, so a concurrent first message for the same counter
+        // adds to it instead of one insert overwriting the other
+        track(receiversOf(deltas.keySet()), committed -> {
+            if (committed) {
+                for (Delta delta : deltas.values()) {
+                    users.asMap().computeIfPresent(delta.key.userId(), (userId, counters) -> {
+                        counters.add(delta.key.conversationId(), delta.peerUserId, delta.count);
+                        return counters;
+                    });
+                }
+            }
+        });
+        jdbcTemplate.batchUpdate("INSERT INTO unread_counters (user_id, conversation_id, peer_user_id, unread_count) " +
+                "VALUES (?, ?, ?, 0) ON CONFLICT DO NOTHING", inserts);
+        jdbcTemplate.batchUpdate("UPDATE unread_counters SET unread_count = unread_count + ? " +
+                "WHERE user_id = ? AND conversation_id = ?", increments);
+    }
+
+    // Must run inside the mark-read transaction, before the read watermark moves. Locks the
+    // reader's counter row, creating it if needed, so a message saved concurrently either commits
+    // first and is covered by the watermark, or increments the counter after the reset commits.
+    // Returns the count the reset will clear.
+    public long lockForReset(Long userId, Long conversationId, Long peerUserId) {
+        jdbcTemplate.update("INSERT INTO unread_counters (user_id, conversation_id, peer_user_id, unread_count) " +
+                "VALUES (?, ?, ?, 0) ON CONFLICT DO NOTHING", userId, conversationId, peerUserId);
+        Long count = jdbcTemplate.queryForObject("SELECT unread_count FROM unread_counters " +
+                "WHERE user_id = ? AND conversation_id = ? FOR UPDATE", Long.class, userId, conversationId);
+        return count != null ? count : 0;
+    }
+
+    // Must run in the same transaction as lockForReset, after the watermark has moved. The cached
+    // entry drops exactly the cleared count, so an increment committed right after this reset is
+    // kept whichever of the two applies to the cache first.
+    public void reset(Long userId, Long conversationId, Long peerUserId, long cleared) {
+        track(List.of(userId), committed -> {
+            if (committed && cleared != 0) {
+                users.asMap().computeIfPresent(userId, (id, counters) -> {
+                    counters.add(conversationId, peerUserId, -cleared);
+                    return counters;
+                });
+            }
+        });
+        jdbcTemplate.update("UPDATE unread_counters SET unread_count = 0 WHERE user_id = ? AND conversation_id = ?",
+                userId, conversationId);
+    }
+
+    public long getTotal(Long userId) {
+        return counters(userId).total.get();
+    }
+
+    // Room id ("minId_maxId") -> unread count, only rooms with unread messages
+    public Map<String, Long> getPerRoom(Long userId) {
+        Map<String, Long> result = new HashMap<>();
+        counters(userId).rooms.forEach((conversationId, room) -> {
+            long count = room.count.get();
+            if (count > 0) {
+                result.put(ChatRoomDirectory.roomId(userId, room.peerUserId), count);
+            }
+        });
+        return result;
+    }
+
+    // Recomputes every counter from messages and read watermarks, a batch of chat rooms per
+    // short transaction so message writes only ever wait on one batch's counter rows.
+    // Concurrent increments block on the rows being rewritten and apply on top of the new values.
+    @Scheduled(cron = "${app.chat.unread.reconcile-cron:0 30 3 * * *}")
+    public void reconcile() {
+        if (!clusterMembership.isLeader()) {
+            return;
+        }
+        if (!conversationBackfillJob.isComplete()) {
+            // Rows without a conversation_id yet would be left out of the recount
+            log.info("Skipping unread counter reconcile until the conversation backfill completes");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long lastRoomId = 0;
+        long rows = 0;
+        while (true) {
+            List<long[]> rooms = jdbcTemplate.query(
+                    "SELECT id, user1_id, user2_id FROM chat_rooms WHERE id > ? ORDER BY id LIMIT ?",
+                    (rs, rowNum) -> new long[]{rs.getLong(1), rs.getLong(2), rs.getLong(3)},
+                    lastRoomId, reconcileBatchRooms);
+            if (rooms.isEmpty()) {
+                break;
+            }
+            Integer updated = transactionTemplate.execute(status -> reconcileRooms(rooms));
+            rows += updated != null ? updated : 0;
+            lastRoomId = rooms.get(rooms.size() - 1)[0];
+        }
+        log.info("Reconciled {} unread counters in {} ms", rows, System.currentTimeMillis() - start);
+    }
+
+    // Rooms are consecutive in id order, so their messages are one range of the conversation index
+    private int reconcileRooms(List<long[]> rooms) {
+        Set<Long> userIds = new HashSet<>();
+        List<Object[]> zeroes = new ArrayList<>(rooms.size() * 2);
+        for (long[] room : rooms) {
+            userIds.add(room[1]);
+            userIds.add(room[2]);
+            zeroes.add(new Object[]{room[1], room[0]});
+            zeroes.add(new Object[]{room[2], room[0]});
+        }
+        track(userIds, committed -> users.invalidateAll(userIds));
+
+        jdbcTemplate.batchUpdate("UPDATE unread_counters SET unread_count = 0 " +
+                "WHERE user_id = ? AND conversation_id = ? AND unread_count <> 0", zeroes);
+        return jdbcTemplate.update(
+                "INSERT INTO unread_counters (user_id, conversation_id, peer_user_id, unread_count) " +
+                "SELECT m.receiver_id, m.conversation_id, m.sender_id, COUNT(*) FROM messages m " +
+                "LEFT JOIN read_watermarks w ON w.conversation_id = m.conversation_id AND w.user_id = m.receiver_id " +
+                "WHERE m.conversation_id BETWEEN ? AND ? AND m.id > COALESCE(w.last_read_message_id, 0) " +
+                "GROUP BY m.receiver_id, m.conversation_id, m.sender_id " +
+                "ON CONFLICT (user_id, conversation_id) DO UPDATE SET unread_count = EXCLUDED.unread_count",
+                rooms.get(0)[0], rooms.get(rooms.size() - 1)[0]);
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        if (message.type() == ClusterMessage.Type.INVALIDATE_UNREAD) {
+            long[] userIds = message.ids();
+            int[] stripes = new int[userIds.length];
+            for (int i = 0; i < userIds.length; i++) {
+                stripes[i] = stripe(userIds[i]);
+            }
+            // Counted as a write, so a load that read before the other node committed is not cached
+            increment(stripes, writesStarted);
+            for (long userId : userIds) {
+                users.invalidate(userId);
+            }
+            increment(stripes, writesFinished);
+        }
+    }
+
+    // Another node may have changed any counter while this one could not hear about it
+    private void invalidateAll() {
+        for (int stripe = 0; stripe < WRITE_STRIPES; stripe++) {
+            writesStarted.incrementAndGet(stripe);
+        }
+        users.invalidateAll();
+        for (int stripe = 0; stripe < WRITE_STRIPES; stripe++) {
+            writesFinished.incrementAndGet(stripe);
+        }
+    }
+
+    private static void increment(int[] stripes, AtomicLongArray writes) {
+        for (int stripe : stripes) {
+            writes.incrementAndGet(stripe);
+        }
+    }
+
+    private UserCounters counters(Long userId) {
+        UserCounters cached = users.getIfPresent(userId);
+        if (cached != null) {
+            return cached;
+        }
+        int stripe = stripe(userId);
+        long started = writesStarted.get(stripe);
+        boolean idle = writesFinished.get(stripe) == started;
+        UserCounters loaded = load(userId);
+        if (!idle) {
+            return loaded;
+        }
+        // Checked under the entry's lock: a write that starts later applies its change to this entry
+        UserCounters result = users.asMap().compute(userId, (id, existing) ->
+                existing != null ? existing : writesStarted.get(stripe) == started ? loaded : null);
+        return result != null ? result : loaded;
+    }
+
+    private UserCounters load(Long userId) {
+        UserCounters counters = new UserCounters();
+        for (UnreadCounter row : unreadCounterRepository.findByUserId(userId)) {
+            counters.add(row.getConversationId(), row.getPeerUserId(), row.getUnreadCount());
+        }
+        return counters;
+    }
+
+    // Marks a write to these users' counters as open until the surrounding transaction ends;
+    // onCompletion runs first, with whether it committed
+    private void track(Collection<Long> userIds, CompletionAction onCompletion) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            throw new IllegalStateException("Unread counters must be changed inside a transaction");
+        }
+        int[] stripes = userIds.stream().mapToInt(UnreadCounterService::stripe).toArray();
+        increment(stripes, writesStarted);
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                try {
+                    onCompletion.run(status == STATUS_COMMITTED);
+                } finally {
+                    increment(stripes, writesFinished);
+                }
+                if (status == STATUS_COMMITTED) {
+                    clusterBus.broadcast(ClusterMessage.invalidate(ClusterMessage.Type.INVALIDATE_UNREAD, userIds));
+                }
+            }
+        });
+    }
+
+    private static List<Long> receiversOf(Collection<Delta.Key> keys) {
+        List<Long> userIds = new ArrayList<>(keys.size());
+        for (Delta.Key key : keys) {
+            userIds.add(key.userId());
+        }
+        return userIds;
+    }
+
+    private static int stripe(long userId) {
+        return (int) Math.floorMod(userId * 0x9E3779B97F4A7C15L >>> 32, (long) WRITE_STRIPES);
+    }
+
+    @FunctionalInterface
+    private interface CompletionAction {
+        void run(boolean committed);
+    }
+
+    private static final class UserCounters {
+        private final ConcurrentHashMap<Long, RoomCounter> rooms = new ConcurrentHashMap<>();
+        private final AtomicLong total = new AtomicLong();
+
+        void add(Long conversationId, Long peerUserId, long delta) {
+            rooms.computeIfAbsent(conversationId, id -> new RoomCounter(peerUserId)).count.addAndGet(delta);
+            total.addAndGet(delta);
+        }
+    }
+
+    private static final class RoomCounter {
+        private final Long peerUserId;
+        private final AtomicLong count = new AtomicLong();
+
+        RoomCounter(Long peerUserId) {
+            this.peerUserId = peerUserId;
+        }
+    }
+
+    private static final class Delta {
+        private final Key key;
+        private final Long peerUserId;
+        private long count;
+
+        Delta(Key key, Long peerUserId) {
+            this.key = key;
+            this.peerUserId = peerUserId;
+        }
+
+        private record Key(Long userId, Long conversationId) {
+        }
+    }
+}
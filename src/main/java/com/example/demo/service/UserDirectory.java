@@ -0,0 +1,82 @@
+package com.example.demo.service;
+
+import com.example.demo.model.User;
+import com.example.demo.repository.UserRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.List;
+
+// Bounded in-process snapshot of the user fields the message path needs,
+// so sending and rendering messages does not SELECT from users every time.
+// Profile changes are announced to the other nodes, and a membership change drops everything.
+@Component
+public class UserDirectory implements ClusterBus.Listener {
+
+    private final UserRepository userRepository;
+    private final ClusterBus clusterBus;
+    private final Cache<Long, Entry> cache;
+
+    public UserDirectory(UserRepository userRepository,
+                         ClusterBus clusterBus,
+                         ClusterMembership clusterMembership,
+                         MeterRegistry meterRegistry,
+                         @Value("${app.users.cache.max-size:100000}") long maxSize,
+                         @Value("${app.users.cache.ttl-seconds:600}") long ttlSeconds) {
+        this.userRepository = userRepository;
+        this.clusterBus = clusterBus;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds))
+                .recordStats()
+                .build();
+        // Exposes cache.gets{result=hit|miss}, cache.evictions, cache.size under cache=userDirectory
+        CaffeineCacheMetrics.monitor(meterRegistry, cache, "userDirectory");
+        clusterBus.addListener(this);
+        clusterMembership.addChangeListener(cache::invalidateAll);
+    }
+
+    // Returns null when the user does not exist; misses are not cached
+    public Entry find(Long userId) {
+        if (userId == null) {
+            return null;
+        }
+        return cache.get(userId, id -> userRepository.findById(id).map(Entry::of).orElse(null));
+    }
+
+    public Entry get(Long userId) {
+        Entry entry = find(userId);
+        if (entry == null) {
+            throw new RuntimeException("User not found with ID: " + userId);
+        }
+        return entry;
+    }
+
+    public void invalidate(Long userId) {
+        if (userId != null) {
+            cache.invalidate(userId);
+            clusterBus.broadcast(ClusterMessage.invalidate(ClusterMessage.Type.INVALIDATE_USERS, List.of(userId)));
+        }
+    }
+
+    @Override
+    public void onMessage(String fromNode, ClusterMessage message) {
+        if (message.type() == ClusterMessage.Type.INVALIDATE_USERS) {
+            for (long userId : message.ids()) {
+                cache.invalidate(userId);
+            }
+        }
+    }
+
+    public record Entry(Long id, String username, String email, String profileImageUrl) {
+
+        static Entry of(User user) {
+            return new Entry(user.getId(), user.getUsername(), user.getEmail(), user.getProfileImageUrl());
+        }
+    }
+}
@@ -17,6 +17,9 @@ public class UserService {
     @Autowired
     private PasswordEncoder passwordEncoder;
 
+    @Autowired
+    private UserDirectory userDirectory;
+
     public User registerUser(User user) throws RuntimeException {
         // Check if email already exists
         if (userRepository.existsByEmail(user.getEmail())) {
@@ -30,7 +33,9 @@ public class UserService {
         
         // Encode password before saving
         user.setPassword(passwordEncoder.encode(user.getPassword()));
-        return userRepository.save(user);
+        User savedUser = userRepository.save(user);
+        userDirectory.invalidate(savedUser.getId());
+        return savedUser;
     }
 
     public Optional<User> loginUser(String email, String password) {
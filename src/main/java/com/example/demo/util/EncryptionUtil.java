@@ -1,50 +1,223 @@
 package com.example.demo.util;
 
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
 import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 @Component
 public class EncryptionUtil {
 
     private static final String ALGORITHM = "AES";
+    // Same as "AES/ECB/PKCS5Padding" on every JDK; kept as-is so stored messages stay readable
     private static final String TRANSFORMATION = "AES";
 
-    @Value("${app.encryption.secret-key:mySecretKey12345}")
-    private String secretKey;
+    // Scratch buffers larger than this are not kept in the pool
+    private static final int MAX_RETAINED_SCRATCH = 64 * 1024;
+    // Pool slots tried before a new cipher pair is built, or before a returned one is dropped
+    private static final int PROBES = 4;
 
-    private SecretKey getSecretKey() {
+    private final SecretKey key;
+    private final Timer encryptTimer;
+    private final Timer decryptTimer;
+
+    // Cipher is not thread-safe, so each call borrows an initialized pair from a small pool and
+    // returns it. Slots are picked from the thread id, so a platform pool thread keeps finding
+    // its own pair. A ThreadLocal would be rebuilt for every one-shot virtual thread (Tomcat
+    // requests and STOMP channel tasks with spring.threads.virtual.enabled), putting a
+    // Cipher.getInstance back on every message. Without an IV, doFinal leaves the cipher ready
+    // for the next message.
+    private final AtomicReferenceArray<CipherState> idle;
+    private final int idleMask;
+
+    public EncryptionUtil(String secretKey) {
+        this(secretKey, Metrics.globalRegistry);
+    }
+
+    @Autowired
+    public EncryptionUtil(@Value("${app.encryption.secret-key:mySecretKey12345}") String secretKey,
+                          MeterRegistry meterRegistry) {
         // In production, use a proper key derivation function
-        byte[] key = secretKey.getBytes();
+        byte[] keyMaterial = secretKey.getBytes(StandardCharsets.UTF_8);
         // Ensure key is 16 bytes for AES-128
         byte[] keyBytes = new byte[16];
-        System.arraycopy(key, 0, keyBytes, 0, Math.min(key.length, keyBytes.length));
-        return new SecretKeySpec(keyBytes, ALGORITHM);
+        System.arraycopy(keyMaterial, 0, keyBytes, 0, Math.min(keyMaterial.length, keyBytes.length));
+        this.key = new SecretKeySpec(keyBytes, ALGORITHM);
+        // Four pairs per core, rounded up to a power of two
+        int slots = Integer.highestOneBit(Math.max(8, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+        this.idle = new AtomicReferenceArray<>(slots);
+        this.idleMask = slots - 1;
+        // Timed on the String methods only; those are the ones on the message path
+        this.encryptTimer = Timer.builder("chat.encryption")
+                .description("Time to encrypt or decrypt one message")
+                .tag("operation", "encrypt")
+                .register(meterRegistry);
+        this.decryptTimer = Timer.builder("chat.encryption")
+                .description("Time to encrypt or decrypt one message")
+                .tag("operation", "decrypt")
+                .register(meterRegistry);
     }
 
     public String encrypt(String plainText) {
+        long start = System.nanoTime();
+        CipherState state = borrow();
         try {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.ENCRYPT_MODE, getSecretKey());
-            byte[] encryptedBytes = cipher.doFinal(plainText.getBytes());
+            byte[] encryptedBytes = state.encryptor.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
             return Base64.getEncoder().encodeToString(encryptedBytes);
         } catch (Exception e) {
             throw new RuntimeException("Error encrypting message", e);
+        } finally {
+            giveBack(state);
+            encryptTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
     }
 
     public String decrypt(String encryptedText) {
+        long start = System.nanoTime();
+        CipherState state = borrow();
         try {
-            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
-            cipher.init(Cipher.DECRYPT_MODE, getSecretKey());
-            byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(encryptedText));
-            return new String(decryptedBytes);
+            // Base64 bytes are ASCII, so the decoded length is bounded by the encoded one and
+            // both intermediate arrays can come from the pair's scratch buffer
+            byte[] encoded = encryptedText.getBytes(StandardCharsets.ISO_8859_1);
+            byte[] scratch = state.scratch(2 * encoded.length);
+            int encryptedLength = Base64.getDecoder().decode(encoded, scratch);
+            // Non-overlapping output: an in-place doFinal makes the provider copy the input
+            int plainLength = state.decryptor.doFinal(scratch, 0, encryptedLength, scratch, encryptedLength);
+            return new String(scratch, encryptedLength, plainLength, StandardCharsets.UTF_8);
         } catch (Exception e) {
             throw new RuntimeException("Error decrypting message", e);
+        } finally {
+            giveBack(state);
+            decryptTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public byte[] encrypt(byte[] plain) {
+        CipherState state = borrow();
+        try {
+            return state.encryptor.doFinal(plain);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error encrypting message", e);
+        } finally {
+            giveBack(state);
+        }
+    }
+
+    public byte[] decrypt(byte[] encrypted) {
+        CipherState state = borrow();
+        try {
+            return state.decryptor.doFinal(encrypted);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error decrypting message", e);
+        } finally {
+            giveBack(state);
+        }
+    }
+
+    // Encrypts the remaining bytes of input into output and returns the number of bytes written.
+    // output needs at least encryptedLength(input.remaining()) bytes remaining.
+    public int encrypt(ByteBuffer input, ByteBuffer output) {
+        CipherState state = borrow();
+        try {
+            return state.encryptor.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error encrypting message", e);
+        } finally {
+            giveBack(state);
+        }
+    }
+
+    // Decrypts the remaining bytes of input into output; output needs input.remaining() bytes
+    public int decrypt(ByteBuffer input, ByteBuffer output) {
+        CipherState state = borrow();
+        try {
+            return state.decryptor.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("Error decrypting message", e);
+        } finally {
+            giveBack(state);
+        }
+    }
+
+    public static int encryptedLength(int plainLength) {
+        // PKCS5 always adds between 1 and 16 bytes of padding
+        return (plainLength / 16 + 1) * 16;
+    }
+
+    private CipherState borrow() {
+        int start = probe();
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (start + i) & idleMask;
+            if (idle.get(slot) != null) {
+                CipherState state = idle.getAndSet(slot, null);
+                if (state != null) {
+                    return state;
+                }
+            }
+        }
+        return newCipherState();
+    }
+
+    // A pair that finds no free slot is dropped; the pool never holds more than its slots
+    private void giveBack(CipherState state) {
+        state.release();
+        int start = probe();
+        for (int i = 0; i < PROBES; i++) {
+            if (idle.compareAndSet((start + i) & idleMask, null, state)) {
+                return;
+            }
+        }
+    }
+
+    private static int probe() {
+        return (int) (Thread.currentThread().getId() * 0x9E3779B97F4A7C15L >>> 32);
+    }
+
+    private CipherState newCipherState() {
+        try {
+            Cipher encryptor = Cipher.getInstance(TRANSFORMATION);
+            encryptor.init(Cipher.ENCRYPT_MODE, key);
+            Cipher decryptor = Cipher.getInstance(TRANSFORMATION);
+            decryptor.init(Cipher.DECRYPT_MODE, key);
+            return new CipherState(encryptor, decryptor);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES is not available", e);
+        }
+    }
+
+    private static final class CipherState {
+        private final Cipher encryptor;
+        private final Cipher decryptor;
+        private byte[] scratch = new byte[1024];
+
+        CipherState(Cipher encryptor, Cipher decryptor) {
+            this.encryptor = encryptor;
+            this.decryptor = decryptor;
+        }
+
+        byte[] scratch(int minLength) {
+            if (scratch.length < minLength) {
+                scratch = new byte[Math.max(minLength, scratch.length * 2)];
+            }
+            return scratch;
+        }
+
+        void release() {
+            if (scratch.length > MAX_RETAINED_SCRATCH) {
+                scratch = new byte[1024];
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,19 @@
+-- Move entity ids from IDENTITY columns to pooled sequences so Hibernate can batch inserts.
+-- On a fresh database the tables do not exist yet and Hibernate creates tables and sequences.
+-- Sequences start one allocation block past the current max id, which is safe whether the
+-- pooled optimizer treats the first value as the low or the high end of its block.
+DO $$
+DECLARE
+    tbl text;
+    next_id bigint;
+BEGIN
+    FOREACH tbl IN ARRAY ARRAY['users', 'chat_rooms', 'messages', 'friend_requests'] LOOP
+        IF to_regclass(tbl) IS NOT NULL THEN
+            EXECUTE format('SELECT COALESCE(MAX(id), 0) + ${idAllocationSize} + 1 FROM %I', tbl) INTO next_id;
+            EXECUTE format('ALTER TABLE %I ALTER COLUMN id DROP IDENTITY IF EXISTS', tbl);
+            EXECUTE format('ALTER TABLE %I ALTER COLUMN id DROP DEFAULT', tbl);
+            EXECUTE format('CREATE SEQUENCE IF NOT EXISTS %I START WITH %s INCREMENT BY ${idAllocationSize}',
+                           tbl || '_seq', next_id);
+        END IF;
+    END LOOP;
+END $$;
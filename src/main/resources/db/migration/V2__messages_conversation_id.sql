@@ -0,0 +1,9 @@
+-- Denormalized chat room id on messages. Existing rows are backfilled online in batches by
+-- ConversationBackfillJob, which also builds the (conversation_id, created_at, id) index
+-- concurrently; neither can run inside this migration's transaction on a large table.
+DO $$
+BEGIN
+    IF to_regclass('messages') IS NOT NULL THEN
+        ALTER TABLE messages ADD COLUMN IF NOT EXISTS conversation_id bigint;
+    END IF;
+END $$;
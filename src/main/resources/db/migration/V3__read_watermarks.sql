@@ -0,0 +1,24 @@
+-- Per-participant read watermarks replace per-message is_read updates.
+CREATE TABLE IF NOT EXISTS read_watermarks (
+    conversation_id      bigint    NOT NULL,
+    user_id              bigint    NOT NULL,
+    last_read_message_id bigint    NOT NULL,
+    updated_at           timestamp NOT NULL,
+    PRIMARY KEY (conversation_id, user_id)
+);
+
+-- Seed watermarks from existing is_read flags: the newest read message per (room, reader).
+-- conversation_id may not be backfilled yet, so the room is also matched by its room_id key.
+DO $$
+BEGIN
+    IF to_regclass('messages') IS NOT NULL AND to_regclass('chat_rooms') IS NOT NULL THEN
+        INSERT INTO read_watermarks (conversation_id, user_id, last_read_message_id, updated_at)
+        SELECT cr.id, m.receiver_id, MAX(m.id), now()
+        FROM messages m
+        JOIN chat_rooms cr
+          ON cr.room_id = LEAST(m.sender_id, m.receiver_id) || '_' || GREATEST(m.sender_id, m.receiver_id)
+        WHERE m.is_read
+        GROUP BY cr.id, m.receiver_id
+        ON CONFLICT (conversation_id, user_id) DO NOTHING;
+    END IF;
+END $$;
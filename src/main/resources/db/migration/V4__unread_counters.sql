@@ -0,0 +1,26 @@
+-- Materialized per-(user, conversation) unread counts.
+CREATE TABLE IF NOT EXISTS unread_counters (
+    user_id         bigint NOT NULL,
+    conversation_id bigint NOT NULL,
+    peer_user_id    bigint NOT NULL,
+    unread_count    bigint NOT NULL,
+    PRIMARY KEY (user_id, conversation_id)
+);
+
+-- Seed from messages newer than each reader's watermark. The room is matched by room_id
+-- because conversation_id may not be backfilled yet; the reconciliation job keeps it exact.
+DO $$
+BEGIN
+    IF to_regclass('messages') IS NOT NULL AND to_regclass('chat_rooms') IS NOT NULL THEN
+        INSERT INTO unread_counters (user_id, conversation_id, peer_user_id, unread_count)
+        SELECT m.receiver_id, cr.id, m.sender_id, COUNT(*)
+        FROM messages m
+        JOIN chat_rooms cr
+          ON cr.room_id = LEAST(m.sender_id, m.receiver_id) || '_' || GREATEST(m.sender_id, m.receiver_id)
+        LEFT JOIN read_watermarks w
+          ON w.conversation_id = cr.id AND w.user_id = m.receiver_id
+        WHERE m.id > COALESCE(w.last_read_message_id, 0)
+        GROUP BY m.receiver_id, cr.id, m.sender_id
+        ON CONFLICT (user_id, conversation_id) DO NOTHING;
+    END IF;
+END $$;
@@ -0,0 +1,8 @@
+-- Per-room sequence number assigned by RoomSequencer. Existing rows keep NULL; new messages in a
+-- room continue from the highest number found among its newest rows.
+DO $$
+BEGIN
+    IF to_regclass('messages') IS NOT NULL THEN
+        ALTER TABLE messages ADD COLUMN IF NOT EXISTS room_seq bigint;
+    END IF;
+END $$;
@@ -0,0 +1,12 @@
+-- Sender-generated message id for idempotent resends. Existing rows keep NULL, which the
+-- unique constraint ignores, so adding it never conflicts with old data.
+DO $$
+BEGIN
+    IF to_regclass('messages') IS NOT NULL THEN
+        ALTER TABLE messages ADD COLUMN IF NOT EXISTS client_message_id varchar(64);
+        IF NOT EXISTS (SELECT 1 FROM pg_constraint WHERE conname = 'uk_messages_sender_client_message_id') THEN
+            ALTER TABLE messages ADD CONSTRAINT uk_messages_sender_client_message_id
+                UNIQUE (sender_id, client_message_id);
+        END IF;
+    END IF;
+END $$;
@@ -0,0 +1,99 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class GradientConcurrencyLimitTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(40);
+
+    @Test
+    void growsWhileLatencyHoldsAndTheLimitIsUsed() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 1, 1000, 2.0, 0.2);
+
+        int previous = limit.limit();
+        for (int i = 0; i < 50; i++) {
+            limit.onSample(FAST, limit.limit());
+            assertThat(limit.limit()).isGreaterThanOrEqualTo(previous);
+            previous = limit.limit();
+        }
+        assertThat(limit.limit()).isGreaterThan(50);
+    }
+
+    @Test
+    void doesNotGrowALimitTheLoadIsNotUsing() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 1, 1000, 2.0, 0.2);
+
+        for (int i = 0; i < 200; i++) {
+            limit.onSample(FAST, 2);
+        }
+        assertThat(limit.limit()).isEqualTo(10);
+    }
+
+    @Test
+    void shrinksWhenLatencyRisesAndStopsAtTheMinimum() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 5, 200, 2.0, 0.2);
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(FAST, limit.limit());
+        }
+        int grown = limit.limit();
+        assertThat(grown).isGreaterThan(100);
+
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(SLOW, limit.limit());
+        }
+        assertThat(limit.limit()).isLessThan(grown / 2);
+
+        for (int i = 0; i < 60; i++) {
+            limit.onSample(SLOW * 10, limit.limit());
+        }
+        assertThat(limit.limit()).isBetween(5, 8);
+    }
+
+    @Test
+    void growsAgainOnceLatencyRecovers() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(50, 5, 200, 2.0, 0.2);
+        for (int i = 0; i < 100; i++) {
+            limit.onSample(SLOW, limit.limit());
+        }
+        for (int i = 0; i < 50; i++) {
+            limit.onSample(SLOW * 10, limit.limit());
+        }
+        int shrunk = limit.limit();
+
+        for (int i = 0; i < 200; i++) {
+            limit.onSample(FAST, limit.limit());
+        }
+        assertThat(limit.limit()).isGreaterThan(shrunk * 4);
+    }
+
+    @Test
+    void acquireStopsAtTheLimitUntilPermitsAreReleased() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(3, 1, 10, 2.0, 0.2);
+
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isFalse();
+        assertThat(limit.inFlight()).isEqualTo(3);
+
+        limit.release(2);
+        assertThat(limit.inFlight()).isEqualTo(1);
+        assertThat(limit.tryAcquire()).isTrue();
+    }
+
+    @Test
+    void initialLimitIsClampedToTheBounds() {
+        assertThat(new GradientConcurrencyLimit(500, 1, 100, 2.0, 0.2).limit()).isEqualTo(100);
+        assertThat(new GradientConcurrencyLimit(0, 4, 100, 2.0, 0.2).limit()).isEqualTo(4);
+        assertThatThrownBy(() -> new GradientConcurrencyLimit(10, 0, 100, 2.0, 0.2))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new GradientConcurrencyLimit(10, 20, 10, 2.0, 0.2))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
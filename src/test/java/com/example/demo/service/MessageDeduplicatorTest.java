@@ -0,0 +1,133 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class MessageDeduplicatorTest {
+
+    private final ChatService chatService = mock(ChatService.class);
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void bloomFilterRemembersAKeyForOneWindowAfterTheNext() throws InterruptedException {
+        long window = TimeUnit.MILLISECONDS.toNanos(100);
+        TimeWindowedBloomFilter filter = new TimeWindowedBloomFilter(1000, 0.01, window);
+        filter.put(42);
+        assertThat(filter.mightContain(42)).isTrue();
+
+        // First rotation: the key's generation becomes the previous one
+        TimeUnit.NANOSECONDS.sleep(window + window / 2);
+        assertThat(filter.mightContain(42)).isTrue();
+        filter.put(43);
+
+        // Second rotation drops it, and keeps what was added since
+        TimeUnit.NANOSECONDS.sleep(window + window / 2);
+        assertThat(filter.mightContain(42)).isFalse();
+        assertThat(filter.mightContain(43)).isTrue();
+    }
+
+    @Test
+    void bloomFilterHasNoFalseNegativesAndFewFalsePositivesWithinItsSizing() {
+        TimeWindowedBloomFilter filter = new TimeWindowedBloomFilter(10_000, 0.01, TimeUnit.HOURS.toNanos(1));
+        SplittableRandom random = new SplittableRandom(7);
+        long[] added = new long[10_000];
+        for (int i = 0; i < added.length; i++) {
+            added[i] = random.nextLong();
+            filter.put(added[i]);
+        }
+
+        for (long hash : added) {
+            assertThat(filter.mightContain(hash)).isTrue();
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (filter.mightContain(random.nextLong())) {
+                falsePositives++;
+            }
+        }
+        assertThat(falsePositives).isLessThan(2_000);
+    }
+
+    @Test
+    void resendWithinTheWindowGetsTheOriginalsOutcome() {
+        MessageDeduplicator deduplicator = deduplicator(1_000_000);
+        CompletableFuture<ChatMessage> original = new CompletableFuture<>();
+
+        assertThat(deduplicator.claim(message(1L, "a"), original)).isNull();
+        assertThat(deduplicator.claim(message(1L, "a"), new CompletableFuture<>())).isSameAs(original);
+        // Same client id from another sender is a different message
+        assertThat(deduplicator.claim(message(2L, "a"), new CompletableFuture<>())).isNull();
+        assertThat(counter("chat.dedup.duplicates", "window")).isEqualTo(1);
+        verify(chatService, never()).findByClientMessageId(anyLong(), anyString());
+    }
+
+    @Test
+    void bloomFalsePositiveIsCheckedAgainstTheDatabaseAndAccepted() {
+        // A filter sized for one key saturates after a few, so new keys look seen
+        MessageDeduplicator deduplicator = deduplicator(1);
+        when(chatService.findByClientMessageId(anyLong(), anyString())).thenReturn(null);
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(deduplicator.claim(message(1L, "m" + i), new CompletableFuture<>())).isNull();
+        }
+
+        assertThat(meterRegistry.get("chat.dedup.bloom.false.positives").counter().count()).isPositive();
+        assertThat(counter("chat.dedup.duplicates", "lookup")).isZero();
+    }
+
+    @Test
+    void resendOfAFailedOriginalIsLookedUpAndMatchedToTheStoredMessage() {
+        MessageDeduplicator deduplicator = deduplicator(1_000_000);
+        CompletableFuture<ChatMessage> original = new CompletableFuture<>();
+        assertThat(deduplicator.claim(message(1L, "a"), original)).isNull();
+        // The original's outcome was lost, so the key leaves the recent map but stays in the filter
+        original.completeExceptionally(new IllegalStateException("Commit outcome unknown"));
+        ChatMessage stored = message(1L, "a");
+        stored.setId(99L);
+        when(chatService.findByClientMessageId(1L, "a")).thenReturn(stored);
+
+        CompletableFuture<ChatMessage> resend = deduplicator.claim(message(1L, "a"), new CompletableFuture<>());
+
+        assertThat(resend).isNotNull();
+        assertThat(resend.join().getId()).isEqualTo(99L);
+        assertThat(counter("chat.dedup.duplicates", "lookup")).isEqualTo(1);
+    }
+
+    @Test
+    void messageWithoutClientIdIsNotTracked() {
+        MessageDeduplicator deduplicator = deduplicator(1_000_000);
+
+        assertThat(deduplicator.claim(message(1L, null), new CompletableFuture<>())).isNull();
+        assertThat(deduplicator.claim(message(1L, null), new CompletableFuture<>())).isNull();
+        assertThat(meterRegistry.get("chat.dedup.checked").counter().count()).isZero();
+    }
+
+    private MessageDeduplicator deduplicator(long expectedPerWindow) {
+        return new MessageDeduplicator(chatService, meterRegistry, 300, 10_000, expectedPerWindow, 0.01);
+    }
+
+    private double counter(String name, String stage) {
+        return meterRegistry.get(name).tag("stage", stage).counter().count();
+    }
+
+    private static ChatMessage message(Long senderId, String clientMessageId) {
+        ChatMessage message = new ChatMessage();
+        message.setSenderId(senderId);
+        message.setClientMessageId(clientMessageId);
+        return message;
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentMessageCacheTest {
+
+    private static final long ROOM = 7;
+    private static final long LOW_USER = 1;
+    private static final long HIGH_USER = 2;
+    private static final LocalDateTime START = LocalDateTime.of(2024, 1, 1, 12, 0);
+
+    private final ObjectMapper objectMapper = JsonMapper.builder().findAndAddModules().build();
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    @Test
+    void blockPoolHandsOutFreedBlocksBeforeGrowing() {
+        OffHeapBlockPool pool = new OffHeapBlockPool(1024, 4 * 1024);
+
+        assertThat(List.of(pool.allocate(), pool.allocate(), pool.allocate(), pool.allocate()))
+                .containsExactly(0, 1, 2, 3);
+        assertThat(pool.allocate()).isEqualTo(-1);
+
+        pool.free(2);
+        assertThat(pool.blocksInUse()).isEqualTo(3);
+        assertThat(pool.allocate()).isEqualTo(2);
+        assertThat(pool.allocate()).isEqualTo(-1);
+        assertThat(pool.reservedBytes()).isEqualTo(4 * 1024);
+    }
+
+    @Test
+    void ringKeepsTheNewestMessagesWhenTheSlotsWrap() {
+        RecentMessageCache cache = cache(4 * 2048, 2048, 4);
+        load(cache);
+
+        for (long id = 1; id <= 10; id++) {
+            cache.recordPersisted(ROOM, message(id, "message " + id));
+        }
+
+        RecentMessageCache.CachedPage page = cache.newestPage(ROOM, LOW_USER, HIGH_USER, 3, this::failLoad);
+        assertThat(ids(page)).containsExactly(10L, 9L, 8L);
+        assertThat(page.hasOlder()).isTrue();
+        // Four slots, so a page of four would not know whether older messages exist
+        assertThat(cache.newestPage(ROOM, LOW_USER, HIGH_USER, 4, this::failLoad)).isNull();
+    }
+
+    @Test
+    void ringWrapsItsDataAreaWithoutCorruptingMessages() {
+        // 1920 data bytes hold three of these messages, so every few writes wrap to the start
+        RecentMessageCache cache = cache(4 * 2048, 2048, 4);
+        load(cache);
+
+        for (long id = 1; id <= 12; id++) {
+            cache.recordPersisted(ROOM, message(id, Long.toString(id).repeat(300 / Long.toString(id).length())));
+        }
+
+        JsonNode messages = json(cache.newestPage(ROOM, LOW_USER, HIGH_USER, 2, this::failLoad));
+        assertThat(messages).hasSize(2);
+        for (JsonNode message : messages) {
+            String id = message.get("id").asText();
+            assertThat(message.get("content").asText()).isEqualTo(id.repeat(300 / id.length()));
+        }
+        assertThat(ids(cache.newestPage(ROOM, LOW_USER, HIGH_USER, 2, this::failLoad))).containsExactly(12L, 11L);
+    }
+
+    @Test
+    void invalidatedRoomReturnsItsBlockForTheNextRoom() {
+        RecentMessageCache cache = cache(2 * 2048, 2048, 4);
+        load(cache);
+        assertThat(blocksUsed()).isEqualTo(1);
+
+        cache.invalidate(ROOM);
+        assertThat(blocksUsed()).isZero();
+
+        RecentMessageCache.CachedPage page = cache.newestPage(ROOM + 1, LOW_USER, HIGH_USER, 4,
+                () -> new RecentMessageCache.Snapshot(List.of(message(5, "reloaded")), true, Map.of()));
+        assertThat(ids(page)).containsExactly(5L);
+        assertThat(blocksUsed()).isEqualTo(1);
+        assertThat(meterRegistry.get("chat.recent.offheap.bytes").gauge().value()).isEqualTo(2 * 2048);
+    }
+
+    @Test
+    void readWatermarksAreSplicedIntoTheRenderedPage() {
+        RecentMessageCache cache = cache(4 * 2048, 2048, 4);
+        load(cache);
+        cache.recordPersisted(ROOM, message(1, "first"));
+        cache.recordPersisted(ROOM, message(2, "second"));
+
+        cache.recordRead(ROOM, HIGH_USER, 1L);
+
+        JsonNode messages = json(cache.newestPage(ROOM, LOW_USER, HIGH_USER, 2, this::failLoad));
+        assertThat(messages.get(0).get("isRead").asBoolean()).isFalse();
+        assertThat(messages.get(1).get("isRead").asBoolean()).isTrue();
+    }
+
+    private RecentMessageCache cache(long maxBytes, int blockBytes, int messagesPerRoom) {
+        ClusterBus clusterBus = new InMemoryClusterBus("test", new InMemoryClusterBus.Hub());
+        return new RecentMessageCache(objectMapper, meterRegistry, clusterBus,
+                new ClusterMembership(clusterBus, meterRegistry), maxBytes, blockBytes, messagesPerRoom);
+    }
+
+    // An empty, complete room; every later message is written through
+    private void load(RecentMessageCache cache) {
+        assertThat(cache.newestPage(ROOM, LOW_USER, HIGH_USER, 4,
+                () -> new RecentMessageCache.Snapshot(List.of(), true, Map.of()))).isNotNull();
+    }
+
+    private RecentMessageCache.Snapshot failLoad() {
+        throw new AssertionError("Room should have been served from memory");
+    }
+
+    private double blocksUsed() {
+        return meterRegistry.get("chat.recent.blocks.used").gauge().value();
+    }
+
+    private static ChatMessage message(long id, String content) {
+        ChatMessage message = new ChatMessage();
+        message.setId(id);
+        message.setContent(content);
+        message.setSenderId(LOW_USER);
+        message.setReceiverId(HIGH_USER);
+        message.setTimestamp(START.plusSeconds(id));
+        return message;
+    }
+
+    private JsonNode json(RecentMessageCache.CachedPage page) {
+        assertThat(page).isNotNull();
+        try {
+            return objectMapper.readTree(page.messagesJson());
+        } catch (Exception e) {
+            throw new AssertionError("Page is not valid JSON", e);
+        }
+    }
+
+    private List<Long> ids(RecentMessageCache.CachedPage page) {
+        List<Long> ids = new ArrayList<>();
+        for (JsonNode message : json(page)) {
+            ids.add(message.get("id").asLong());
+        }
+        return ids;
+    }
+}
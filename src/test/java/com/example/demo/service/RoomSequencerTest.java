@@ -0,0 +1,163 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class RoomSequencerTest {
+
+    private static final long ROOM_A = 11;
+    private static final long ROOM_B = 12;
+
+    private final ChatRoomDirectory chatRoomDirectory = mock(ChatRoomDirectory.class);
+    private final MessageBatchWriter messageBatchWriter = mock(MessageBatchWriter.class);
+    private final ConversationQueries conversationQueries = mock(ConversationQueries.class);
+    private final MessageDeduplicator messageDeduplicator = mock(MessageDeduplicator.class);
+    private final AtomicLong ids = new AtomicLong();
+    // Sequence numbers in the order the writer was handed the messages
+    private final Queue<String> written = new ConcurrentLinkedQueue<>();
+    private RoomSequencer roomSequencer;
+
+    @BeforeEach
+    void setUp() {
+        when(chatRoomDirectory.resolve(1L, 2L)).thenReturn(ROOM_A);
+        when(chatRoomDirectory.resolve(3L, 4L)).thenReturn(ROOM_B);
+        // Room B already has messages up to 41
+        when(conversationQueries.newestRoomSeqs(any(), anyInt())).thenAnswer(invocation -> {
+            ConversationQueries.Conversation conversation = invocation.getArgument(0);
+            return conversation.id() == ROOM_B ? List.of(41L, 40L) : List.of();
+        });
+        when(messageBatchWriter.submit(any(ChatMessage.class), any(Executor.class))).thenAnswer(invocation -> {
+            ChatMessage message = invocation.getArgument(0);
+            Executor lane = invocation.getArgument(1);
+            if (message.getContent().startsWith("busy")) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("Writer is full"));
+            }
+            written.add(message.getSenderId() + ":" + message.getRoomSeq());
+            ChatMessage saved = copy(message);
+            saved.setId(ids.incrementAndGet());
+            return CompletableFuture.supplyAsync(() -> saved, lane);
+        });
+
+        ClusterBus clusterBus = new InMemoryClusterBus("test", new InMemoryClusterBus.Hub());
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        roomSequencer = new RoomSequencer(chatRoomDirectory, messageBatchWriter, conversationQueries,
+                messageDeduplicator, new ClusterMembership(clusterBus, meterRegistry), meterRegistry, 4, 10_000, 1000);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        roomSequencer.shutdown();
+    }
+
+    @Test
+    void numbersARoomsMessagesInSubmissionOrder() {
+        List<CompletableFuture<ChatMessage>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            results.add(roomSequencer.submit(message(1L, 2L, "hello " + i), null));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            ChatMessage saved = results.get(i).join();
+            assertThat(saved.getRoomSeq()).isEqualTo(i + 1L);
+            assertThat(saved.getContent()).isEqualTo("hello " + i);
+        }
+    }
+
+    @Test
+    void rejectedMessageDoesNotUseUpANumber() {
+        List<CompletableFuture<ChatMessage>> results = new ArrayList<>();
+        List<ChatMessage> rejected = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            ChatMessage message = message(1L, 2L, (i % 5 == 2 ? "busy " : "hello ") + i);
+            CompletableFuture<ChatMessage> result = roomSequencer.submit(message, null);
+            if (i % 5 == 2) {
+                rejected.add(message);
+                assertThatThrownBy(result::join).isInstanceOf(CompletionException.class)
+                        .hasCauseInstanceOf(RejectedExecutionException.class);
+            } else {
+                results.add(result);
+            }
+        }
+
+        List<Long> seqs = new ArrayList<>();
+        for (CompletableFuture<ChatMessage> result : results) {
+            seqs.add(result.join().getRoomSeq());
+        }
+        assertThat(seqs).hasSize(24);
+        for (int i = 0; i < seqs.size(); i++) {
+            assertThat(seqs.get(i)).isEqualTo(i + 1L);
+        }
+        assertThat(rejected).allSatisfy(message -> assertThat(message.getRoomSeq()).isNull());
+    }
+
+    @Test
+    void roomsCountIndependentlyFromTheirNewestStoredNumber() {
+        List<CompletableFuture<ChatMessage>> roomA = new ArrayList<>();
+        List<CompletableFuture<ChatMessage>> roomB = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            roomA.add(roomSequencer.submit(message(1L, 2L, "a" + i), null));
+            roomB.add(roomSequencer.submit(message(3L, 4L, "b" + i), null));
+        }
+
+        for (int i = 0; i < 50; i++) {
+            assertThat(roomA.get(i).join().getRoomSeq()).isEqualTo(i + 1L);
+            assertThat(roomB.get(i).join().getRoomSeq()).isEqualTo(i + 42L);
+        }
+    }
+
+    @Test
+    void onAcceptedRunsInRoomOrderBeforeTheNextMessage() {
+        Queue<String> accepted = new ConcurrentLinkedQueue<>();
+        List<CompletableFuture<ChatMessage>> results = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ChatMessage message = message(1L, 2L, "hello " + i);
+            results.add(roomSequencer.submit(message, () -> accepted.add("1:" + message.getRoomSeq())));
+        }
+        results.forEach(CompletableFuture::join);
+
+        assertThat(accepted).containsExactlyElementsOf(written);
+        assertThat(accepted).hasSize(100);
+    }
+
+    @Test
+    void messageWithoutUsersIsRefusedUpFront() {
+        ChatMessage message = message(null, 2L, "hello");
+
+        assertThatThrownBy(() -> roomSequencer.submit(message, null).join())
+                .hasCauseInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static ChatMessage message(Long senderId, Long receiverId, String content) {
+        ChatMessage message = new ChatMessage();
+        message.setSenderId(senderId);
+        message.setReceiverId(receiverId);
+        message.setContent(content);
+        return message;
+    }
+
+    private static ChatMessage copy(ChatMessage message) {
+        ChatMessage copy = message(message.getSenderId(), message.getReceiverId(), message.getContent());
+        copy.setRoomSeq(message.getRoomSeq());
+        return copy;
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TcpClusterBusTest {
+
+    @Test
+    void messageSurvivesTheFrameCodec() throws IOException {
+        ClusterMessage sent = ClusterMessage.deliver("alice", "/queue/messages",
+                "{\"content\":\"héllo\"}".getBytes(StandardCharsets.UTF_8), new byte[] {1, 2, 3});
+
+        ClusterMessage received = roundTrip(sent);
+
+        assertThat(received.type()).isEqualTo(ClusterMessage.Type.DELIVER);
+        assertThat(received.key()).isEqualTo("alice");
+        assertThat(received.destination()).isEqualTo("/queue/messages");
+        assertThat(received.payload()).isEqualTo(sent.payload());
+        assertThat(received.compactPayload()).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    void nullFieldsStayNullAndEmptyPayloadsStayEmpty() throws IOException {
+        ClusterMessage member = roundTrip(ClusterMessage.member());
+        assertThat(member.type()).isEqualTo(ClusterMessage.Type.MEMBER);
+        assertThat(member.key()).isNull();
+        assertThat(member.destination()).isNull();
+        assertThat(member.payload()).isNull();
+        assertThat(member.compactPayload()).isNull();
+
+        ClusterMessage empty = roundTrip(ClusterMessage.invalidate(ClusterMessage.Type.INVALIDATE_ROOMS, List.of()));
+        assertThat(empty.payload()).isEmpty();
+        assertThat(empty.ids()).isEmpty();
+    }
+
+    @Test
+    void everyTypeKeepsItsIdentity() throws IOException {
+        for (ClusterMessage.Type type : ClusterMessage.Type.values()) {
+            ClusterMessage received = roundTrip(new ClusterMessage(type, "k", null, null, null));
+            assertThat(received.type()).isEqualTo(type);
+        }
+        ClusterMessage invalidation = roundTrip(
+                ClusterMessage.invalidate(ClusterMessage.Type.INVALIDATE_UNREAD, List.of(3L, 1L << 40)));
+        assertThat(invalidation.ids()).containsExactly(3L, 1L << 40);
+    }
+
+    @Test
+    void framesAreReadBackInOrderAndHeartbeatsAreSkipped() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        TcpClusterBus.writeMessage(out, ClusterMessage.routeAdd("alice"));
+        out.writeByte(-2);
+        TcpClusterBus.writeMessage(out, ClusterMessage.publish("/topic/rooms", new byte[] {9}));
+        TcpClusterBus.writeMessage(out, ClusterMessage.routeRemove("alice"));
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertThat(TcpClusterBus.readMessage(in).type()).isEqualTo(ClusterMessage.Type.ROUTE_ADD);
+        assertThat(TcpClusterBus.readMessage(in)).isNull();
+        assertThat(TcpClusterBus.readMessage(in).payload()).containsExactly(9);
+        assertThat(TcpClusterBus.readMessage(in).type()).isEqualTo(ClusterMessage.Type.ROUTE_REMOVE);
+        assertThatThrownBy(() -> TcpClusterBus.readMessage(in)).isInstanceOf(EOFException.class);
+    }
+
+    @Test
+    void unknownTypeIsRejected() {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                new byte[] {(byte) ClusterMessage.Type.values().length}));
+
+        assertThatThrownBy(() -> TcpClusterBus.readMessage(in))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Unknown cluster message type");
+    }
+
+    @Test
+    void payloadOverTheLimitIsRejectedBeforeItIsAllocated() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(ClusterMessage.Type.PUBLISH.ordinal());
+        out.writeBoolean(false);
+        out.writeBoolean(true);
+        out.writeUTF("/topic/rooms");
+        out.writeInt((16 << 20) + 1);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertThatThrownBy(() -> TcpClusterBus.readMessage(in))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("exceeds the limit");
+    }
+
+    @Test
+    void payloadAtTheLimitIsAccepted() throws IOException {
+        byte[] payload = new byte[16 << 20];
+        payload[payload.length - 1] = 7;
+
+        ClusterMessage received = roundTrip(ClusterMessage.publish("/topic/rooms", payload));
+
+        assertThat(received.payload()).hasSize(16 << 20);
+        assertThat(received.payload()[payload.length - 1]).isEqualTo((byte) 7);
+    }
+
+    private static ClusterMessage roundTrip(ClusterMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        TcpClusterBus.writeMessage(out, message);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        ClusterMessage received = TcpClusterBus.readMessage(in);
+        // Nothing of the frame is left for the next one to misread
+        assertThat(in.available()).isZero();
+        return received;
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.demo.service;
+
+import com.example.demo.dto.ChatMessage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class TypingDebouncerTest {
+
+    private final Queue<ChatMessage> sent = new ConcurrentLinkedQueue<>();
+    private HashedTimerWheel wheel;
+    private TypingDebouncer debouncer;
+
+    @AfterEach
+    void tearDown() {
+        if (wheel != null) {
+            wheel.stop();
+        }
+        if (debouncer != null) {
+            debouncer.shutdown();
+        }
+    }
+
+    @Test
+    void timeoutOfExactlyOneWheelWaitsAFullTurn() throws InterruptedException {
+        // 8 buckets of 10 ms: an 80 ms delay hashes into the bucket being expired right now
+        wheel = new HashedTimerWheel("TestTimer", 10, TimeUnit.MILLISECONDS, 8);
+        assertThat(firesAfter(80)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(80));
+    }
+
+    @Test
+    void timeoutOfSeveralWheelsWaitsThemAll() throws InterruptedException {
+        wheel = new HashedTimerWheel("TestTimer", 10, TimeUnit.MILLISECONDS, 8);
+        assertThat(firesAfter(240)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(240));
+    }
+
+    @Test
+    void timeoutsFireInDeadlineOrderAcrossRounds() throws InterruptedException {
+        wheel = new HashedTimerWheel("TestTimer", 5, TimeUnit.MILLISECONDS, 4);
+        Queue<Long> fired = new ConcurrentLinkedQueue<>();
+        CountDownLatch done = new CountDownLatch(4);
+        for (long delay : List.of(60L, 20L, 40L, 0L)) {
+            wheel.schedule(() -> {
+                fired.add(delay);
+                done.countDown();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        assertThat(done.await(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(fired).containsExactly(0L, 20L, 40L, 60L);
+    }
+
+    @Test
+    void keystrokesBeforeTheIdleTimeoutReArmItInsteadOfStopping() throws InterruptedException {
+        debouncer = debouncer(150);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            debouncer.onTyping(typing(ChatMessage.Type.TYPING));
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        long lastKeystroke = System.nanoTime();
+        // Typing for 300 ms with a 150 ms idle timeout: the first timeout found recent activity
+        assertThat(types()).containsExactly(ChatMessage.Type.TYPING);
+
+        long stoppedAt = awaitStop();
+        assertThat(stoppedAt - lastKeystroke).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(stoppedAt - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(400));
+        assertThat(types()).containsExactly(ChatMessage.Type.TYPING, ChatMessage.Type.STOP_TYPING);
+    }
+
+    @Test
+    void clientStopEndsTypingAndTheStaleTimeoutStaysQuiet() throws InterruptedException {
+        debouncer = debouncer(100);
+
+        debouncer.onTyping(typing(ChatMessage.Type.TYPING));
+        debouncer.onTyping(typing(ChatMessage.Type.STOP_TYPING));
+        // A second STOP_TYPING has nothing left to stop
+        debouncer.onTyping(typing(ChatMessage.Type.STOP_TYPING));
+        TimeUnit.MILLISECONDS.sleep(300);
+
+        assertThat(types()).containsExactly(ChatMessage.Type.TYPING, ChatMessage.Type.STOP_TYPING);
+    }
+
+    private long firesAfter(long delayMillis) throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            firedAt.set(System.nanoTime());
+            fired.countDown();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+
+        assertThat(fired.await(delayMillis + 2000, TimeUnit.MILLISECONDS)).isTrue();
+        return firedAt.get() - start;
+    }
+
+    private TypingDebouncer debouncer(long idleMillis) {
+        StompFanout stompFanout = mock(StompFanout.class);
+        doAnswer(invocation -> {
+            sent.add(invocation.getArgument(1));
+            return null;
+        }).when(stompFanout).sendToUsers(anyString(), any(), any(String[].class));
+        return new TypingDebouncer(stompFanout, new SimpleMeterRegistry(), 2000, idleMillis, 10);
+    }
+
+    private long awaitStop() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (System.nanoTime() < deadline) {
+            if (types().contains(ChatMessage.Type.STOP_TYPING)) {
+                return System.nanoTime();
+            }
+            TimeUnit.MILLISECONDS.sleep(2);
+        }
+        throw new AssertionError("No STOP_TYPING was sent");
+    }
+
+    private List<ChatMessage.Type> types() {
+        return sent.stream().map(ChatMessage::getType).toList();
+    }
+
+    private static ChatMessage typing(ChatMessage.Type type) {
+        ChatMessage message = new ChatMessage();
+        message.setSenderUsername("alice");
+        message.setReceiverUsername("bob");
+        message.setType(type);
+        return message;
+    }
+}